@@ -0,0 +1,70 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of NOESY cluster matching and of the complete headless
+ * alignment.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+public class ClusterMatchBenchmark {
+
+    @Param({"1000", "5000"})
+    int nPeaks;
+
+    SyntheticPeakLists lists;
+    PeakListAligner aligner;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        lists = new SyntheticPeakLists(nPeaks, 1234L);
+        aligner = lists.getAligner();
+        aligner.setSparseMatching(true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        lists.remove();
+    }
+
+    @Setup(Level.Invocation)
+    public void restore() {
+        lists.restorePredicted();
+    }
+
+    @Benchmark
+    public PeakListAligner runMatch() {
+        aligner.createMatchers();
+        aligner.matchers[0].runMatch();
+        aligner.matchers[1].runMatch();
+        return aligner;
+    }
+
+    @Benchmark
+    public PeakListAligner.AlignmentResult align() {
+        return aligner.align();
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui;
+
+import java.util.concurrent.TimeUnit;
+import org.nmrfx.processor.optimization.BipartiteMatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the dense BipartiteMatcher paths. The matcher needs
+ * (nPred + nExp)^2 weights so these are limited to smaller lists.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class DenseMatchBenchmark {
+
+    @Param({"1000", "2000"})
+    int nPeaks;
+
+    SyntheticPeakLists lists;
+    PeakListAligner aligner;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        lists = new SyntheticPeakLists(nPeaks, 1234L);
+        aligner = lists.getAligner();
+        aligner.setSparseMatching(false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        lists.remove();
+    }
+
+    @Setup(Level.Invocation)
+    public void restore() {
+        lists.restorePredicted();
+    }
+
+    @Benchmark
+    public int[] compareHMQC() {
+        BipartiteMatcher matcher = aligner.compareHMQC(lists.predHMQC, lists.expHMQC);
+        return matcher.getMatching();
+    }
+
+    @Benchmark
+    public int[] alignTOCSYDense() {
+        return aligner.alignTOCSYDense(lists.predTOCSY, lists.expTOCSY, PeakListAligner.DEFAULT_TOCSY_SCALE);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui;
+
+import java.util.concurrent.TimeUnit;
+import org.nmrfx.peaks.Peak;
+import org.nmrfx.peaks.PeakList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the candidate search and sparse matching of predicted and
+ * experimental peak lists, at sizes up to 20k peaks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PeakMatchBenchmark {
+
+    static final double[] HMQC_SCALE = {0.5, 10.0};
+
+    @Param({"1000", "5000", "20000"})
+    int nPeaks;
+
+    SyntheticPeakLists lists;
+    PeakListAligner aligner;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        lists = new SyntheticPeakLists(nPeaks, 1234L);
+        aligner = lists.getAligner();
+        aligner.setSparseMatching(true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        lists.remove();
+    }
+
+    @Setup(Level.Invocation)
+    public void restore() {
+        lists.restorePredicted();
+    }
+
+    /**
+     * All-pairs Peak.distance scan of 100 predicted peaks, the search pattern
+     * of the dense matchers.
+     */
+    @Benchmark
+    public int distanceScan() {
+        PeakList predList = lists.predHMQC;
+        PeakList expList = lists.expHMQC;
+        int nCandidates = 0;
+        for (int i = 0; i < Math.min(100, predList.size()); i++) {
+            Peak predPeak = predList.getPeak(i);
+            for (Peak expPeak : expList.peaks()) {
+                if (expPeak.distance(predPeak, HMQC_SCALE) < 1.0) {
+                    nCandidates++;
+                }
+            }
+        }
+        return nCandidates;
+    }
+
+    /**
+     * The same 100 peaks searched through the grid index.
+     */
+    @Benchmark
+    public int gridScan() {
+        PeakList predList = lists.predHMQC;
+        PeakList expList = lists.expHMQC;
+        PeakGridIndex index = new PeakGridIndex(expList, HMQC_SCALE);
+        int[] nCandidates = {0};
+        for (int i = 0; i < Math.min(100, predList.size()); i++) {
+            Peak predPeak = predList.getPeak(i);
+            index.forEachCandidate(predPeak, iE -> {
+                if (expList.getPeak(iE).distance(predPeak, HMQC_SCALE) < 1.0) {
+                    nCandidates[0]++;
+                }
+            });
+        }
+        return nCandidates[0];
+    }
+
+    @Benchmark
+    public SparseAssignment compareHMQCSparse() {
+        SparseAssignment assignment = aligner.compareHMQCSparse(lists.predHMQC, lists.expHMQC);
+        assignment.getMatching();
+        return assignment;
+    }
+
+    @Benchmark
+    public PeakList alignTOCSYSparse() {
+        aligner.alignTOCSY();
+        return lists.predTOCSY;
+    }
+
+    @Benchmark
+    public double calcTOCSYAdj() {
+        double smallTol = lists.expTOCSY.widthStatsPPM(0).getAverage() / 2.0;
+        double sum = 0.0;
+        for (int i = 0; i < Math.min(1000, lists.predHMQC.size()); i++) {
+            Peak predPeak = lists.predHMQC.getPeak(i);
+            sum += aligner.calcTOCSYAdj(lists.predTOCSY, lists.expTOCSY, predPeak, predPeak,
+                    PeakListAligner.DEFAULT_TOCSY_SCALE, smallTol);
+        }
+        return sum;
+    }
+}
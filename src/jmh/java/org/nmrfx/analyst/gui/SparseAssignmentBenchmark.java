@@ -0,0 +1,113 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of the sparse assignment alone, on the gated edges of synthetic 2D
+ * peak positions. Experimental positions are the predicted ones plus noise,
+ * at a density giving about five candidates per predicted peak within the
+ * tolerance, and pairs get a weight of 1.0 minus their scaled distance as in
+ * the HMQC match. Unlike the other benchmarks this one only needs the classes
+ * of this project, so it can be run without the nmrfx peak lists.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SparseAssignmentBenchmark {
+
+    static final double CANDIDATES_PER_PEAK = 5.0;
+
+    @Param({"1000", "5000", "20000"})
+    int nPeaks;
+
+    int[] edgeRows;
+    int[] edgeCols;
+    double[] edgeWeights;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(1234L);
+        // side of the square holding nPeaks peaks with the wanted number of
+        // peaks within a unit (scaled) distance
+        double side = Math.sqrt(nPeaks * Math.PI / CANDIDATES_PER_PEAK);
+        double[][] pred = new double[nPeaks][2];
+        double[][] exp = new double[nPeaks][2];
+        for (int i = 0; i < nPeaks; i++) {
+            for (int j = 0; j < 2; j++) {
+                pred[i][j] = random.nextDouble() * side;
+                exp[i][j] = pred[i][j] + random.nextGaussian() * 0.2;
+            }
+        }
+        int nCells = (int) Math.ceil(side) + 2;
+        List<List<Integer>> cells = new ArrayList<>();
+        for (int i = 0; i < nCells * nCells; i++) {
+            cells.add(new ArrayList<>());
+        }
+        for (int j = 0; j < nPeaks; j++) {
+            cells.get(cell(exp[j][0], nCells) * nCells + cell(exp[j][1], nCells)).add(j);
+        }
+        List<int[]> pairs = new ArrayList<>();
+        List<Double> weights = new ArrayList<>();
+        for (int i = 0; i < nPeaks; i++) {
+            int cx = cell(pred[i][0], nCells);
+            int cy = cell(pred[i][1], nCells);
+            for (int x = Math.max(cx - 1, 0); x <= Math.min(cx + 1, nCells - 1); x++) {
+                for (int y = Math.max(cy - 1, 0); y <= Math.min(cy + 1, nCells - 1); y++) {
+                    for (int j : cells.get(x * nCells + y)) {
+                        double dx = pred[i][0] - exp[j][0];
+                        double dy = pred[i][1] - exp[j][1];
+                        double distance = Math.sqrt(dx * dx + dy * dy);
+                        if (distance < 1.0) {
+                            pairs.add(new int[]{i, j});
+                            weights.add(1.0 - distance);
+                        }
+                    }
+                }
+            }
+        }
+        edgeRows = new int[pairs.size()];
+        edgeCols = new int[pairs.size()];
+        edgeWeights = new double[pairs.size()];
+        for (int k = 0; k < pairs.size(); k++) {
+            edgeRows[k] = pairs.get(k)[0];
+            edgeCols[k] = pairs.get(k)[1];
+            edgeWeights[k] = weights.get(k);
+        }
+    }
+
+    static int cell(double value, int nCells) {
+        return Math.min(Math.max((int) Math.floor(value) + 1, 0), nCells - 1);
+    }
+
+    @Benchmark
+    public int[] solve() {
+        SparseAssignment assignment = new SparseAssignment(nPeaks, nPeaks);
+        for (int k = 0; k < edgeRows.length; k++) {
+            assignment.addEdge(edgeRows[k], edgeCols[k], edgeWeights[k]);
+        }
+        return assignment.getMatching();
+    }
+}
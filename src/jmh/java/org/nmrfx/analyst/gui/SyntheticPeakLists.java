@@ -0,0 +1,168 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui;
+
+import java.util.Random;
+import org.nmrfx.peaks.Peak;
+import org.nmrfx.peaks.PeakDim;
+import org.nmrfx.peaks.PeakList;
+
+/**
+ * Generates predicted and experimental HMQC, TOCSY and NOESY peak lists with
+ * a realistic distribution of RNA base H6/C6 and H5/C5 shifts, for
+ * benchmarking the alignment code without a project or GUI.
+ * <p>
+ * Each residue gets an H6-C6 HMQC peak, and every other residue an H5-C5 peak
+ * and an H5-H6 TOCSY peak whose dimensions are linked to the HMQC peaks. Each
+ * HMQC peak has a few NOESY peaks, linked by the H dimension, to other
+ * residues. The experimental peaks are the predicted peaks displaced by
+ * gaussian errors, with 5% of them missing. Peak lists are created with a
+ * unique name so several sets can exist at the same time.
+ */
+public class SyntheticPeakLists {
+
+    static int nSets = 0;
+
+    final Random rand;
+    final String prefix;
+    public final PeakList predHMQC;
+    public final PeakList expHMQC;
+    public final PeakList predTOCSY;
+    public final PeakList expTOCSY;
+    public final PeakList predNOESY;
+    public final PeakList expNOESY;
+    float[][] predShifts;
+
+    /**
+     * Generate a set of lists.
+     *
+     * @param nHMQC the approximate number of predicted HMQC peaks
+     * @param seed seed of the random generator, so a given size always
+     * produces the same lists
+     */
+    public SyntheticPeakLists(int nHMQC, long seed) {
+        rand = new Random(seed);
+        synchronized (SyntheticPeakLists.class) {
+            prefix = "bench" + (nSets++) + "_";
+        }
+        predHMQC = new PeakList(prefix + "hmqc_pred", 2);
+        expHMQC = new PeakList(prefix + "hmqc_exp", 2);
+        predTOCSY = new PeakList(prefix + "tocsy_pred", 2);
+        expTOCSY = new PeakList(prefix + "tocsy_exp", 2);
+        predNOESY = new PeakList(prefix + "noesy_pred", 2);
+        expNOESY = new PeakList(prefix + "noesy_exp", 2);
+        int nResidues = (nHMQC * 2) / 3;
+        Peak[] h6Peaks = new Peak[nResidues];
+        Peak[] h5Peaks = new Peak[nResidues];
+        for (int iRes = 0; iRes < nResidues; iRes++) {
+            String res = String.valueOf(iRes + 1);
+            h6Peaks[iRes] = addPeak(predHMQC, res + ".H6", res + ".C6", 7.0 + rand.nextGaussian() * 0.5, 139.0 + rand.nextGaussian() * 2.0, 0.02);
+            if ((iRes % 2) == 0) {
+                h5Peaks[iRes] = addPeak(predHMQC, res + ".H5", res + ".C5", 5.5 + rand.nextGaussian() * 0.3, 97.0 + rand.nextGaussian() * 2.0, 0.02);
+                Peak tocsyPeak = addPeak(predTOCSY, res + ".H5", res + ".H6",
+                        h5Peaks[iRes].getPeakDim(0).getChemShiftValue(),
+                        h6Peaks[iRes].getPeakDim(0).getChemShiftValue(), 0.02);
+                PeakList.linkPeakDims(h5Peaks[iRes].getPeakDim(0), tocsyPeak.getPeakDim(0));
+                PeakList.linkPeakDims(h6Peaks[iRes].getPeakDim(0), tocsyPeak.getPeakDim(1));
+            }
+        }
+        for (int iRes = 0; iRes < nResidues; iRes++) {
+            for (int k = 1; k <= 3; k++) {
+                int jRes = (iRes + k) % nResidues;
+                PeakDim h1 = h6Peaks[iRes].getPeakDim(0);
+                PeakDim h2 = h6Peaks[jRes].getPeakDim(0);
+                Peak noePeak = addPeak(predNOESY, h1.getLabel(), h2.getLabel(),
+                        h1.getChemShiftValue(), h2.getChemShiftValue(), 0.02);
+                PeakList.linkPeakDims(h1, noePeak.getPeakDim(0));
+                PeakList.linkPeakDims(h2, noePeak.getPeakDim(1));
+            }
+        }
+        addExperimental(predHMQC, expHMQC, new double[]{0.05, 1.0});
+        addExperimental(predTOCSY, expTOCSY, new double[]{0.05, 0.05});
+        addExperimental(predNOESY, expNOESY, new double[]{0.05, 0.05});
+        predShifts = new float[][]{getShifts(predHMQC), getShifts(predTOCSY), getShifts(predNOESY)};
+    }
+
+    Peak addPeak(PeakList peakList, String label0, String label1, double ppm0, double ppm1, double width) {
+        Peak peak = peakList.getNewPeak();
+        String[] labels = {label0, label1};
+        double[] ppms = {ppm0, ppm1};
+        for (int iDim = 0; iDim < 2; iDim++) {
+            PeakDim peakDim = peak.getPeakDim(iDim);
+            peakDim.setLabel(labels[iDim]);
+            peakDim.setChemShiftValue((float) ppms[iDim]);
+            peakDim.setLineWidthValue((float) width);
+        }
+        peak.setIntensity(1.0f);
+        return peak;
+    }
+
+    void addExperimental(PeakList predList, PeakList expList, double[] sdev) {
+        for (Peak predPeak : predList.peaks()) {
+            if (rand.nextDouble() < 0.05) {
+                continue;
+            }
+            double ppm0 = predPeak.getPeakDim(0).getChemShiftValue() + rand.nextGaussian() * sdev[0];
+            double ppm1 = predPeak.getPeakDim(1).getChemShiftValue() + rand.nextGaussian() * sdev[1];
+            Peak expPeak = addPeak(expList, "", "", ppm0, ppm1, 0.02);
+            expPeak.setIntensity((float) (0.5 + rand.nextDouble()));
+        }
+    }
+
+    static float[] getShifts(PeakList peakList) {
+        float[] shifts = new float[peakList.size() * 2];
+        for (int j = 0; j < peakList.size(); j++) {
+            for (int iDim = 0; iDim < 2; iDim++) {
+                shifts[j * 2 + iDim] = peakList.getPeak(j).getPeakDim(iDim).getChemShiftValue();
+            }
+        }
+        return shifts;
+    }
+
+    static void setShifts(PeakList peakList, float[] shifts) {
+        for (int j = 0; j < peakList.size(); j++) {
+            for (int iDim = 0; iDim < 2; iDim++) {
+                PeakDim peakDim = peakList.getPeak(j).getPeakDim(iDim);
+                peakDim.setChemShiftValue(shifts[j * 2 + iDim]);
+                peakDim.setFrozen(false);
+            }
+        }
+    }
+
+    /**
+     * Move the predicted peaks back to the shifts they were generated with, so
+     * benchmarks that align them always start from the same state.
+     */
+    public void restorePredicted() {
+        setShifts(predHMQC, predShifts[0]);
+        setShifts(predTOCSY, predShifts[1]);
+        setShifts(predNOESY, predShifts[2]);
+    }
+
+    /**
+     * Create an aligner for the lists, with the NOESY limits covering all the
+     * generated peaks.
+     *
+     * @return the aligner
+     */
+    public PeakListAligner getAligner() {
+        PeakListAligner aligner = new PeakListAligner(prefix, predHMQC, expHMQC,
+                predTOCSY, expTOCSY, predNOESY, expNOESY);
+        double[][] limits = {{3.0, 10.0}, {3.0, 10.0}};
+        aligner.setLimits(limits);
+        aligner.setParallel(false);
+        return aligner;
+    }
+
+    /**
+     * Remove the lists from the global set of peak lists.
+     */
+    public void remove() {
+        for (PeakList peakList : new PeakList[]{predHMQC, expHMQC, predTOCSY, expTOCSY, predNOESY, expNOESY}) {
+            PeakList.remove(peakList.getName());
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javafx.collections.MapChangeListener;
+import org.nmrfx.analyst.peaks.Analyzer;
+import org.nmrfx.processor.datasets.Dataset;
+import org.nmrfx.processor.math.Vec;
+import org.nmrfx.processor.project.Project;
+
+/**
+ * The Analyzers of the 1D datasets, shared by the region and multiplet tools so
+ * that switching between spectra reuses the Analyzer (and its regions and peak
+ * list) of each dataset. The least recently used Analyzers are dropped when
+ * there are more than MAX_ENTRIES, and an Analyzer is removed when its dataset
+ * is closed. The automatic threshold of each dataset is cached too, and
+ * calculated again only when the dataset's data version changes. The version
+ * is cheap to get: it includes a modification count, increased by markChanged
+ * whenever code rewrites a dataset's data in place, and for a dataset in
+ * memory the identity of its vector and a few sampled values, so a new vector
+ * or an in-place rewrite by other code is detected without reading the whole
+ * vector; for a dataset in a file it includes the file's modification time
+ * and length. The threshold is estimated by a
+ * NoiseEstimator from a sample of the vector, or from the whole vector when a
+ * full pass is requested, as 5 times the median noise of blocks of the vector.
+ * This replaces Analyzer.calculateThreshold, so Find Regions now uses this
+ * threshold too; Analyzer.calculateThreshold is only used when the estimate
+ * fails.
+ * <p>
+ * Analyzer.setThreshold is the only way to give an Analyzer a threshold, and it
+ * marks the threshold as manual, so the registry records which thresholds the
+ * user set. A manual threshold (typed or from the crosshair) is kept: the
+ * automatic estimate is skipped until it is cleared or a full pass is
+ * requested.
+ */
+public class AnalyzerRegistry {
+
+    static final int MAX_ENTRIES = 16;
+    static final int N_VERSION_SAMPLES = 32;
+
+    static final Map<Dataset, Integer> MOD_COUNTS = new WeakHashMap<>();
+    static final Set<Analyzer> MANUAL_THRESHOLDS = Collections.newSetFromMap(new WeakHashMap<>());
+
+    static final Map<Dataset, Entry> ENTRIES = new LinkedHashMap<Dataset, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Dataset, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    static class Entry {
+
+        final Analyzer analyzer;
+        final NoiseEstimator estimator = new NoiseEstimator();
+        List<Object> version;
+        Double threshold = null;
+        double thresholdBound = 0.0;
+
+        Entry(Analyzer analyzer, List<Object> version) {
+            this.analyzer = analyzer;
+            this.version = version;
+        }
+    }
+
+    static Project watchedProject = null;
+
+    private AnalyzerRegistry() {
+    }
+
+    /**
+     * Record that the data of a dataset was changed in place, so cached values
+     * derived from it (thresholds, region integrals) are calculated again.
+     *
+     * @param dataset the dataset
+     */
+    public static void markChanged(Dataset dataset) {
+        synchronized (MOD_COUNTS) {
+            MOD_COUNTS.merge(dataset, 1, Integer::sum);
+        }
+    }
+
+    static int getModCount(Dataset dataset) {
+        synchronized (MOD_COUNTS) {
+            return MOD_COUNTS.getOrDefault(dataset, 0);
+        }
+    }
+
+    /**
+     * Get the data version of a dataset, which changes when its data does. It
+     * doesn't read the whole vector, so it can be called on every edit.
+     *
+     * @param dataset the dataset
+     * @return the version
+     */
+    static List<Object> getVersion(Dataset dataset) {
+        Vec vec = dataset.getVec();
+        int modCount = getModCount(dataset);
+        if (vec != null) {
+            return Arrays.asList(dataset.getSize(0), dataset.getScale(), modCount,
+                    System.identityHashCode(vec), sampleHash(vec));
+        }
+        String fileName = dataset.getCanonicalFile();
+        File file = fileName == null ? null : new File(fileName);
+        long modified = file == null ? 0L : file.lastModified();
+        long length = file == null ? 0L : file.length();
+        return Arrays.asList(dataset.getSize(0), dataset.getScale(), modCount, modified, length);
+    }
+
+    /**
+     * Hash N_VERSION_SAMPLES evenly spaced values of the vector.
+     */
+    static long sampleHash(Vec vec) {
+        long hash = 1L;
+        int size = vec.getSize();
+        int step = Math.max(1, size / N_VERSION_SAMPLES);
+        for (int i = step / 2; i < size; i += step) {
+            hash = 31L * hash + Double.doubleToLongBits(vec.getReal(i));
+        }
+        return hash;
+    }
+
+    /**
+     * Listen for datasets of the active project being closed, so their
+     * Analyzers and region integrals are dropped.
+     */
+    static void watchProject() {
+        Project project = Project.getActive();
+        if ((project != null) && (project != watchedProject)) {
+            project.addDatasetListListener((MapChangeListener) (MapChangeListener.Change change) -> {
+                Object removed = change.getValueRemoved();
+                if (change.wasRemoved() && (removed instanceof Dataset)) {
+                    remove((Dataset) removed);
+                    RegionIntegrator.remove((Dataset) removed);
+                }
+            });
+            watchedProject = project;
+        }
+    }
+
+    static Entry getEntry(Dataset dataset) {
+        watchProject();
+        Entry entry = ENTRIES.get(dataset);
+        if (entry == null) {
+            entry = new Entry(new Analyzer(dataset), getVersion(dataset));
+            ENTRIES.put(dataset, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Get the Analyzer of a dataset, creating it if necessary.
+     *
+     * @param dataset the 1D dataset
+     * @return the Analyzer
+     */
+    public static synchronized Analyzer get(Dataset dataset) {
+        return getEntry(dataset).analyzer;
+    }
+
+    /**
+     * Set the automatic threshold of the Analyzer from a sample of the
+     * dataset, estimating it only if it isn't cached or the dataset changed
+     * since it was estimated.
+     *
+     * @param analyzer the Analyzer
+     * @return the threshold
+     */
+    public static double calculateThreshold(Analyzer analyzer) {
+        return calculateThreshold(analyzer, false);
+    }
+
+    /**
+     * Set the automatic threshold of the Analyzer, unless the user set a
+     * manual threshold. A full pass over the dataset is always done when
+     * requested, and replaces the cached threshold and any manual threshold.
+     *
+     * @param analyzer the Analyzer
+     * @param full if true estimate the noise from the whole vector
+     * @return the threshold
+     */
+    public static synchronized double calculateThreshold(Analyzer analyzer, boolean full) {
+        if (!full && MANUAL_THRESHOLDS.contains(analyzer)) {
+            return analyzer.getThreshold();
+        }
+        Dataset dataset = analyzer.getDataset();
+        Entry entry = ENTRIES.get(dataset);
+        if ((entry == null) || (entry.analyzer != analyzer)) {
+            // not a registered Analyzer, nothing to cache
+            estimateThreshold(new NoiseEstimator(), analyzer, full);
+            return analyzer.getThreshold();
+        }
+        List<Object> version = getVersion(dataset);
+        if (!full && (entry.threshold != null) && version.equals(entry.version)) {
+            setAutoThreshold(analyzer, entry.threshold);
+        } else {
+            entry.thresholdBound = estimateThreshold(entry.estimator, analyzer, full);
+            entry.threshold = analyzer.getThreshold();
+            entry.version = version;
+        }
+        return analyzer.getThreshold();
+    }
+
+    static double estimateThreshold(NoiseEstimator estimator, Analyzer analyzer, boolean full) {
+        try {
+            estimator.setThreshold(analyzer, full);
+            return estimator.getThresholdBound();
+        } catch (IOException | IllegalArgumentException ex) {
+            Logger.getLogger(AnalyzerRegistry.class.getName()).log(Level.WARNING,
+                    "Noise estimate failed, using the Analyzer's threshold", ex);
+            // calculateThreshold does nothing while a threshold is set
+            analyzer.clearThreshold();
+            analyzer.calculateThreshold();
+            synchronized (AnalyzerRegistry.class) {
+                MANUAL_THRESHOLDS.remove(analyzer);
+            }
+            return 0.0;
+        }
+    }
+
+    /**
+     * Set an automatically calculated threshold, replacing a manual one.
+     *
+     * @param analyzer the Analyzer
+     * @param threshold the threshold
+     */
+    public static synchronized void setAutoThreshold(Analyzer analyzer, double threshold) {
+        analyzer.setThreshold(threshold);
+        MANUAL_THRESHOLDS.remove(analyzer);
+    }
+
+    /**
+     * Set a threshold chosen by the user, which is kept by calculateThreshold
+     * until it is cleared or a full pass is requested.
+     *
+     * @param analyzer the Analyzer
+     * @param threshold the threshold
+     */
+    public static synchronized void setManualThreshold(Analyzer analyzer, double threshold) {
+        analyzer.setThreshold(threshold);
+        MANUAL_THRESHOLDS.add(analyzer);
+    }
+
+    /**
+     * @param analyzer the Analyzer
+     * @return true if the user set the threshold of the Analyzer
+     */
+    public static synchronized boolean hasManualThreshold(Analyzer analyzer) {
+        return MANUAL_THRESHOLDS.contains(analyzer);
+    }
+
+    /**
+     * Clear the threshold of the Analyzer, manual or automatic.
+     *
+     * @param analyzer the Analyzer
+     */
+    public static synchronized void clearThreshold(Analyzer analyzer) {
+        analyzer.clearThreshold();
+        MANUAL_THRESHOLDS.remove(analyzer);
+    }
+
+    /**
+     * Get the 95% confidence bound of the cached threshold of a dataset.
+     *
+     * @param dataset the dataset
+     * @return the bound, 0 if the threshold came from a full pass or isn't
+     * cached
+     */
+    public static synchronized double getThresholdBound(Dataset dataset) {
+        Entry entry = ENTRIES.get(dataset);
+        return (entry == null) || (entry.threshold == null) ? 0.0 : entry.thresholdBound;
+    }
+
+    /**
+     * Remove the Analyzer of a dataset, for example when the dataset is
+     * closed.
+     *
+     * @param dataset the dataset
+     */
+    public static synchronized void remove(Dataset dataset) {
+        ENTRIES.remove(dataset);
+        synchronized (MOD_COUNTS) {
+            MOD_COUNTS.remove(dataset);
+        }
+    }
+}
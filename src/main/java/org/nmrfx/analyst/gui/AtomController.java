@@ -87,7 +87,7 @@ import org.nmrfx.utils.GUIUtils;
  *
  * @author johnsonb
  */
-public class AtomController implements Initializable, FreezeListener {
+public class AtomController implements Initializable, FreezeListener, FreezeSetListener {
 
     static final DecimalFormat formatter = new DecimalFormat();
     static final Map<String, String> filterMap = new HashMap<>();
@@ -150,6 +150,7 @@ public class AtomController implements Initializable, FreezeListener {
             }
         });
         PeakList.registerFreezeListener(this);
+        FreezeTransaction.registerListener(this);
         updateView();
     }
 
@@ -267,6 +268,19 @@ public class AtomController implements Initializable, FreezeListener {
 
     @Override
     public void freezeHappened(Peak peak, boolean state) {
+        if (FreezeTransaction.isApplying()) {
+            // the whole transaction is handled in freezeSetHappened
+            return;
+        }
+        refreshAtoms();
+    }
+
+    @Override
+    public void freezeSetHappened(Map<Peak, Boolean> changes) {
+        refreshAtoms();
+    }
+
+    void refreshAtoms() {
         if (Platform.isFxApplicationThread()) {
             atomTableView.refresh();
         } else {
@@ -0,0 +1,108 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.nmrfx.analyst.gui.PeakListAligner.AlignmentResult;
+
+/**
+ * Runs the auto-alignment of several independent sets of peak lists (for
+ * example one per construct) in parallel, without a GUI. Intended to be used
+ * from scripts:
+ * <pre>
+ * batch = AutoAlignBatch(4)
+ * batch.add(aligner)
+ * results = batch.run()
+ * batch.writeResults(results, writer)
+ * </pre>
+ */
+public class AutoAlignBatch {
+
+    final int nThreads;
+    final List<PeakListAligner> aligners = new ArrayList<>();
+
+    /**
+     * Create a batch.
+     *
+     * @param nThreads the number of alignments to run at the same time. If not
+     * positive the number of available processors is used.
+     */
+    public AutoAlignBatch(int nThreads) {
+        this.nThreads = nThreads > 0 ? nThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Add an aligner to the batch. Its limits must have been set. The peak
+     * lists of different aligners must not be shared.
+     *
+     * @param aligner the aligner
+     */
+    public void add(PeakListAligner aligner) {
+        aligners.add(aligner);
+    }
+
+    /**
+     * Run all the alignments. Each alignment evaluates its pair weights on a
+     * single thread, as the batch already runs alignments concurrently.
+     *
+     * @return the results, in the order the aligners were added
+     * @throws InterruptedException if interrupted while waiting for results
+     */
+    public List<AlignmentResult> run() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads, r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<AlignmentResult> results = new ArrayList<>();
+        try {
+            List<Future<AlignmentResult>> futures = new ArrayList<>();
+            for (PeakListAligner aligner : aligners) {
+                aligner.setParallel(nThreads == 1);
+                futures.add(executor.submit(aligner::align));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException eE) {
+                    AlignmentResult result = new AlignmentResult(aligners.get(i).getName());
+                    result.setError(eE);
+                    results.add(result);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    /**
+     * Write the results as a tab separated table with a header line.
+     *
+     * @param results the results
+     * @param writer where to write the table
+     * @throws IOException if an I/O error occurs
+     */
+    public static void writeResults(List<AlignmentResult> results, Writer writer) throws IOException {
+        PrintWriter printWriter = new PrintWriter(writer);
+        printWriter.println(AlignmentResult.getHeader());
+        for (AlignmentResult result : results) {
+            printWriter.println(result.toTSV());
+        }
+        printWriter.flush();
+        if (printWriter.checkError()) {
+            throw new IOException("Error writing alignment results");
+        }
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+import org.nmrfx.analyst.peaks.Analyzer;
+import org.nmrfx.datasets.DatasetRegion;
+import org.nmrfx.peaks.InvalidPeakException;
+import org.nmrfx.peaks.PeakList;
+import org.nmrfx.peaks.io.PeakWriter;
+import org.nmrfx.processor.datasets.Dataset;
+
+/**
+ * Runs the full 1D analysis (threshold, regions, integration, peak picking
+ * and fitting) on many 1D datasets, for example all the spectra of a plate,
+ * with a fixed number of datasets analyzed at the same time. Each dataset is
+ * analyzed with its Analyzer from AnalyzerRegistry, so the region and
+ * multiplet tools show the new regions and peak list. The results can be
+ * written as one table with a line per region, and an xpk2 peak list file per
+ * dataset. Intended to be used from scripts or the region tool:
+ * <pre>
+ * batch = BatchAnalyzer1D(8)
+ * batch.addAll(datasets)
+ * results = batch.run(None, None)
+ * batch.writeResults(results, outDir)
+ * </pre>
+ * The threshold, regions and integrals are calculated on the worker threads.
+ * Only the steps that create or change registered peak lists run on the apply
+ * executor: peak picking, which creates the dataset's peak list, making the
+ * copies used by the fits, and applying the fitted peaks. The fits run on the
+ * worker threads, on the copies (see RegionFitter). When the datasets may be
+ * displayed, set the apply executor to Platform::runLater and call run from a
+ * background thread, and don't edit the regions of the datasets while it
+ * runs.
+ */
+public class BatchAnalyzer1D {
+
+    final int nThreads;
+    final List<Dataset> datasets = new ArrayList<>();
+    Executor applyExecutor = Runnable::run;
+
+    /**
+     * The outcome of analyzing one dataset.
+     */
+    public static class DatasetResult {
+
+        final String datasetName;
+        double threshold = Double.NaN;
+        final List<double[]> regions = new ArrayList<>();
+        PeakList peakList = null;
+        double time = 0.0;
+        Exception error = null;
+
+        DatasetResult(String datasetName) {
+            this.datasetName = datasetName;
+        }
+
+        public String getDatasetName() {
+            return datasetName;
+        }
+
+        public double getThreshold() {
+            return threshold;
+        }
+
+        /**
+         * @return the start, end and integral of each region
+         */
+        public List<double[]> getRegions() {
+            return Collections.unmodifiableList(regions);
+        }
+
+        public PeakList getPeakList() {
+            return peakList;
+        }
+
+        /**
+         * @return the time of the analysis, in ms
+         */
+        public double getTime() {
+            return time;
+        }
+
+        public Exception getError() {
+            return error;
+        }
+
+        public boolean failed() {
+            return error != null;
+        }
+    }
+
+    /**
+     * Create a batch.
+     *
+     * @param nThreads the number of datasets to analyze at the same time. If
+     * not positive the number of available processors is used.
+     */
+    public BatchAnalyzer1D(int nThreads) {
+        this.nThreads = nThreads > 0 ? nThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Add a dataset. Datasets that are not 1D are rejected.
+     *
+     * @param dataset the dataset
+     * @return true if the dataset was added
+     */
+    public boolean add(Dataset dataset) {
+        if (dataset.getNDim() != 1) {
+            return false;
+        }
+        datasets.add(dataset);
+        return true;
+    }
+
+    /**
+     * Add all the 1D datasets of a collection, for example Dataset.datasets().
+     *
+     * @param datasets the datasets, objects that aren't datasets are skipped
+     * @return the number of datasets added
+     */
+    public int addAll(Collection<?> datasets) {
+        int n = 0;
+        for (Object dataset : datasets) {
+            if ((dataset instanceof Dataset) && add((Dataset) dataset)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    public int size() {
+        return datasets.size();
+    }
+
+    /**
+     * Set where the regions and peak lists of the datasets are changed.
+     *
+     * @param applyExecutor the executor, for example Platform::runLater. The
+     * default runs on the calling worker thread.
+     */
+    public void setApplyExecutor(Executor applyExecutor) {
+        this.applyExecutor = applyExecutor;
+    }
+
+    /**
+     * Run an action on the apply executor and wait for it, even if
+     * interrupted, so an action isn't left to run after the analysis of its
+     * dataset was abandoned.
+     */
+    <T> T apply(Callable<T> action) throws Exception {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        applyExecutor.execute(() -> {
+            try {
+                future.complete(action.call());
+            } catch (Exception ex) {
+                future.completeExceptionally(ex);
+            }
+        });
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException iE) {
+                    interrupted = true;
+                } catch (ExecutionException eE) {
+                    throw (Exception) eE.getCause();
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    DatasetResult analyze(Dataset dataset, BooleanSupplier cancelled) {
+        DatasetResult result = new DatasetResult(dataset.getName());
+        long start = System.nanoTime();
+        RegionFitter fitter = null;
+        try {
+            Analyzer analyzer = AnalyzerRegistry.get(dataset);
+            result.threshold = AnalyzerRegistry.calculateThreshold(analyzer);
+            analyzer.autoSetRegions();
+            analyzer.integrate();
+            fitter = apply(() -> {
+                analyzer.peakPickRegions();
+                result.peakList = analyzer.getPeakList();
+                TreeSet<DatasetRegion> regions = dataset.getRegions();
+                RegionFitter regionFitter = new RegionFitter(dataset, result.peakList,
+                        regions == null ? Collections.emptyList() : regions);
+                // the datasets are already analyzed in parallel
+                regionFitter.setNThreads(1);
+                regionFitter.prepare();
+                return regionFitter;
+            });
+            List<RegionFitter.FitResult> fitResults = fitter.fit(cancelled, null);
+            apply(() -> {
+                for (RegionFitter.FitResult fitResult : fitResults) {
+                    fitResult.apply();
+                    if (fitResult.failed() && (result.error == null)) {
+                        result.error = fitResult.getError();
+                    }
+                }
+                TreeSet<DatasetRegion> regions = dataset.getRegions();
+                if (regions != null) {
+                    for (DatasetRegion region : regions) {
+                        double[] values = {region.getRegionStart(0), region.getRegionEnd(0), region.getIntegral()};
+                        result.regions.add(values);
+                    }
+                }
+                return null;
+            });
+        } catch (Exception ex) {
+            result.error = ex;
+        } finally {
+            if (fitter != null) {
+                applyExecutor.execute(fitter::dispose);
+            }
+        }
+        result.time = (System.nanoTime() - start) / 1.0e6;
+        return result;
+    }
+
+    /**
+     * Analyze the datasets.
+     *
+     * @param cancelled polled before each dataset, can be null
+     * @param progress called with the number of datasets done, can be null
+     * @return the results, in the order the datasets were added. Datasets
+     * skipped because of cancellation are not included.
+     * @throws InterruptedException if interrupted while waiting for results
+     */
+    public List<DatasetResult> run(BooleanSupplier cancelled, IntConsumer progress) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads, r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<DatasetResult> results = new ArrayList<>();
+        try {
+            AtomicInteger nDone = new AtomicInteger(0);
+            List<Future<DatasetResult>> futures = new ArrayList<>();
+            for (Dataset dataset : datasets) {
+                futures.add(executor.submit(() -> {
+                    if ((cancelled != null) && cancelled.getAsBoolean()) {
+                        return null;
+                    }
+                    DatasetResult result = analyze(dataset, cancelled);
+                    if (progress != null) {
+                        progress.accept(nDone.incrementAndGet());
+                    }
+                    return result;
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    DatasetResult result = futures.get(i).get();
+                    if (result != null) {
+                        results.add(result);
+                    }
+                } catch (ExecutionException eE) {
+                    DatasetResult result = new DatasetResult(datasets.get(i).getName());
+                    result.error = eE;
+                    results.add(result);
+                }
+            }
+        } finally {
+            // datasets that haven't begun are dropped, running ones finish
+            executor.shutdownNow();
+            ExecutorUtils.awaitTermination(executor);
+        }
+        return results;
+    }
+
+    static String getRootName(String name) {
+        int dotIndex = name.lastIndexOf('.');
+        return dotIndex > 0 ? name.substring(0, dotIndex) : name;
+    }
+
+    /**
+     * Write the results to a directory: analysis.tsv with a line per region
+     * (or per failed dataset) and, for each dataset with peaks, its peak list
+     * as an xpk2 file named after the dataset, which is read back when the
+     * dataset is opened from the same directory.
+     *
+     * @param results the results
+     * @param dir the directory
+     * @throws IOException if an I/O error occurs
+     */
+    public static void writeResults(List<DatasetResult> results, File dir) throws IOException {
+        try (FileWriter writer = new FileWriter(new File(dir, "analysis.tsv"))) {
+            writeTable(results, writer);
+        }
+        PeakWriter peakWriter = new PeakWriter();
+        for (DatasetResult result : results) {
+            if (result.peakList != null) {
+                File file = new File(dir, getRootName(result.datasetName) + ".xpk2");
+                try (FileWriter writer = new FileWriter(file)) {
+                    peakWriter.writePeaksXPK2(writer, result.peakList);
+                } catch (InvalidPeakException ipE) {
+                    throw new IOException("Error writing peaks of " + result.datasetName, ipE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the results as a tab separated table with a header line and a line
+     * per region.
+     *
+     * @param results the results
+     * @param writer where to write the table
+     * @throws IOException if an I/O error occurs
+     */
+    public static void writeTable(List<DatasetResult> results, Writer writer) throws IOException {
+        PrintWriter printWriter = new PrintWriter(writer);
+        printWriter.println("dataset\tthreshold\tregion\tstart\tend\tintegral\terror");
+        for (DatasetResult result : results) {
+            if (result.failed()) {
+                printWriter.printf("%s\t%.5g\t\t\t\t\t%s\n", result.datasetName, result.threshold,
+                        String.valueOf(result.error.getMessage()).replace('\t', ' ').replace('\n', ' '));
+            } else {
+                int iRegion = 0;
+                for (double[] region : result.regions) {
+                    printWriter.printf("%s\t%.5g\t%d\t%.4f\t%.4f\t%.5g\t\n", result.datasetName,
+                            result.threshold, iRegion++, region[0], region[1], region[2]);
+                }
+            }
+        }
+        printWriter.flush();
+        if (printWriter.checkError()) {
+            throw new IOException("Error writing analysis results");
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.nmrfx.peaks.Peak;
+import org.nmrfx.peaks.PeakList;
+import org.nmrfx.processor.datasets.Dataset;
+
+/**
+ * Tweaks (refines the centers of) many peaks at once. Peaks are grouped by the
+ * dataset of their peak list, the dataset and dimension mapping of each peak
+ * list are resolved once, and each dataset's peaks are tweaked in order of
+ * position. The parallelism is only across datasets: the peaks of one dataset
+ * are tweaked by a single thread, each peak reading its own region of the
+ * data, as dataset reads are not guaranteed to be thread safe.
+ * <p>
+ * The workers tweak detached copies of the peaks. The new positions are
+ * copied to the peaks on the thread that called tweak, normally the FX
+ * thread, so peaks are never changed from a worker thread.
+ * <p>
+ * Peaks linked in all dimensions to a tweaked peak are tweaked too, in a
+ * second pass after all the primary peaks.
+ */
+public class BulkPeakTweaker {
+
+    final Set<Peak> peaks = new LinkedHashSet<>();
+    final Map<PeakList, ListInfo> listInfos = new HashMap<>();
+    final Set<Peak> failed = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Dataset and dimension mapping of a peak list.
+     */
+    static class ListInfo {
+
+        final Dataset dataset;
+        final int[] pdim;
+        final int[] planes;
+
+        ListInfo(Dataset dataset, int[] pdim, int[] planes) {
+            this.dataset = dataset;
+            this.pdim = pdim;
+            this.planes = planes;
+        }
+    }
+
+    public void add(Peak peak) {
+        peaks.add(peak);
+    }
+
+    public void addAll(Collection<Peak> peaks) {
+        this.peaks.addAll(peaks);
+    }
+
+    public int size() {
+        return peaks.size();
+    }
+
+    /**
+     * Find all peaks that are linked in all dimensions to the specified peak.
+     * These are the peaks that should be tweaked when the peak is tweaked.
+     *
+     * @param peak the peak
+     * @return the linked peaks, not including peak
+     */
+    public static List<Peak> getTweakLinkedPeaks(Peak peak) {
+        Set<Peak> peakSet = new HashSet<>();
+        int nDim = peak.getPeakList().getNDim();
+        for (int i = 0; i < nDim; i++) {
+            List<Peak> peaks = PeakList.getLinks(peak, i);
+            peakSet.addAll(peaks);
+        }
+
+        List<Peak> peaksB = new ArrayList<>();
+        for (Peak speak : peakSet) {
+            if (speak == peak) {
+                continue;
+            }
+            boolean ok = true;
+            for (int i = 0; i < nDim; i++) {
+                if (!PeakList.isLinked(peak, i, speak)) {
+                    ok = false;
+                    break;
+                }
+            }
+            if (ok) {
+                peaksB.add(speak);
+            }
+        }
+        return peaksB;
+    }
+
+    ListInfo getListInfo(PeakList peakList) {
+        return listInfos.computeIfAbsent(peakList, k -> {
+            Dataset dataset = Dataset.getDataset(peakList.fileName);
+            if (dataset == null) {
+                return null;
+            }
+            int[] pdim = peakList.getDimsForDataset(dataset, true);
+            int nExtraDim = dataset.getNDim() - peakList.getNDim();
+            int[] planes = new int[nExtraDim];
+            return new ListInfo(dataset, pdim, planes);
+        });
+    }
+
+    Map<Dataset, List<Peak>> groupByDataset(Collection<Peak> groupPeaks) {
+        Map<Dataset, List<Peak>> groups = new LinkedHashMap<>();
+        for (Peak peak : groupPeaks) {
+            ListInfo info = getListInfo(peak.getPeakList());
+            if (info == null) {
+                failed.add(peak);
+            } else {
+                groups.computeIfAbsent(info.dataset, k -> new ArrayList<>()).add(peak);
+            }
+        }
+        Comparator<Peak> posComparator = Comparator.comparingDouble(p -> p.getPeakDim(0).getChemShiftValue());
+        groups.values().forEach(group -> group.sort(posComparator));
+        return groups;
+    }
+
+    void tweakGroups(Map<Dataset, List<Peak>> groups, boolean parallel) {
+        // copies and list infos are all made here so workers only read the maps
+        Map<Peak, Peak> copies = new HashMap<>();
+        groups.values().forEach(group -> group.forEach(peak -> copies.put(peak, peak.copy(peak.getPeakList()))));
+        Collection<List<Peak>> groupPeaks = groups.values();
+        (parallel ? groupPeaks.parallelStream() : groupPeaks.stream()).forEach(group -> {
+            for (Peak peak : group) {
+                ListInfo info = listInfos.get(peak.getPeakList());
+                try {
+                    copies.get(peak).tweak(info.dataset, info.pdim, info.planes);
+                } catch (IOException ioE) {
+                    failed.add(peak);
+                }
+            }
+        });
+        copies.forEach((peak, copy) -> {
+            if (!failed.contains(peak)) {
+                applyTweak(peak, copy);
+            }
+        });
+    }
+
+    static void applyTweak(Peak peak, Peak copy) {
+        int nDim = peak.getPeakList().getNDim();
+        for (int i = 0; i < nDim; i++) {
+            peak.getPeakDim(i).setChemShiftValue(copy.getPeakDim(i).getChemShiftValue());
+        }
+        peak.setIntensity(copy.getIntensity());
+    }
+
+    /**
+     * Tweak the peaks and the peaks linked to them. Should be called on the FX
+     * thread, as the peaks are changed on the calling thread.
+     *
+     * @param parallel process different datasets in parallel
+     * @return the primary peaks that were tweaked successfully
+     */
+    public List<Peak> tweak(boolean parallel) {
+        failed.clear();
+        tweakGroups(groupByDataset(peaks), parallel);
+        List<Peak> tweaked = new ArrayList<>();
+        Set<Peak> linkedPeaks = new LinkedHashSet<>();
+        for (Peak peak : peaks) {
+            if (!failed.contains(peak)) {
+                peak.setFrozen(true, false);
+                tweaked.add(peak);
+                linkedPeaks.addAll(getTweakLinkedPeaks(peak));
+            }
+        }
+        linkedPeaks.removeAll(peaks);
+        tweakGroups(groupByDataset(linkedPeaks), parallel);
+        return Collections.unmodifiableList(tweaked);
+    }
+}
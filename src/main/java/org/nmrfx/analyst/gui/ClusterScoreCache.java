@@ -0,0 +1,45 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.nmrfx.processor.optimization.PeakCluster;
+import org.nmrfx.processor.optimization.PeakClusterMatcher;
+import org.nmrfx.analyst.gui.ShiftedPeakCluster.ClusterScore;
+
+/**
+ * Memo cache of the best experimental cluster score for a predicted cluster
+ * moved to a given shift. Scores are keyed by the exact shift, the shift of
+ * an experimental HMQC peak, so a cached score is the one the cluster would
+ * get if scored again. The cache is safe for concurrent use: cached scores are
+ * read without locking, and scores are calculated holding the cache's lock,
+ * see ShiftedPeakCluster. It must be cleared whenever the clusters of the
+ * matchers are rebuilt.
+ */
+public class ClusterScoreCache {
+
+    final Object scoreLock = new Object();
+    final Map<PeakCluster, Map<Float, ClusterScore>> scores = new ConcurrentHashMap<>();
+
+    public ClusterScore getBestScore(PeakClusterMatcher matcher, PeakCluster predCluster, float shift) {
+        Map<Float, ClusterScore> clusterScores = scores.computeIfAbsent(predCluster, k -> new ConcurrentHashMap<>());
+        ClusterScore score = clusterScores.get(shift);
+        if (score == null) {
+            score = new ShiftedPeakCluster(predCluster, shift).bestMatch(matcher.getExpPeakClus(), scoreLock);
+            clusterScores.putIfAbsent(shift, score);
+        }
+        return score;
+    }
+
+    public void clear() {
+        scores.clear();
+    }
+
+    public int size() {
+        return scores.values().stream().mapToInt(Map::size).sum();
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Helpers for the thread pools used by the background fits and alignments.
+ */
+public class ExecutorUtils {
+
+    private ExecutorUtils() {
+    }
+
+    /**
+     * Wait for the executor's tasks to finish, even if interrupted (cancelling
+     * the FX task interrupts its thread). The interrupt status is restored
+     * before returning.
+     *
+     * @param executor the executor, which should already be shut down
+     */
+    public static void awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+        while (!executor.isTerminated()) {
+            try {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException iE) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
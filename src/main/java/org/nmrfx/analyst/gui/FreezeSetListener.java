@@ -0,0 +1,24 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui;
+
+import java.util.Map;
+import org.nmrfx.peaks.Peak;
+
+/**
+ * Listener for the coalesced freeze changes emitted when a FreezeTransaction
+ * is committed.
+ */
+public interface FreezeSetListener {
+
+    /**
+     * Called once per committed transaction.
+     *
+     * @param changes the peaks whose frozen state was set, in the order they
+     * were first changed, with their final state
+     */
+    void freezeSetHappened(Map<Peak, Boolean> changes);
+}
@@ -0,0 +1,127 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.nmrfx.peaks.Peak;
+import org.nmrfx.peaks.PeakDim;
+import org.nmrfx.peaks.PeakList;
+
+/**
+ * Collects the freeze and thaw changes of a slider operation so listeners are
+ * notified once, with the whole change set, when the transaction is
+ * committed. No per peak notifications are sent by the transaction.
+ * FreezeListeners that also implement FreezeSetListener should ignore any per
+ * peak notification sent while isApplying() is true, as the change will be
+ * part of the change set.
+ */
+public class FreezeTransaction {
+
+    static final List<FreezeSetListener> listeners = new CopyOnWriteArrayList<>();
+    static volatile boolean applying = false;
+
+    final Map<Peak, Boolean> changes = new LinkedHashMap<>();
+    boolean committed = false;
+
+    public static void registerListener(FreezeSetListener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    public static void removeListener(FreezeSetListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Whether a transaction is currently setting the frozen state of a peak.
+     *
+     * @return true while a change is applied
+     */
+    public static boolean isApplying() {
+        return applying;
+    }
+
+    /**
+     * Set the frozen state of a peak and record the change. Peak.setFrozen
+     * also sets the state of peaks linked to the peak; those whose state
+     * changed are recorded too.
+     *
+     * @param peak the peak
+     * @param state the new frozen state
+     * @param useAllConditions passed to Peak.setFrozen
+     */
+    public void freeze(Peak peak, boolean state, boolean useAllConditions) {
+        Map<Peak, List<Boolean>> linkedStates = new LinkedHashMap<>();
+        for (int iDim = 0; iDim < peak.getPeakDims().length; iDim++) {
+            for (Peak linkedPeak : PeakList.getLinks(peak, iDim)) {
+                if (linkedPeak != peak) {
+                    linkedStates.computeIfAbsent(linkedPeak, FreezeTransaction::getFrozenStates);
+                }
+            }
+        }
+        applying = true;
+        try {
+            peak.setFrozen(state, useAllConditions);
+        } finally {
+            applying = false;
+        }
+        record(peak, state);
+        linkedStates.forEach((linkedPeak, before) -> {
+            if (!before.equals(getFrozenStates(linkedPeak))) {
+                record(linkedPeak, state);
+            }
+        });
+    }
+
+    static List<Boolean> getFrozenStates(Peak peak) {
+        List<Boolean> states = new ArrayList<>();
+        for (PeakDim peakDim : peak.getPeakDims()) {
+            states.add(peakDim.isFrozen());
+        }
+        return states;
+    }
+
+    /**
+     * Record a change of frozen state that was made directly on the peak.
+     *
+     * @param peak the peak
+     * @param state the new frozen state
+     */
+    public void record(Peak peak, boolean state) {
+        if (committed) {
+            throw new IllegalStateException("Freeze transaction already committed");
+        }
+        changes.put(peak, state);
+    }
+
+    public int size() {
+        return changes.size();
+    }
+
+    /**
+     * Notify the FreezeSetListeners, once, of the recorded changes. Does
+     * nothing if no changes were recorded.
+     */
+    public void commit() {
+        if (committed) {
+            return;
+        }
+        committed = true;
+        if (changes.isEmpty()) {
+            return;
+        }
+        Map<Peak, Boolean> changeSet = Collections.unmodifiableMap(changes);
+        for (FreezeSetListener listener : listeners) {
+            listener.freezeSetHappened(changeSet);
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+import org.nmrfx.analyst.gui.PeakListAligner.AlignmentResult;
+import org.nmrfx.peaks.Peak;
+import org.nmrfx.peaks.PeakDim;
+import org.nmrfx.peaks.PeakList;
+
+/**
+ * Runs several alignments of the same peak lists, each starting from
+ * reference shifts randomized with a different seed, and keeps the best
+ * scoring one. Each start works on its own copies of the predicted HMQC, TOCSY
+ * and NOESY lists (with the links between them reproduced), so starts can run
+ * concurrently and the live peak lists are only changed when the best result
+ * is applied. The experimental lists are shared: the NOESY list is prepared
+ * for clustering once, by prepare, and the starts then only read them.
+ * <p>
+ * Creating a PeakList registers it with the active project, so the copies are
+ * made by prepare and removed by dispose, which must both be called on the FX
+ * thread, before and after run. run only returns once every start it
+ * submitted has finished, so the copies are never removed while in use.
+ */
+public class MultiStartAligner {
+
+    static final AtomicInteger copyCount = new AtomicInteger(0);
+
+    final PeakListAligner template;
+    final int nStarts;
+    final long seed;
+    int nThreads = Runtime.getRuntime().availableProcessors();
+    final List<PeakList[]> copies = new ArrayList<>();
+
+    /**
+     * Create a multi-start aligner.
+     *
+     * @param template aligner with the live lists, scales, limits and matching
+     * mode to use for each start. Limits must be set.
+     * @param nStarts the number of randomized starts
+     * @param seed seed of the first start; start i uses seed + i so runs are
+     * reproducible
+     */
+    public MultiStartAligner(PeakListAligner template, int nStarts, long seed) {
+        this.template = template;
+        this.nStarts = nStarts;
+        this.seed = seed;
+    }
+
+    public void setNThreads(int nThreads) {
+        this.nThreads = nThreads > 0 ? nThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * The shifts and frozen states of the predicted lists at the end of a
+     * start, in peak and dimension order.
+     */
+    static class Snapshot {
+
+        final float[][] shifts;
+        final boolean[][] frozen;
+
+        Snapshot(PeakList[] peakLists) {
+            shifts = new float[peakLists.length][];
+            frozen = new boolean[peakLists.length][];
+            for (int iList = 0; iList < peakLists.length; iList++) {
+                PeakList peakList = peakLists[iList];
+                int nDim = peakList.getNDim();
+                shifts[iList] = new float[peakList.size() * nDim];
+                frozen[iList] = new boolean[peakList.size() * nDim];
+                for (int j = 0; j < peakList.size(); j++) {
+                    for (int iDim = 0; iDim < nDim; iDim++) {
+                        PeakDim peakDim = peakList.getPeak(j).getPeakDim(iDim);
+                        shifts[iList][j * nDim + iDim] = peakDim.getChemShiftValue();
+                        frozen[iList][j * nDim + iDim] = peakDim.isFrozen();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The results of all starts and the final state of the best one.
+     */
+    public static class MultiStartResult {
+
+        final List<AlignmentResult> results;
+        final int best;
+        final Snapshot snapshot;
+
+        MultiStartResult(List<AlignmentResult> results, int best, Snapshot snapshot) {
+            this.results = Collections.unmodifiableList(results);
+            this.best = best;
+            this.snapshot = snapshot;
+        }
+
+        public List<AlignmentResult> getResults() {
+            return results;
+        }
+
+        /**
+         * @return the index of the best start, or -1 if no start succeeded
+         */
+        public int getBest() {
+            return best;
+        }
+
+        public AlignmentResult getBestResult() {
+            return best >= 0 ? results.get(best) : null;
+        }
+    }
+
+    PeakList[] getPredLists() {
+        PeakList[] lists = {template.predHMQCList, template.predTOCSYList, template.predNOESYList};
+        return lists;
+    }
+
+    /**
+     * Copy the predicted lists. The copies are unlinked from the originals and
+     * the links among the originals are reproduced among the copies.
+     */
+    PeakList[] copyLists(PeakList[] peakLists) {
+        int iCopy = copyCount.incrementAndGet();
+        PeakList[] copies = new PeakList[peakLists.length];
+        Map<Peak, Peak> peakMap = new IdentityHashMap<>();
+        Map<PeakList, Integer> listIndex = new IdentityHashMap<>();
+        for (int iList = 0; iList < peakLists.length; iList++) {
+            PeakList peakList = peakLists[iList];
+            copies[iList] = peakList.copy(peakList.getName() + "_ms" + iCopy, false, false, true);
+            listIndex.put(peakList, iList);
+            for (int j = 0; j < peakList.size(); j++) {
+                Peak copyPeak = copies[iList].getPeak(j);
+                for (PeakDim peakDim : copyPeak.getPeakDims()) {
+                    peakDim.unLink();
+                }
+                peakMap.put(peakList.getPeak(j), copyPeak);
+            }
+        }
+        for (PeakList peakList : peakLists) {
+            for (Peak peak : peakList.peaks()) {
+                for (int iDim = 0; iDim < peakList.getNDim(); iDim++) {
+                    // link each copied dim to the copy of the first linked dim so the
+                    // copies end up with the same link groups as the originals
+                    PeakDim root = null;
+                    for (PeakDim linkedDim : PeakList.getLinkedPeakDims(peak, iDim)) {
+                        if (listIndex.containsKey(linkedDim.getPeakList())) {
+                            root = linkedDim;
+                            break;
+                        }
+                    }
+                    if ((root != null) && (root != peak.getPeakDim(iDim))) {
+                        PeakDim copyRoot = peakMap.get(root.getPeak()).getPeakDim(root.getSpectralDim());
+                        PeakList.linkPeakDims(copyRoot, peakMap.get(peak).getPeakDim(iDim));
+                    }
+                }
+            }
+        }
+        return copies;
+    }
+
+    AlignmentResult runStart(int iStart, PeakList[] copies) {
+        ResolvedLabelCache labelCache = new ResolvedLabelCache();
+        List<ResolvedLabelCache.ResolvedList> resolvedLists = new ArrayList<>();
+        for (PeakList peakList : copies) {
+            resolvedLists.add(labelCache.getResolved(peakList));
+        }
+        double[] shifts = labelCache.getRefShifts(new Random(seed + iStart));
+        for (ResolvedLabelCache.ResolvedList resolved : resolvedLists) {
+            ResolvedLabelCache.applyShifts(resolved, shifts);
+        }
+        // thaw the copies directly, the freeze listeners only concern live lists
+        for (PeakList peakList : copies) {
+            for (Peak peak : peakList.peaks()) {
+                for (PeakDim peakDim : peak.getPeakDims()) {
+                    peakDim.setFrozen(false);
+                }
+            }
+        }
+        PeakListAligner aligner = new PeakListAligner(template.getName() + "_" + iStart,
+                copies[0], template.expHMQCList, copies[1], template.expTOCSYList,
+                copies[2], template.expNOESYList);
+        aligner.setScales(template.scale, template.tocsyScale);
+        aligner.setLimits(template.limits);
+        aligner.setExpListsPrepared(true);
+        aligner.setSparseMatching(template.sparseMatching);
+        aligner.setParallel(nThreads == 1);
+        return aligner.align();
+    }
+
+    /**
+     * Prepare the experimental lists and make the copies of the predicted
+     * lists used by the starts. Must be called on the FX thread, before run.
+     */
+    public void prepare() {
+        dispose();
+        template.prepareExpLists();
+        PeakList[] predLists = getPredLists();
+        for (int iStart = 0; iStart < nStarts; iStart++) {
+            copies.add(copyLists(predLists));
+        }
+    }
+
+    /**
+     * Remove the copies made by prepare. Must be called on the FX thread, after
+     * run has returned.
+     */
+    public void dispose() {
+        for (PeakList[] startLists : copies) {
+            for (PeakList peakList : startLists) {
+                PeakList.remove(peakList.getName());
+            }
+        }
+        copies.clear();
+    }
+
+    /**
+     * Run the starts on the copies made by prepare. The live lists are not
+     * changed; use apply to copy the best result to them. Returns only when
+     * all started starts have finished.
+     *
+     * @param cancelled polled before each start, can be null
+     * @param progress called with the number of starts completed, can be null
+     * @return the results, or null if cancelled
+     * @throws InterruptedException if interrupted while waiting for the starts
+     */
+    public MultiStartResult run(BooleanSupplier cancelled, IntConsumer progress) throws InterruptedException {
+        if (copies.size() != nStarts) {
+            throw new IllegalStateException("Copies of the peak lists not prepared");
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads, r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            AtomicInteger nDone = new AtomicInteger(0);
+            List<Future<AlignmentResult>> futures = new ArrayList<>();
+            for (int iStart = 0; iStart < nStarts; iStart++) {
+                final int start = iStart;
+                futures.add(executor.submit(() -> {
+                    if ((cancelled != null) && cancelled.getAsBoolean()) {
+                        return null;
+                    }
+                    AlignmentResult result = runStart(start, copies.get(start));
+                    if (progress != null) {
+                        progress.accept(nDone.incrementAndGet());
+                    }
+                    return result;
+                }));
+            }
+            List<AlignmentResult> results = new ArrayList<>();
+            int best = -1;
+            for (int iStart = 0; iStart < nStarts; iStart++) {
+                AlignmentResult result;
+                try {
+                    result = futures.get(iStart).get();
+                } catch (ExecutionException eE) {
+                    result = new AlignmentResult(template.getName() + "_" + iStart);
+                    result.setError(eE);
+                }
+                if (result == null) {
+                    return null;
+                }
+                results.add(result);
+                if (!result.failed() && ((best < 0) || (result.getScore() > results.get(best).getScore()))) {
+                    best = iStart;
+                }
+            }
+            Snapshot snapshot = best >= 0 ? new Snapshot(copies.get(best)) : null;
+            return new MultiStartResult(results, best, snapshot);
+        } finally {
+            // starts that haven't begun are dropped, running ones must finish
+            // before the caller may dispose of the copies
+            executor.shutdownNow();
+            ExecutorUtils.awaitTermination(executor);
+        }
+    }
+
+    /**
+     * Copy the shifts and frozen states of the best start to the live
+     * predicted lists. Peak listeners should be disabled by the caller.
+     *
+     * @param result the result of run
+     * @param transaction records the peaks whose frozen state is set
+     * @return true if a result was applied
+     */
+    public boolean apply(MultiStartResult result, FreezeTransaction transaction) {
+        if (result.snapshot == null) {
+            return false;
+        }
+        PeakList[] predLists = getPredLists();
+        for (int iList = 0; iList < predLists.length; iList++) {
+            PeakList peakList = predLists[iList];
+            int nDim = peakList.getNDim();
+            float[] shifts = result.snapshot.shifts[iList];
+            boolean[] frozen = result.snapshot.frozen[iList];
+            if (shifts.length != peakList.size() * nDim) {
+                throw new IllegalStateException("Peak list " + peakList.getName() + " changed during alignment");
+            }
+            for (int j = 0; j < peakList.size(); j++) {
+                Peak peak = peakList.getPeak(j);
+                boolean peakFrozen = false;
+                for (int iDim = 0; iDim < nDim; iDim++) {
+                    PeakDim peakDim = peak.getPeakDim(iDim);
+                    peakDim.setChemShiftValue(shifts[j * nDim + iDim]);
+                    peakDim.setFrozen(frozen[j * nDim + iDim]);
+                    peakFrozen |= frozen[j * nDim + iDim];
+                }
+                transaction.record(peak, peakFrozen);
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import javafx.application.Platform;
+import org.controlsfx.dialog.ExceptionDialog;
+import org.nmrfx.analyst.peaks.Analyzer;
+import org.nmrfx.peaks.Multiplet;
+import org.nmrfx.peaks.Peak;
+import org.nmrfx.peaks.PeakDim;
+
+/**
+ * Applies the interactive edits of the multiplet tool and fits the edited
+ * multiplets on a background thread, so the FX thread doesn't wait for fits.
+ * Edits are applied at once, on the FX thread. A fit is started only after
+ * edits have paused for the delay, and fits every multiplet edited since the
+ * last fit was applied. The fit runs on detached copies of just the peaks of
+ * those multiplets, which aren't added to any peak list, so the live peaks are
+ * never changed off the FX thread and no peak list is registered or fires
+ * events. When it is done the fitted multiplets are copied to the live ones,
+ * on the FX thread, and the last edited multiplet is passed to the publisher
+ * so the chart is redrawn once, with the final result.
+ * <p>
+ * Each edit starts a new generation. A fit still running when a newer edit is
+ * submitted stops before its next multiplet and its result is discarded; its
+ * multiplets are fit again, with the newer edit, once edits pause.
+ * <p>
+ * All methods must be called on the FX thread.
+ */
+public class MultipletFitService {
+
+    static final long DEFAULT_DELAY = 200;
+
+    final ScheduledExecutorService scheduler;
+    final ExecutorService fitExecutor;
+    final Consumer<Multiplet> publisher;
+    final AtomicInteger generation = new AtomicInteger(0);
+    final Set<Multiplet> toFit = Collections.newSetFromMap(new IdentityHashMap<>());
+    long delay = DEFAULT_DELAY;
+    Analyzer analyzer = null;
+    Multiplet lastMultiplet = null;
+    ScheduledFuture<?> pendingFit = null;
+    ScheduledFuture<?> pendingAction = null;
+    boolean fitting = false;
+
+    /**
+     * Create a service.
+     *
+     * @param publisher called on the FX thread with the last edited multiplet
+     * when an edit or fit has been applied
+     */
+    public MultipletFitService(Consumer<Multiplet> publisher) {
+        this.publisher = publisher;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            return thread;
+        });
+        fitExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Set the time edits must pause for before a fit is started.
+     *
+     * @param delay the delay in ms
+     */
+    public void setDelay(long delay) {
+        this.delay = Math.max(delay, 0);
+    }
+
+    /**
+     * Apply an edit to a multiplet and, optionally, fit the multiplet once
+     * edits have paused.
+     *
+     * @param analyzer the Analyzer used to fit
+     * @param multiplet the multiplet
+     * @param edit the change to the multiplet, can be null to only fit
+     * @param fit true if the multiplet should be fit after the edit
+     */
+    public void submit(Analyzer analyzer, Multiplet multiplet, Runnable edit, boolean fit) {
+        int gen = generation.incrementAndGet();
+        if (pendingFit != null) {
+            pendingFit.cancel(false);
+            pendingFit = null;
+        }
+        this.analyzer = analyzer;
+        lastMultiplet = multiplet;
+        if (edit != null) {
+            try {
+                edit.run();
+            } catch (Exception ex) {
+                ExceptionDialog eDialog = new ExceptionDialog(ex);
+                eDialog.showAndWait();
+            }
+            publisher.accept(multiplet);
+        }
+        if (fit) {
+            toFit.add(multiplet);
+        }
+        if (!toFit.isEmpty()) {
+            pendingFit = scheduler.schedule(() -> Platform.runLater(() -> startFit(gen)),
+                    delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Run an action on the FX thread once calls to this method have paused for
+     * the delay, for example to apply a value being typed.
+     *
+     * @param action the action, replacing any action that hasn't run yet
+     */
+    public void debounce(Runnable action) {
+        if (pendingAction != null) {
+            pendingAction.cancel(false);
+        }
+        pendingAction = scheduler.schedule(() -> Platform.runLater(action), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true if edited multiplets haven't been fit yet
+     */
+    public boolean isBusy() {
+        return !toFit.isEmpty();
+    }
+
+    /**
+     * Copy the peaks of the multiplets to fit and fit the copies on the fit
+     * thread, unless a newer edit was submitted meanwhile.
+     */
+    void startFit(int gen) {
+        if ((gen != generation.get()) || toFit.isEmpty()) {
+            return;
+        }
+        if (fitting) {
+            // an older fit is still running, it posts a start when done
+            return;
+        }
+        Map<Multiplet, Multiplet> copies = new IdentityHashMap<>();
+        for (Multiplet multiplet : toFit) {
+            Peak origin = multiplet.getOrigin();
+            Peak copyPeak = origin.copy(origin.getPeakList());
+            for (PeakDim peakDim : copyPeak.getPeakDims()) {
+                peakDim.unLink();
+            }
+            copies.put(multiplet, copyPeak.getPeakDim(0).getMultiplet());
+        }
+        fitting = true;
+        Analyzer fitAnalyzer = new Analyzer(analyzer.getDataset());
+        fitExecutor.execute(() -> {
+            Map<Multiplet, RegionFitter.PeakFit> fitted = new IdentityHashMap<>();
+            List<Exception> errors = new ArrayList<>();
+            for (Map.Entry<Multiplet, Multiplet> entry : copies.entrySet()) {
+                if (gen != generation.get()) {
+                    break;
+                }
+                try {
+                    fitAnalyzer.fitMultiplet(entry.getValue());
+                    fitted.put(entry.getKey(), new RegionFitter.PeakFit(entry.getValue().getOrigin()));
+                } catch (Exception ex) {
+                    errors.add(ex);
+                }
+            }
+            Platform.runLater(() -> finishFit(gen, fitted, errors));
+        });
+    }
+
+    /**
+     * If no edit was submitted since the fit started, copy the fitted
+     * multiplets to the live ones.
+     */
+    void finishFit(int gen, Map<Multiplet, RegionFitter.PeakFit> fitted, List<Exception> errors) {
+        fitting = false;
+        if (gen != generation.get()) {
+            // superseded, fit again with the newer edits if they have paused
+            if ((pendingFit != null) && pendingFit.isDone()) {
+                startFit(generation.get());
+            }
+            return;
+        }
+        fitted.forEach((multiplet, fit) -> fit.apply(multiplet.getOrigin()));
+        toFit.clear();
+        publisher.accept(lastMultiplet);
+        if (!errors.isEmpty()) {
+            ExceptionDialog eDialog = new ExceptionDialog(errors.get(0));
+            eDialog.showAndWait();
+        }
+    }
+
+    /**
+     * Stop the background threads, dropping work that hasn't started.
+     */
+    public void shutdown() {
+        generation.incrementAndGet();
+        scheduler.shutdownNow();
+        fitExecutor.shutdownNow();
+    }
+}
@@ -47,8 +47,6 @@ import javafx.scene.text.Font;
 import javafx.stage.Stage;
 import org.controlsfx.dialog.ExceptionDialog;
 import org.nmrfx.analyst.peaks.Analyzer;
-import org.nmrfx.analyst.peaks.JournalFormat;
-import org.nmrfx.analyst.peaks.JournalFormatPeaks;
 import org.nmrfx.analyst.peaks.Multiplets;
 import org.nmrfx.datasets.DatasetRegion;
 import org.nmrfx.peaks.AbsMultipletComponent;
@@ -63,13 +61,13 @@ import org.nmrfx.peaks.PeakListener;
 import org.nmrfx.peaks.Singlet;
 import org.nmrfx.processor.datasets.Dataset;
 import org.nmrfx.analyst.gui.annotations.AnnoJournalFormat;
+import org.nmrfx.analyst.gui.annotations.JournalFormatCache;
 import org.nmrfx.processor.gui.controls.ConsoleUtil;
 import org.nmrfx.analyst.gui.molecule.CanvasMolecule;
 import org.nmrfx.processor.gui.CanvasAnnotation;
 import org.nmrfx.processor.gui.ControllerTool;
 import org.nmrfx.processor.gui.FXMLController;
 import org.nmrfx.processor.gui.PolyChart;
-import org.nmrfx.processor.gui.spectra.CrossHairs;
 import org.nmrfx.processor.gui.spectra.DatasetAttributes;
 import org.nmrfx.processor.gui.spectra.MultipletSelection;
 import org.nmrfx.processor.gui.spectra.PeakListAttributes;
@@ -102,6 +100,7 @@ public class MultipletTool implements SetChangeListener<MultipletSelection>, Con
     ChoiceBox<String> peakTypeChoice;
     ChoiceBox<String>[] patternChoices;
     TextField integralField;
+    ThresholdField thresholdField;
     TextField[] couplingFields;
     TextField[] slopeFields;
     FXMLController controller;
@@ -112,6 +111,7 @@ public class MultipletTool implements SetChangeListener<MultipletSelection>, Con
     boolean ignoreCouplingChanges = false;
     ChangeListener<String> patternListener;
     Analyzer analyzer = null;
+    MultipletFitService fitService = new MultipletFitService(this::fitPublished);
     CheckBox journalCheckBox;
     CheckBox molButton;
     CanvasMolecule cMol = null;
@@ -126,6 +126,7 @@ public class MultipletTool implements SetChangeListener<MultipletSelection>, Con
     }
 
     public void close() {
+        fitService.shutdown();
         closeAction.accept(this);
     }
 
@@ -159,6 +160,8 @@ public class MultipletTool implements SetChangeListener<MultipletSelection>, Con
                 System.out.println(e.getCode());
                 if (e.getCode() == KeyCode.ENTER) {
                     couplingValueTyped(couplingIndex);
+                } else {
+                    fitService.debounce(() -> couplingValueTyped(couplingIndex));
                 }
             });
             slopeFields[iRow].setPrefWidth(width3);
@@ -243,7 +246,10 @@ public class MultipletTool implements SetChangeListener<MultipletSelection>, Con
         MenuItem clearThresholdMenuItem = new MenuItem("Clear Threshold");
         clearThresholdMenuItem.setOnAction(e -> clearThreshold());
 
-        thresholdMenu.getItems().addAll(thresholdMenuItem, clearThresholdMenuItem);
+        MenuItem fullThresholdMenuItem = new MenuItem("Calculate (Full Pass)");
+        fullThresholdMenuItem.setOnAction(e -> calculateThreshold(true));
+
+        thresholdMenu.getItems().addAll(thresholdMenuItem, clearThresholdMenuItem, fullThresholdMenuItem);
 
         Menu reportMenu = new Menu("Report");
         MenuItem copyJournalFormatMenuItem = new MenuItem("Copy");
@@ -253,6 +259,12 @@ public class MultipletTool implements SetChangeListener<MultipletSelection>, Con
 
         menu.getItems().addAll(analyzeMenuItem, stepMenu, clearMenuItem, thresholdMenu, reportMenu);
         stepMenu.getItems().addAll(findRegionsMenuItem, pickRegionsMenuItem, analyzePeaksMenuItem);
+
+        thresholdField = new ThresholdField(() -> {
+            getAnalyzer();
+            return analyzer;
+        });
+        toolBar.getItems().addAll(thresholdField.getLabel(), thresholdField.getTextField());
     }
 
     public void initNavigator(ToolBar toolBar) {
@@ -463,10 +475,10 @@ public class MultipletTool implements SetChangeListener<MultipletSelection>, Con
                 analyzer = null;
                 return;
             }
-            analyzer = new Analyzer(dataset);
+            analyzer = AnalyzerRegistry.get(dataset);
         } else {
             if (analyzer.getDataset() != dataset) {
-                analyzer = new Analyzer(dataset);
+                analyzer = AnalyzerRegistry.get(dataset);
             }
         }
         if (activePeaklist != null) {
@@ -497,11 +509,10 @@ public class MultipletTool implements SetChangeListener<MultipletSelection>, Con
     private void findRegions() {
         getAnalyzer();
         if (analyzer != null) {
-            analyzer.calculateThreshold();
-            analyzer.getThreshold();
+            thresholdField.calculate(analyzer, false);
             analyzer.autoSetRegions();
             try {
-                analyzer.integrate();
+                integrateChanged();
             } catch (IOException ex) {
                 ExceptionDialog eDialog = new ExceptionDialog(ex);
                 eDialog.showAndWait();
@@ -550,21 +561,21 @@ public class MultipletTool implements SetChangeListener<MultipletSelection>, Con
 
     private void clearThreshold() {
         if (analyzer != null) {
-            analyzer.clearThreshold();
+            thresholdField.clear(analyzer);
+        }
+    }
+
+    private void calculateThreshold(boolean full) {
+        getAnalyzer();
+        if (analyzer != null) {
+            thresholdField.calculate(analyzer, full);
         }
     }
 
     private void setThreshold() {
         getAnalyzer();
         if (analyzer != null) {
-            CrossHairs crossHairs = chart.getCrossHairs();
-            if (!crossHairs.hasCrosshairState("h0")) {
-                warn("Threshold", "Must have horizontal crosshair");
-                return;
-            }
-            Double[] pos = crossHairs.getCrossHairPositions(0);
-            System.out.println(pos[0] + " " + pos[1]);
-            analyzer.setThreshold(pos[1]);
+            thresholdField.setFromCrossHairs(analyzer, chart);
         }
     }
 
@@ -810,9 +821,31 @@ public class MultipletTool implements SetChangeListener<MultipletSelection>, Con
     public void fitSelected() {
         getAnalyzer();
         activeMultiplet.ifPresent(m -> {
-            Optional<Double> result = analyzer.fitMultiplet(m);
+            fitService.submit(analyzer, m, null, true);
         });
+    }
+
+    /**
+     * Called on the FX thread when edits or background fits have been applied.
+     */
+    void fitPublished(Multiplet multiplet) {
+        // don't overwrite a coupling value that is still being typed
+        TextField typingField = null;
+        for (TextField field : couplingFields) {
+            if (field.isFocused()) {
+                typingField = field;
+            }
+        }
+        String typingText = typingField == null ? null : typingField.getText();
+        int caret = typingField == null ? 0 : typingField.getCaretPosition();
+        if (activeMultiplet.isPresent() && (activeMultiplet.get() == multiplet)) {
+            refreshPeakView(multiplet);
+        }
         refresh();
+        if (typingField != null) {
+            typingField.setText(typingText);
+            typingField.positionCaret(caret);
+        }
     }
 
     public void splitSelected() {
@@ -831,6 +864,7 @@ public class MultipletTool implements SetChangeListener<MultipletSelection>, Con
         getAnalyzer();
         try {
             List<Multiplet> multiplets = analyzer.splitRegion(ppm);
+            integrateChanged();
             if (!multiplets.isEmpty()) {
                 activeMultiplet = Optional.of(multiplets.get(0));
             } else {
@@ -842,6 +876,14 @@ public class MultipletTool implements SetChangeListener<MultipletSelection>, Con
         chart.refresh();
     }
 
+    /**
+     * Integrate the regions that are new or changed since they were last
+     * integrated.
+     */
+    void integrateChanged() throws IOException {
+        RegionIntegrator.update(analyzer.getDataset());
+    }
+
     public void adjustRegion() {
         getAnalyzer();
         double ppm0 = chart.getVerticalCrosshairPositions()[0];
@@ -849,6 +891,7 @@ public class MultipletTool implements SetChangeListener<MultipletSelection>, Con
         analyzer.removeRegion((ppm0 + ppm1) / 2);
         analyzer.addRegion(ppm0, ppm1);
         try {
+            integrateChanged();
             activeMultiplet = analyzer.analyzeRegion((ppm0 + ppm1) / 2);
             updateMultipletField(false);
             chart.refresh();
@@ -871,6 +914,7 @@ public class MultipletTool implements SetChangeListener<MultipletSelection>, Con
 
         }
         try {
+            integrateChanged();
             activeMultiplet = analyzer.analyzeRegion((ppm0 + ppm1) / 2);
             // this will force updating peaklist and adding to chart if not there
             Optional<PeakList> peakListOpt = getPeakList();
@@ -947,30 +991,28 @@ public class MultipletTool implements SetChangeListener<MultipletSelection>, Con
         activeMultiplet.ifPresent(m -> {
             double ppm1 = chart.getVerticalCrosshairPositions()[0];
             double ppm2 = chart.getVerticalCrosshairPositions()[1];
-            if (both) {
-                Multiplets.addPeaksToMultiplet(m, ppm1, ppm2);
-            } else {
-                Multiplets.addPeaksToMultiplet(m, ppm1);
-
-            }
-            analyzer.fitMultiplet(m);
-            chart.refresh();
-            refresh();
+            fitService.submit(analyzer, m, () -> {
+                if (both) {
+                    Multiplets.addPeaksToMultiplet(m, ppm1, ppm2);
+                } else {
+                    Multiplets.addPeaksToMultiplet(m, ppm1);
+                }
+            }, true);
         });
     }
 
     void removeWeakPeak() {
+        getAnalyzer();
         activeMultiplet.ifPresent(m -> {
-            Multiplets.removeWeakPeaksInMultiplet(m, 1);
-            refresh();
+            fitService.submit(analyzer, m, () -> Multiplets.removeWeakPeaksInMultiplet(m, 1), false);
         });
     }
 
     public void toDoublets() {
+        getAnalyzer();
         activeMultiplet.ifPresent(m -> {
-            Multiplets.toDoublets(m);
+            fitService.submit(analyzer, m, () -> Multiplets.toDoublets(m), false);
         });
-        refresh();
     }
 
     public void guessGeneric() {
@@ -1070,12 +1112,14 @@ public class MultipletTool implements SetChangeListener<MultipletSelection>, Con
             }
             String multNew = sBuilder.toString();
 
-            String multOrig = m.getMultiplicity();
-            System.out.println("convert " + multOrig + " " + multNew);
-            if (!multNew.equals(multOrig)) {
-                Multiplets.convertMultiplicity(m, multOrig, multNew);
-                analyzer.fitMultiplet(m);
-                refresh();
+            if (!multNew.equals(m.getMultiplicity())) {
+                fitService.submit(analyzer, m, () -> {
+                    // an earlier edit may have changed the multiplicity
+                    String multOrig = m.getMultiplicity();
+                    if (!multNew.equals(multOrig)) {
+                        Multiplets.convertMultiplicity(m, multOrig, multNew);
+                    }
+                }, true);
             }
         });
     }
@@ -1089,12 +1133,13 @@ public class MultipletTool implements SetChangeListener<MultipletSelection>, Con
                     double newValue = Double.parseDouble(couplingStr);
                     if (newValue > 0.1) {
                         Multiplet multiplet = activeMultiplet.get();
-                        Coupling coupling = multiplet.getCoupling();
-                        if (coupling instanceof CouplingPattern) {
-                            CouplingPattern cPattern = (CouplingPattern) coupling;
-                            cPattern.adjustCouplings(iRow, newValue);
-                        }
-                        refresh();
+                        fitService.submit(analyzer, multiplet, () -> {
+                            Coupling coupling = multiplet.getCoupling();
+                            if (coupling instanceof CouplingPattern) {
+                                CouplingPattern cPattern = (CouplingPattern) coupling;
+                                cPattern.adjustCouplings(iRow, newValue);
+                            }
+                        }, false);
                     }
                 } catch (NumberFormatException nfE) {
 
@@ -1137,13 +1182,11 @@ public class MultipletTool implements SetChangeListener<MultipletSelection>, Con
     }
 
     public void journalFormatToClipboard() {
-        JournalFormat format = JournalFormatPeaks.getFormat("JMedCh");
         getAnalyzer();
-        if (analyzer != null) {
+        if ((analyzer != null) && (analyzer.getPeakList() != null)) {
             PeakList peakList = analyzer.getPeakList();
-            String journalText = format.genOutput(peakList);
-            String plainText = JournalFormatPeaks.formatToPlain(journalText);
-            String rtfText = JournalFormatPeaks.formatToRTF(journalText);
+            String plainText = JournalFormatCache.getPlainText(peakList, "JMedCh");
+            String rtfText = JournalFormatCache.getRTFText(peakList, "JMedCh");
 
             Clipboard clipBoard = Clipboard.getSystemClipboard();
             ClipboardContent content = new ClipboardContent();
@@ -1233,6 +1276,8 @@ public class MultipletTool implements SetChangeListener<MultipletSelection>, Con
 
     @Override
     public void peakListChanged(PeakEvent peakEvent) {
+        // the cache also listens, but may not have been notified yet
+        JournalFormatCache.invalidate(peakEvent);
         ConsoleUtil.runOnFxThread(() -> {
             if (journalCheckBox.isSelected()) {
                 showJournalFormatOnChart();
@@ -0,0 +1,244 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui;
+
+import java.io.IOException;
+import org.nmrfx.analyst.peaks.Analyzer;
+import org.nmrfx.processor.datasets.Dataset;
+import org.nmrfx.processor.math.Vec;
+
+/**
+ * A robust estimate of the noise of a 1D dataset, used for the automatic
+ * threshold of the region and multiplet tools. The vector is divided into
+ * blocks of BLOCK_SIZE points and the standard deviation of each block is
+ * calculated in one pass. Blocks containing signal have a larger deviation, so
+ * the noise is the median of the block deviations. By default only a sample of
+ * blocks, spread evenly over the vector, is used, with a confidence bound from
+ * the spread of the block deviations. A full pass uses every block. For a
+ * dataset in a file a sample reads only the points of the sampled blocks; a
+ * full pass reads the whole vector.
+ *
+ * The buffers are allocated when first needed and reused, so repeated
+ * estimates on the same dataset don't allocate.
+ */
+public class NoiseEstimator {
+
+    static final int BLOCK_SIZE = 32;
+    static final int DEFAULT_SAMPLE_BLOCKS = 256;
+    // 1.96 standard errors, a 95% bound
+    static final double Z_95 = 1.96;
+
+    int nSampleBlocks = DEFAULT_SAMPLE_BLOCKS;
+    double nSigma = 5.0;
+    Vec vec = null;
+    final double[] block = new double[BLOCK_SIZE];
+    final int[] point = new int[1];
+    double[] blockSdevs = new double[0];
+    double noise = 0.0;
+    double noiseBound = 0.0;
+    int nBlocks = 0;
+    boolean fullPass = false;
+
+    /**
+     * Set the number of blocks sampled when not doing a full pass.
+     *
+     * @param nSampleBlocks the number of blocks
+     */
+    public void setSampleBlocks(int nSampleBlocks) {
+        this.nSampleBlocks = Math.max(nSampleBlocks, 8);
+    }
+
+    /**
+     * Set the multiple of the noise used as the threshold.
+     *
+     * @param nSigma the multiple
+     */
+    public void setNSigma(double nSigma) {
+        this.nSigma = nSigma;
+    }
+
+    public double getNSigma() {
+        return nSigma;
+    }
+
+    /**
+     * @return the noise of the last estimate
+     */
+    public double getNoise() {
+        return noise;
+    }
+
+    /**
+     * @return the 95% confidence bound (plus or minus) of the noise of the
+     * last estimate
+     */
+    public double getNoiseBound() {
+        return noiseBound;
+    }
+
+    /**
+     * @return the threshold from the last estimate, nSigma times the noise
+     */
+    public double getThreshold() {
+        return nSigma * noise;
+    }
+
+    /**
+     * @return the 95% confidence bound of the threshold of the last estimate
+     */
+    public double getThresholdBound() {
+        return nSigma * noiseBound;
+    }
+
+    /**
+     * @return the number of blocks used by the last estimate
+     */
+    public int getNBlocks() {
+        return nBlocks;
+    }
+
+    public boolean isFullPass() {
+        return fullPass;
+    }
+
+    /**
+     * Read the whole vector of a dataset in a file into the reused vector.
+     */
+    Vec readVec(Dataset dataset) throws IOException {
+        int size = dataset.getSize(0);
+        if ((vec == null) || (vec.getSize() != size)) {
+            vec = new Vec(size);
+        }
+        dataset.readVector(vec, 0, 0);
+        return vec;
+    }
+
+    /**
+     * Estimate the noise of a 1D dataset.
+     *
+     * @param dataset the dataset
+     * @param full if true use every block of the vector, otherwise a sample of
+     * blocks
+     * @return the noise
+     * @throws IOException if the dataset can't be read
+     */
+    public synchronized double estimate(Dataset dataset, boolean full) throws IOException {
+        Vec data = dataset.getVec();
+        int size = data == null ? dataset.getSize(0) : data.getSize();
+        int nTotal = size / BLOCK_SIZE;
+        if (nTotal < 1) {
+            throw new IllegalArgumentException("Dataset " + dataset.getName() + " has too few points");
+        }
+        nBlocks = full ? nTotal : Math.min(nSampleBlocks, nTotal);
+        fullPass = nBlocks == nTotal;
+        if ((data == null) && fullPass) {
+            data = readVec(dataset);
+        }
+        if (blockSdevs.length < nBlocks) {
+            blockSdevs = new double[nBlocks];
+        }
+        for (int iBlock = 0; iBlock < nBlocks; iBlock++) {
+            int start = fullPass ? iBlock * BLOCK_SIZE
+                    : (int) ((long) iBlock * (size - BLOCK_SIZE) / Math.max(nBlocks - 1, 1));
+            readBlock(dataset, data, start);
+            blockSdevs[iBlock] = blockSdev(block);
+        }
+        double q1 = select(blockSdevs, nBlocks, nBlocks / 4);
+        double q3 = select(blockSdevs, nBlocks, (3 * nBlocks) / 4);
+        noise = select(blockSdevs, nBlocks, nBlocks / 2);
+        if (fullPass) {
+            noiseBound = 0.0;
+        } else {
+            // standard error of the median, with the spread from the
+            // interquartile range so blocks with signal don't inflate it
+            double spread = (q3 - q1) / 1.349;
+            noiseBound = Z_95 * 1.2533 * spread / Math.sqrt(nBlocks);
+        }
+        return noise;
+    }
+
+    /**
+     * Estimate the noise of the dataset of an Analyzer and set the Analyzer's
+     * automatic threshold to nSigma times the noise, replacing a manual one
+     * (see AnalyzerRegistry.setAutoThreshold).
+     *
+     * @param analyzer the Analyzer
+     * @param full if true use every block of the vector
+     * @return the threshold
+     * @throws IOException if the dataset can't be read
+     */
+    public synchronized double setThreshold(Analyzer analyzer, boolean full) throws IOException {
+        estimate(analyzer.getDataset(), full);
+        double threshold = getThreshold();
+        AnalyzerRegistry.setAutoThreshold(analyzer, threshold);
+        return threshold;
+    }
+
+    /**
+     * Copy the block starting at start into the block buffer, from the vector
+     * if there is one, otherwise point by point from the dataset's file.
+     */
+    void readBlock(Dataset dataset, Vec data, int start) throws IOException {
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            if (data != null) {
+                block[i] = data.getReal(start + i);
+            } else {
+                point[0] = start + i;
+                block[i] = dataset.readPoint(point);
+            }
+        }
+    }
+
+    static double blockSdev(double[] values) {
+        double mean = 0.0;
+        double sumSq = 0.0;
+        int n = 0;
+        for (double value : values) {
+            n++;
+            double delta = value - mean;
+            mean += delta / n;
+            sumSq += delta * (value - mean);
+        }
+        return Math.sqrt(sumSq / (n - 1));
+    }
+
+    /**
+     * Find the k'th smallest of the first n values, partially reordering the
+     * values in place.
+     */
+    static double select(double[] values, int n, int k) {
+        int left = 0;
+        int right = n - 1;
+        while (left < right) {
+            double pivot = values[(left + right) >>> 1];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (values[i] < pivot) {
+                    i++;
+                }
+                while (values[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    double hold = values[i];
+                    values[i] = values[j];
+                    values[j] = hold;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                break;
+            }
+        }
+        return values[k];
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+import org.nmrfx.peaks.Peak;
+import org.nmrfx.peaks.PeakList;
+
+/**
+ * Spatial hash of the peaks in a peak list. Peaks are binned on the first two
+ * dimensions using cells whose widths are the matching scale, so any peak with
+ * a scaled distance below 1.0 from a query peak is in the query cell or one of
+ * its eight neighbours.
+ */
+public class PeakGridIndex {
+
+    final PeakList peakList;
+    final double[] scale;
+    final Map<Long, List<Integer>> cells = new HashMap<>();
+
+    public PeakGridIndex(PeakList peakList, double[] scale) {
+        this.peakList = peakList;
+        this.scale = scale;
+        int nPeaks = peakList.size();
+        for (int i = 0; i < nPeaks; i++) {
+            Peak peak = peakList.getPeak(i);
+            long key = cellKey(cell(peak, 0), cell(peak, 1));
+            cells.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+        }
+    }
+
+    int cell(Peak peak, int iDim) {
+        if (iDim >= peak.getPeakDims().length) {
+            return 0;
+        }
+        return (int) Math.floor(peak.getPeakDim(iDim).getChemShiftValue() / scale[iDim]);
+    }
+
+    static long cellKey(int ix, int iy) {
+        return ((long) ix << 32) | (iy & 0xffffffffL);
+    }
+
+    /**
+     * Pass the index (within the indexed peak list) of each peak that could be
+     * within a scaled distance of 1.0 from the specified peak. Candidates still
+     * have to be checked with Peak.distance.
+     *
+     * @param peak the query peak
+     * @param consumer receives the index of each candidate peak
+     */
+    public void forEachCandidate(Peak peak, IntConsumer consumer) {
+        int ix = cell(peak, 0);
+        int iy = cell(peak, 1);
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                List<Integer> cellPeaks = cells.get(cellKey(ix + dx, iy + dy));
+                if (cellPeaks != null) {
+                    for (int index : cellPeaks) {
+                        consumer.accept(index);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,563 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+import org.nmrfx.analyst.gui.ShiftedPeakCluster.ClusterScore;
+import org.nmrfx.peaks.Peak;
+import org.nmrfx.peaks.PeakDim;
+import org.nmrfx.peaks.PeakList;
+import org.nmrfx.processor.optimization.BipartiteMatcher;
+import org.nmrfx.processor.optimization.PeakCluster;
+import org.nmrfx.processor.optimization.PeakClusterMatcher;
+import org.nmrfx.processor.project.Project;
+
+/**
+ * Aligns predicted (simulated) HMQC peaks to experimental HMQC peaks, using
+ * TOCSY and NOESY peak lists to adjust the weight of each candidate pair. The
+ * aligner only works on the peak lists it is given, and on explicit limits, so
+ * it can be run without a GUI, from scripts, and for several projects in
+ * parallel (see AutoAlignBatch). The PeakSlider tool supplies cluster matchers
+ * built from its charts and runs the matching in the background.
+ */
+public class PeakListAligner {
+
+    public static final double[] DEFAULT_HMQC_SCALE = {0.5, 5.0};
+    public static final double[] DEFAULT_TOCSY_SCALE = {0.5, 0.5};
+
+    final String name;
+    final PeakList predHMQCList;
+    final PeakList expHMQCList;
+    final PeakList predTOCSYList;
+    final PeakList expTOCSYList;
+    final PeakList predNOESYList;
+    final PeakList expNOESYList;
+    double[] scale = DEFAULT_HMQC_SCALE.clone();
+    double[] tocsyScale = DEFAULT_TOCSY_SCALE.clone();
+    double[][] limits = null;
+    boolean sparseMatching = false;
+    boolean parallel = true;
+    boolean expListsPrepared = false;
+    PeakClusterMatcher[] matchers = new PeakClusterMatcher[2];
+    final ClusterScoreCache clusterScoreCache = new ClusterScoreCache();
+    double score = Double.NaN;
+
+    public PeakListAligner(String name, PeakList predHMQCList, PeakList expHMQCList,
+            PeakList predTOCSYList, PeakList expTOCSYList,
+            PeakList predNOESYList, PeakList expNOESYList) {
+        this.name = name;
+        this.predHMQCList = predHMQCList;
+        this.expHMQCList = expHMQCList;
+        this.predTOCSYList = predTOCSYList;
+        this.expTOCSYList = expTOCSYList;
+        this.predNOESYList = predNOESYList;
+        this.expNOESYList = expNOESYList;
+    }
+
+    /**
+     * Create an aligner from the peak lists of a project. Lists are identified
+     * by "hmqc", "tocsy" and "noesy" in their names, and as predicted or
+     * experimental by whether they are simulated.
+     *
+     * @param name name used to identify the results of the aligner
+     * @param project the project
+     * @return the aligner, or empty if any of the six lists is missing
+     */
+    public static Optional<PeakListAligner> fromProject(String name, Project project) {
+        PeakList[] lists = new PeakList[6];
+        String[] types = {"hmqc", "tocsy", "noesy"};
+        for (PeakList peakList : project.getPeakLists()) {
+            for (int iType = 0; iType < types.length; iType++) {
+                if (peakList.getName().contains(types[iType])) {
+                    lists[iType * 2 + (peakList.isSimulated() ? 0 : 1)] = peakList;
+                    break;
+                }
+            }
+        }
+        for (PeakList peakList : lists) {
+            if (peakList == null) {
+                return Optional.empty();
+            }
+        }
+        return Optional.of(new PeakListAligner(name, lists[0], lists[1],
+                lists[2], lists[3], lists[4], lists[5]));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setScales(double[] scale, double[] tocsyScale) {
+        this.scale = scale.clone();
+        this.tocsyScale = tocsyScale.clone();
+    }
+
+    /**
+     * Set the limits, {{xMin, xMax}, {yMin, yMax}}, of the NOESY region used
+     * when creating the cluster matchers with createMatchers.
+     *
+     * @param limits the limits
+     */
+    public void setLimits(double[][] limits) {
+        this.limits = limits;
+    }
+
+    public void setSparseMatching(boolean state) {
+        sparseMatching = state;
+    }
+
+    public void setParallel(boolean state) {
+        parallel = state;
+    }
+
+    /**
+     * Use cluster matchers that were created elsewhere (for example from the
+     * lists and axes of the charts in the GUI).
+     *
+     * @param matchers the column (0) and row (1) matchers, with their clusters
+     * set up
+     */
+    public void setMatchers(PeakClusterMatcher[] matchers) {
+        this.matchers = matchers;
+        clusterScoreCache.clear();
+    }
+
+    /**
+     * Prepare the experimental NOESY list for clustering, within the limits
+     * set with setLimits. createMatchers does this unless it has been done, so
+     * aligners sharing the experimental lists can have them prepared once,
+     * before they run, and then only read them (see MultiStartAligner).
+     */
+    public void prepareExpLists() {
+        if (limits == null) {
+            throw new IllegalStateException("No limits set for aligner " + name);
+        }
+        PeakCluster.prepareList(expNOESYList, limits);
+        expListsPrepared = true;
+    }
+
+    /**
+     * Set whether the experimental lists have already been prepared, with the
+     * same limits, by another aligner's prepareExpLists.
+     *
+     * @param state true if prepared
+     */
+    public void setExpListsPrepared(boolean state) {
+        expListsPrepared = state;
+    }
+
+    /**
+     * Create column and row cluster matchers for the NOESY lists, within the
+     * limits set with setLimits.
+     */
+    public void createMatchers() {
+        if (limits == null) {
+            throw new IllegalStateException("No limits set for aligner " + name);
+        }
+        if (!expListsPrepared) {
+            prepareExpLists();
+        }
+        List<PeakList> expLists = new ArrayList<>(Collections.singletonList(expNOESYList));
+        List<PeakList> predLists = new ArrayList<>(Collections.singletonList(predNOESYList));
+        PeakCluster.prepareList(predNOESYList, limits);
+        for (int iDim = 0; iDim < 2; iDim++) {
+            matchers[iDim] = new PeakClusterMatcher(expLists, predLists, iDim);
+            matchers[iDim].setupClusters();
+        }
+        clusterScoreCache.clear();
+    }
+
+    public double getScore() {
+        return score;
+    }
+
+    /**
+     * Run the whole alignment: TOCSY alignment, cluster matchers, HMQC pair
+     * weights, matching and applying the matched shifts to the predicted HMQC
+     * peaks.
+     *
+     * @return the score and timing of each stage
+     */
+    public AlignmentResult align() {
+        AlignmentResult result = new AlignmentResult(name);
+        long start = System.nanoTime();
+        try {
+            alignTOCSY();
+            start = result.addTiming("tocsy", start);
+            createMatchers();
+            start = result.addTiming("clusters", start);
+            int[] matching = calcMatching(null, null);
+            start = result.addTiming("match", start);
+            int nMatched = applyMatching(matching);
+            result.addTiming("apply", start);
+            result.setScore(score, nMatched, predHMQCList.size());
+        } catch (RuntimeException rE) {
+            result.setError(rE);
+        }
+        return result;
+    }
+
+    /**
+     * Calculate the weights of the candidate HMQC pairs and find the best
+     * matching. The cluster matchers must have been created or set.
+     *
+     * @param cancelled polled while calculating weights, can be null
+     * @param progress called with the number of predicted peaks evaluated, can
+     * be null
+     * @return the matching, indexed by predicted peak, of experimental peak
+     * indices (or -1), or null if cancelled
+     */
+    public int[] calcMatching(BooleanSupplier cancelled, IntConsumer progress) {
+        double smallTol = expTOCSYList.widthStatsPPM(0).getAverage() / 2.0;
+        PairWeight pairWeight = (predPeak, expPeak, distance) -> {
+            double weight = -1.0;
+            if (expPeak.getIntensity() > 0.0) {
+                weight = 2.0 - distance;
+                double weightAdj = calcTOCSYAdj(predTOCSYList, expTOCSYList, predPeak, expPeak, tocsyScale, smallTol);
+                double noeAdj = calcNOEClusterAdj(predNOESYList, predPeak, expPeak);
+                noeAdj /= 30.0;
+                weight -= weightAdj;
+                weight += noeAdj;
+            }
+            return weight;
+        };
+        PeakPairWeights pairWeights = new PeakPairWeights(predHMQCList, expHMQCList, scale);
+        if (!pairWeights.calculate(pairWeight, parallel, cancelled, progress)) {
+            return null;
+        }
+        int[] matching;
+        if (sparseMatching) {
+            SparseAssignment assignment = pairWeights.getAssignment();
+            matching = assignment.getMatching();
+            score = assignment.getWeightSum();
+        } else {
+            BipartiteMatcher matcher = new BipartiteMatcher();
+            // pairs outside the tolerance get a weight of -1.0
+            pairWeights.setWeights(matcher, -1.0);
+            matching = matcher.getMatching();
+            double minWeight = matcher.getMinWeight();
+            score = matcher.getMaxWtSum(matching, minWeight);
+        }
+        return matching;
+    }
+
+    /**
+     * Move the matched predicted HMQC peaks to the shifts of the experimental
+     * peaks they were matched to, and freeze them.
+     *
+     * @param matching the matching from calcMatching
+     * @return the number of matched peaks
+     */
+    public int applyMatching(int[] matching) {
+        int sizeE = expHMQCList.size();
+        int sizeP = predHMQCList.size();
+        int nMatched = 0;
+        for (int i = 0; i < sizeP; i++) {
+            int match = matching[i];
+            if ((match >= 0) && (match < sizeE)) {
+                Peak predPeak = predHMQCList.getPeak(i);
+                Peak expPeak = expHMQCList.getPeak(match);
+                for (int dim = 0; dim < 2; dim++) {
+                    predPeak.getPeakDim(dim).setChemShiftValue(
+                            expPeak.getPeakDim(dim).getChemShiftValue());
+                    predPeak.getPeakDim(dim).setFrozen(true);
+                }
+                nMatched++;
+            }
+        }
+        return nMatched;
+    }
+
+    @FunctionalInterface
+    public interface PairWeight {
+
+        double weight(Peak predPeak, Peak expPeak, double distance);
+    }
+
+    /**
+     * Build the sparse assignment between a predicted and experimental peak
+     * list. Only pairs closer than a scaled distance of 1.0 are candidates and
+     * they are found with a PeakGridIndex on the experimental list rather than
+     * by comparing every pair (see PeakPairWeights).
+     *
+     * @param predList the predicted peak list (rows of the assignment)
+     * @param expList the experimental peak list (columns of the assignment)
+     * @param scale the tolerance in each dimension
+     * @param pairWeight calculates the weight of a candidate pair
+     * @return the assignment
+     */
+    SparseAssignment sparseMatch(PeakList predList, PeakList expList, double[] scale, PairWeight pairWeight) {
+        PeakPairWeights pairWeights = new PeakPairWeights(predList, expList, scale);
+        pairWeights.calculate(pairWeight, false, null, null);
+        return pairWeights.getAssignment();
+    }
+
+    SparseAssignment compareHMQCSparse(PeakList hmqcPred, PeakList hmqcExp) {
+        double[] scale = {0.5, 10.0};
+        return sparseMatch(hmqcPred, hmqcExp, scale, (predPeak, expPeak, distance) -> 1.0 - distance);
+    }
+
+    BipartiteMatcher compareHMQC(PeakList hmqcPred, PeakList hmqcExp) {
+
+        BipartiteMatcher matcher = new BipartiteMatcher();
+        int N = hmqcPred.size() + hmqcExp.size();
+        matcher.reset(N, true);
+        // init
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < N; j++) {
+                matcher.setWeight(i, j, 0.0);
+            }
+        }
+
+        int sizeE = hmqcExp.size();
+        int sizeP = hmqcPred.size();
+        double[] scale = {0.5, 10.0};
+
+        for (int iE = 0; iE < sizeE; iE++) {
+            for (int jP = 0; jP < sizeP; jP++) {
+                Peak expPeak = hmqcExp.getPeak(iE);
+                Peak predPeak = hmqcPred.getPeak(jP);
+                double distance = expPeak.distance(predPeak, scale);
+                double weight = 0.0;
+                if (distance < 1.0) {
+                    weight = 1.0 - distance;
+                }
+                matcher.setWeight(iE, jP, weight);
+            }
+        }
+        return matcher;
+    }
+
+    double calcNOEClusterAdj(PeakList predNOEPeakList, Peak predHMQCPeak, Peak expHMQCPeak) {
+        double maxScore = Double.NEGATIVE_INFINITY;
+        List<PeakDim> peakDims = PeakList.getLinkedPeakDims(predHMQCPeak, 0);
+        for (PeakDim peakDim : peakDims) {
+            if (peakDim.getPeakList() == predNOEPeakList) {
+                PeakClusterMatcher matcher = matchers[peakDim.getSpectralDim()];
+                PeakCluster peakCluster = matcher.getClusterWithPeak(peakDim.getPeak());
+                if (peakCluster != null) {
+                    ClusterScore clusterScore = clusterScoreCache.getBestScore(matcher, peakCluster,
+                            expHMQCPeak.getPeakDim(0).getChemShiftValue());
+                    maxScore = clusterScore.getScore();
+                    break;
+                }
+            }
+        }
+        return maxScore;
+    }
+
+    double calcTOCSYAdj(PeakList predTOCSYList, PeakList expTOCSYList,
+            Peak predHMQCPeak, Peak expHMQCPeak,
+            double[] tocsyScale, double smallTol) {
+        double weightAdj = 1.0;
+        double[][] limits = new double[2][2];
+
+        if (predHMQCPeak.getPeakDim(0).getLabel().endsWith("H5") || predHMQCPeak.getPeakDim(0).getLabel().endsWith("H6")) {
+            double expPPM = expHMQCPeak.getPeakDim(0).getChemShiftValue();
+            List<PeakDim> peakDims = PeakList.getLinkedPeakDims(predHMQCPeak, 0);
+            for (PeakDim peakDim : peakDims) {
+                if (peakDim.getPeakList() == predTOCSYList) {
+                    Peak predTOCSYPeak = peakDim.getPeak();
+                    double[] ppms = {predTOCSYPeak.getPeakDim(0).getChemShiftValue(),
+                        predTOCSYPeak.getPeakDim(1).getChemShiftValue()};
+                    int ppmDim;
+                    double origPPM;
+                    if (peakDim.getSpectralDim() == 1) {
+                        limits[0][1] = ppms[0] - tocsyScale[0];
+                        limits[0][0] = ppms[0] + tocsyScale[0];
+                        limits[1][1] = expPPM - smallTol;
+                        limits[1][0] = expPPM + smallTol;
+                        ppmDim = 0;
+                        origPPM = ppms[0];
+                    } else {
+                        limits[0][1] = expPPM - smallTol;
+                        limits[0][0] = expPPM + smallTol;
+                        limits[1][1] = ppms[1] - tocsyScale[1];
+                        limits[1][0] = ppms[1] + tocsyScale[1];
+                        ppmDim = 1;
+                        origPPM = ppms[1];
+                    }
+                    int[] searchDims = {0, 1};
+                    List<Peak> nearPeaks = expTOCSYList.locatePeaks(limits, searchDims);
+                    if (!nearPeaks.isEmpty()) {
+                        double ppmNear = nearPeaks.get(0).getPeakDim(ppmDim).getChemShiftValue();
+                        double tocsyDis = Math.abs(ppmNear - origPPM) / tocsyScale[0];
+                        weightAdj = tocsyDis;
+                    }
+                }
+            }
+        }
+        return weightAdj;
+    }
+
+    /**
+     * Move the predicted TOCSY peaks to the experimental TOCSY peaks they best
+     * match.
+     */
+    public void alignTOCSY() {
+        alignTOCSY(predTOCSYList, expTOCSYList, tocsyScale);
+    }
+
+    void alignTOCSY(PeakList predTOCSYList, PeakList expTOCSYList, double[] tocsyScale) {
+        int[] matching;
+        if (sparseMatching) {
+            SparseAssignment assignment = sparseMatch(predTOCSYList, expTOCSYList, tocsyScale,
+                    (predPeak, expPeak, distance) -> expPeak.getIntensity() > 0.0 ? 2.0 - distance : -1.0);
+            matching = assignment.getMatching();
+        } else {
+            matching = alignTOCSYDense(predTOCSYList, expTOCSYList, tocsyScale);
+        }
+        int sizeE = expTOCSYList.size();
+        int sizeP = predTOCSYList.size();
+        for (int i = 0; i < sizeP; i++) {
+            int match = matching[i];
+            if ((match >= 0) && (match < sizeE)) {
+                Peak predPeak = predTOCSYList.getPeak(i);
+                Peak expPeak = expTOCSYList.getPeak(match);
+                for (int dim = 0; dim < 2; dim++) {
+                    predPeak.getPeakDim(dim).setChemShiftValue(
+                            expPeak.getPeakDim(dim).getChemShiftValue());
+                }
+            }
+        }
+    }
+
+    int[] alignTOCSYDense(PeakList predTOCSYList, PeakList expTOCSYList, double[] tocsyScale) {
+
+        BipartiteMatcher matcher = new BipartiteMatcher();
+        int N = predTOCSYList.size() + expTOCSYList.size();
+        matcher.reset(N, true);
+        // init
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < N; j++) {
+                matcher.setWeight(i, j, 0.0);
+            }
+        }
+        int sizeE = expTOCSYList.size();
+        int sizeP = predTOCSYList.size();
+
+        for (int iE = 0; iE < sizeE; iE++) {
+            for (int jP = 0; jP < sizeP; jP++) {
+                Peak expPeak = expTOCSYList.getPeak(iE);
+                Peak predPeak = predTOCSYList.getPeak(jP);
+                double distance = expPeak.distance(predPeak, tocsyScale); // if predPeak frozen tighten tolerance
+                double weight = -1.0;
+                if ((distance < 1.0) && (expPeak.getIntensity() > 0.0)) {
+                    weight = 2.0 - distance;
+                }
+                matcher.setWeight(jP, iE, weight);
+            }
+        }
+        return matcher.getMatching();
+    }
+
+    /**
+     * Score and timing of one alignment run.
+     */
+    public static class AlignmentResult {
+
+        static final String[] STAGES = {"tocsy", "clusters", "match", "apply"};
+        final String name;
+        final Map<String, Double> timings = new LinkedHashMap<>();
+        double score = Double.NaN;
+        int nMatched = 0;
+        int nPredicted = 0;
+        String error = null;
+
+        public AlignmentResult(String name) {
+            this.name = name;
+        }
+
+        long addTiming(String stage, long start) {
+            long now = System.nanoTime();
+            timings.put(stage, (now - start) / 1.0e6);
+            return now;
+        }
+
+        void setScore(double score, int nMatched, int nPredicted) {
+            this.score = score;
+            this.nMatched = nMatched;
+            this.nPredicted = nPredicted;
+        }
+
+        void setError(Exception e) {
+            error = e.getClass().getSimpleName() + ": " + e.getMessage();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double getScore() {
+            return score;
+        }
+
+        public int getNMatched() {
+            return nMatched;
+        }
+
+        public int getNPredicted() {
+            return nPredicted;
+        }
+
+        public Map<String, Double> getTimings() {
+            return Collections.unmodifiableMap(timings);
+        }
+
+        public double getTotalTime() {
+            return timings.values().stream().mapToDouble(Double::doubleValue).sum();
+        }
+
+        public boolean failed() {
+            return error != null;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * Format the result as tab separated fields in the order of
+         * getHeader.
+         *
+         * @return the formatted result
+         */
+        public String toTSV() {
+            StringBuilder sBuilder = new StringBuilder();
+            sBuilder.append(name).append('\t');
+            sBuilder.append(String.format("%.4f\t%d\t%d", score, nMatched, nPredicted));
+            for (String stage : STAGES) {
+                Double time = timings.get(stage);
+                sBuilder.append('\t').append(time == null ? "" : String.format("%.1f", time));
+            }
+            sBuilder.append('\t').append(String.format("%.1f", getTotalTime()));
+            sBuilder.append('\t').append(error == null ? "" : error);
+            return sBuilder.toString();
+        }
+
+        public static String getHeader() {
+            StringBuilder sBuilder = new StringBuilder("name\tscore\tnMatched\tnPredicted");
+            for (String stage : STAGES) {
+                sBuilder.append('\t').append(stage).append("_ms");
+            }
+            sBuilder.append("\ttotal_ms\terror");
+            return sBuilder.toString();
+        }
+
+        @Override
+        public String toString() {
+            return "align " + name + " score " + score + " matched " + nMatched + "/" + nPredicted + " timings(ms) " + timings
+                    + (error == null ? "" : " error " + error);
+        }
+    }
+}
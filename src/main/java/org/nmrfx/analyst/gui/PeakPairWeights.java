@@ -0,0 +1,195 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+import org.nmrfx.peaks.Peak;
+import org.nmrfx.peaks.PeakList;
+import org.nmrfx.processor.optimization.BipartiteMatcher;
+
+/**
+ * Weights of the candidate pairs between a predicted and an experimental peak
+ * list. Only pairs within a scaled distance of 1.0 are evaluated. The rows
+ * (predicted peaks) can be evaluated in parallel on a fork/join pool; each row
+ * stores its own results so the reduction into a matcher is always done in
+ * row order and doesn't depend on the number of threads used.
+ */
+public class PeakPairWeights {
+
+    static final int ROW_THRESHOLD = 8;
+
+    final PeakList predList;
+    final PeakList expList;
+    final double[] scale;
+    final int[][] rowCols;
+    final double[][] rowWeights;
+    final AtomicInteger nDone = new AtomicInteger(0);
+
+    public PeakPairWeights(PeakList predList, PeakList expList, double[] scale) {
+        this.predList = predList;
+        this.expList = expList;
+        this.scale = scale.clone();
+        rowCols = new int[predList.size()][];
+        rowWeights = new double[predList.size()][];
+    }
+
+    /**
+     * Evaluate the weight of each candidate pair.
+     *
+     * @param pairWeight calculates the weight of a pair. Must be safe to call
+     * concurrently if parallel is true.
+     * @param parallel evaluate rows on the common fork/join pool
+     * @param cancelled polled between rows, evaluation stops if it returns true
+     * @param progress called with the number of rows completed so far, can be
+     * null
+     * @return true if all rows were evaluated, false if cancelled
+     */
+    public boolean calculate(PeakListAligner.PairWeight pairWeight, boolean parallel,
+            BooleanSupplier cancelled, IntConsumer progress) {
+        PeakGridIndex index = new PeakGridIndex(expList, scale);
+        nDone.set(0);
+        RowTask task = new RowTask(index, pairWeight, cancelled, progress, 0, rowCols.length);
+        if (parallel) {
+            ForkJoinPool.commonPool().invoke(task);
+        } else {
+            task.compute();
+        }
+        return nDone.get() == rowCols.length;
+    }
+
+    public int getNRows() {
+        return rowCols.length;
+    }
+
+    public int getNCols() {
+        return expList.size();
+    }
+
+    /**
+     * Build a sparse assignment from the evaluated weights.
+     *
+     * @return the assignment with predicted peaks as rows
+     */
+    public SparseAssignment getAssignment() {
+        SparseAssignment assignment = new SparseAssignment(rowCols.length, expList.size());
+        for (int row = 0; row < rowCols.length; row++) {
+            int[] cols = rowCols[row];
+            double[] weights = rowWeights[row];
+            for (int k = 0; k < cols.length; k++) {
+                assignment.addEdge(row, cols[k], weights[k]);
+            }
+        }
+        return assignment;
+    }
+
+    /**
+     * Load the evaluated weights into a dense matcher. The matcher is reset to
+     * the padded size, predicted-experimental pairs that weren't candidates
+     * get the default weight and the padding is zero.
+     *
+     * @param matcher the matcher to load
+     * @param defaultWeight weight of the pairs that weren't evaluated
+     */
+    public void setWeights(BipartiteMatcher matcher, double defaultWeight) {
+        int sizeP = rowCols.length;
+        int sizeE = expList.size();
+        int N = sizeP + sizeE;
+        matcher.reset(N, true);
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < N; j++) {
+                double weight = (i < sizeP) && (j < sizeE) ? defaultWeight : 0.0;
+                matcher.setWeight(i, j, weight);
+            }
+        }
+        for (int row = 0; row < sizeP; row++) {
+            int[] cols = rowCols[row];
+            double[] weights = rowWeights[row];
+            for (int k = 0; k < cols.length; k++) {
+                matcher.setWeight(row, cols[k], weights[k]);
+            }
+        }
+    }
+
+    /**
+     * Scratch space used by one worker for the row it is evaluating.
+     */
+    static class RowBuffer {
+
+        int n = 0;
+        int[] cols = new int[16];
+        double[] weights = new double[16];
+
+        void add(int col, double weight) {
+            if (n == cols.length) {
+                cols = Arrays.copyOf(cols, n * 2);
+                weights = Arrays.copyOf(weights, n * 2);
+            }
+            cols[n] = col;
+            weights[n] = weight;
+            n++;
+        }
+    }
+
+    class RowTask extends RecursiveAction {
+
+        final PeakGridIndex index;
+        final PeakListAligner.PairWeight pairWeight;
+        final BooleanSupplier cancelled;
+        final IntConsumer progress;
+        final int start;
+        final int end;
+
+        RowTask(PeakGridIndex index, PeakListAligner.PairWeight pairWeight,
+                BooleanSupplier cancelled, IntConsumer progress, int start, int end) {
+            this.index = index;
+            this.pairWeight = pairWeight;
+            this.cancelled = cancelled;
+            this.progress = progress;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= ROW_THRESHOLD) {
+                calcRows();
+            } else {
+                int mid = (start + end) / 2;
+                invokeAll(new RowTask(index, pairWeight, cancelled, progress, start, mid),
+                        new RowTask(index, pairWeight, cancelled, progress, mid, end));
+            }
+        }
+
+        void calcRows() {
+            RowBuffer buffer = new RowBuffer();
+            for (int row = start; row < end; row++) {
+                if ((cancelled != null) && cancelled.getAsBoolean()) {
+                    return;
+                }
+                buffer.n = 0;
+                Peak predPeak = predList.getPeak(row);
+                index.forEachCandidate(predPeak, iE -> {
+                    Peak expPeak = expList.getPeak(iE);
+                    double distance = expPeak.distance(predPeak, scale);
+                    if (distance < 1.0) {
+                        buffer.add(iE, pairWeight.weight(predPeak, expPeak, distance));
+                    }
+                });
+                rowCols[row] = Arrays.copyOf(buffer.cols, buffer.n);
+                rowWeights[row] = Arrays.copyOf(buffer.weights, buffer.n);
+                int nRows = nDone.incrementAndGet();
+                if (progress != null) {
+                    progress.accept(nRows);
+                }
+            }
+        }
+    }
+}
@@ -18,22 +18,28 @@ import java.util.Optional;
 import java.util.Random;
 import java.util.Set;
 import java.util.function.Consumer;
+import javafx.application.Platform;
+import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.event.Event;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckMenuItem;
 import javafx.scene.control.ContentDisplay;
 import javafx.scene.control.ContextMenu;
 import javafx.scene.control.Label;
 import javafx.scene.control.MenuButton;
 import javafx.scene.control.Menu;
 import javafx.scene.control.MenuItem;
+import javafx.scene.control.ProgressBar;
 import javafx.scene.control.ToolBar;
+import javafx.scene.control.Tooltip;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.Pane;
 import javafx.scene.layout.Priority;
 import javafx.scene.paint.Color;
+import org.controlsfx.dialog.ExceptionDialog;
 import org.nmrfx.chemistry.Atom;
 import org.nmrfx.peaks.FreezeListener;
 import org.nmrfx.peaks.Peak;
@@ -50,7 +56,7 @@ import org.nmrfx.processor.optimization.PeakCluster;
 import org.nmrfx.processor.gui.spectra.ConnectPeakAttributes;
 import org.nmrfx.processor.gui.spectra.DatasetAttributes;
 import org.nmrfx.processor.gui.spectra.KeyBindings;
-import org.nmrfx.processor.optimization.BipartiteMatcher;
+import org.nmrfx.utils.GUIUtils;
 import org.nmrfx.processor.project.Project;
 
 /**
@@ -77,7 +83,16 @@ public class PeakSlider implements ControllerTool {
     List<Peak> selPeaks;
     List<FreezeListener> listeners = new ArrayList<>();
     PeakClusterMatcher[] matchers = new PeakClusterMatcher[2];
+    // connection paths of the matched cluster pairs, keyed by the root peak of the predicted cluster
+    List<Map<Peak, MatchPaths>> matchPaths = new ArrayList<>(Arrays.asList(new HashMap<>(), new HashMap<>()));
     Random rand = new Random();
+    boolean sparseMatching = false;
+    int nMultiStarts = 8;
+    ResolvedLabelCache labelCache = new ResolvedLabelCache();
+    ProgressBar alignProgressBar;
+    Button cancelAlignButton;
+    Label alignStatusLabel;
+    Task<?> alignTask = null;
 
     public PeakSlider(FXMLController controller, Consumer<PeakSlider> closeAction) {
         this.controller = controller;
@@ -145,6 +160,13 @@ public class PeakSlider implements ControllerTool {
         intensityLabel = new Label();
         intensityLabel.setMinWidth(75);
 
+        alignProgressBar = new ProgressBar(0.0);
+        alignProgressBar.setVisible(false);
+        cancelAlignButton = new Button("Cancel");
+        cancelAlignButton.setOnAction(e -> cancelAlign());
+        cancelAlignButton.setVisible(false);
+        alignStatusLabel = new Label();
+
         MenuButton actionMenu = new MenuButton("Actions");
         MenuItem thawAllItem = new MenuItem("Thaw All");
         thawAllItem.setOnAction(e -> thawAllPeaks());
@@ -163,7 +185,12 @@ public class PeakSlider implements ControllerTool {
         clearMatchItem.setOnAction(e -> clearMatches());
         MenuItem autoItem = new MenuItem("Auto");
         autoItem.setOnAction(e -> autoAlign());
-        matchingMenu.getItems().addAll(matchColumnItem, matchRowItem, clearMatchItem, autoItem);
+        MenuItem multiStartItem = new MenuItem("Auto (Multi-Start)");
+        multiStartItem.setOnAction(e -> autoAlignMultiStart(nMultiStarts));
+        CheckMenuItem sparseItem = new CheckMenuItem("Sparse Matching");
+        sparseItem.setSelected(sparseMatching);
+        sparseItem.setOnAction(e -> setSparseMatching(sparseItem.isSelected()));
+        matchingMenu.getItems().addAll(matchColumnItem, matchRowItem, clearMatchItem, autoItem, multiStartItem, sparseItem);
 
         actionMenu.getItems().addAll(thawAllItem, restoreItem, restoreAllItem, randomizeAllItem, matchingMenu);
 
@@ -185,6 +212,7 @@ public class PeakSlider implements ControllerTool {
             toolBar.getItems().addAll(buttons);
             toolBar.getItems().add(filler2);
             toolBar.getItems().addAll(atomXFieldLabel, atomXLabel, filler3, atomYFieldLabel, atomYLabel, filler4, intensityFieldLabel, intensityLabel);
+            toolBar.getItems().addAll(alignProgressBar, cancelAlignButton, alignStatusLabel);
 
             toolBar.getItems().add(filler5);
         }
@@ -211,6 +239,10 @@ public class PeakSlider implements ControllerTool {
     }
 
     public final void setupLists(final boolean state) {
+        if (isAligning()) {
+            // the running alignment uses the current lists and clusters
+            return;
+        }
         controller.getCharts().stream().forEach(chart -> {
             chart.getPeakListAttributes().stream().forEach(peakListAttr -> {
                 // XXX unclear why the following cast is necessary
@@ -257,14 +289,14 @@ public class PeakSlider implements ControllerTool {
     public void freezePeaks(boolean useAllConditions) {
         // do setup because we could have added a peak list after adding slider controller.  Should be a better way
         setupLists(true);
+        FreezeTransaction transaction = new FreezeTransaction();
         controller.getCharts().stream().forEach(chart -> {
             List<Peak> selected = chart.getSelectedPeaks();
             selected.forEach((peak) -> {
-                peak.setFrozen(true, useAllConditions);
-                PeakList.notifyFreezeListeners(peak, true);
+                transaction.freeze(peak, true, useAllConditions);
             });
         });
-
+        transaction.commit();
     }
 
     public void thawPeaks(Event event) {
@@ -276,26 +308,28 @@ public class PeakSlider implements ControllerTool {
     public void thawPeaks(boolean useAllConditions) {
         // do setup because we could have added a peak list after adding slider controller.  Should be a better way
         setupLists(true);
+        FreezeTransaction transaction = new FreezeTransaction();
         controller.getCharts().stream().forEach(chart -> {
             List<Peak> selected = chart.getSelectedPeaks();
             selected.forEach((peak) -> {
-                peak.setFrozen(false, useAllConditions);
-                PeakList.notifyFreezeListeners(peak, false);
+                transaction.freeze(peak, false, useAllConditions);
             });
         });
-
+        transaction.commit();
     }
 
     public void thawAllPeaks() {
         Alert alert = new Alert(Alert.AlertType.CONFIRMATION, "Thaw all peaks?");
         alert.showAndWait().ifPresent(response -> {
+            FreezeTransaction transaction = new FreezeTransaction();
             for (PeakList peakList : PeakList.peakLists()) {
                 if (peakList.isSimulated()) {
                     peakList.peaks().stream().forEach(peak -> {
-                        peak.setFrozen(false, true);
+                        transaction.freeze(peak, false, true);
                     });
                 }
             }
+            transaction.commit();
         });
     }
 
@@ -308,40 +342,31 @@ public class PeakSlider implements ControllerTool {
     public void tweakPeaks(boolean useAllConditions) {
         // do setup because we could have added a peak list after adding slider controller.  Should be a better way
         setupLists(true);
+        BulkPeakTweaker tweaker = new BulkPeakTweaker();
         controller.getCharts().stream().forEach(chart -> {
-            List<Peak> selected = chart.getSelectedPeaks();
-            selected.forEach((peak) -> {
-                tweakPeak(peak, useAllConditions);
-            });
+            tweaker.addAll(chart.getSelectedPeaks());
         });
+        List<Peak> tweaked;
+        try {
+            PolyChart.setPeakListenerState(false);
+            tweaked = tweaker.tweak(true);
+        } finally {
+            PolyChart.setPeakListenerState(true);
+        }
+        FreezeTransaction transaction = new FreezeTransaction();
+        tweaked.forEach(peak -> transaction.freeze(peak, true, useAllConditions));
+        transaction.commit();
+        controller.redrawChildren();
     }
 
     public void tweakPeak(Peak peak, boolean useAllConditions) {
-        Set<Peak> peakSet = new HashSet<>();
-        int nDim = peak.getPeakList().getNDim();
-        for (int i = 0; i < nDim; i++) {
-            List<Peak> peaks = PeakList.getLinks(peak, i);
-            peakSet.addAll(peaks);
-        }
+        FreezeTransaction transaction = new FreezeTransaction();
+        tweakPeak(peak, useAllConditions, transaction);
+        transaction.commit();
+    }
 
-        List<Peak> peaksB = new ArrayList<>();
-        // find all peaks that are linked in all dimensions to original peak
-        // These are the peaks that should be tweaked when original peak is tweaked.
-        for (Peak speak : peakSet) {
-            if (speak == peak) {
-                continue;
-            }
-            boolean ok = true;
-            for (int i = 0; i < nDim; i++) {
-                if (!PeakList.isLinked(peak, i, speak)) {
-                    ok = false;
-                    break;
-                }
-            }
-            if (ok) {
-                peaksB.add(speak);
-            }
-        }
+    void tweakPeak(Peak peak, boolean useAllConditions, FreezeTransaction transaction) {
+        List<Peak> peaksB = BulkPeakTweaker.getTweakLinkedPeaks(peak);
 
         PeakList peakList = peak.getPeakList();
         Dataset dataset = Dataset.getDataset(peakList.fileName);
@@ -353,7 +378,6 @@ public class PeakSlider implements ControllerTool {
             try {
                 peak.tweak(dataset, pdim, planes);
                 peak.setFrozen(true, false);
-                PeakList.notifyFreezeListeners(peak, true);
                 for (Peak lPeak : peaksB) {
                     peakList = lPeak.getPeakList();
                     dataset = Dataset.getDataset(peakList.fileName);
@@ -361,8 +385,7 @@ public class PeakSlider implements ControllerTool {
                         lPeak.tweak(dataset, pdim, planes);
                     }
                 }
-                peak.setFrozen(true, useAllConditions);
-                PeakList.notifyFreezeListeners(peak, true);
+                transaction.freeze(peak, true, useAllConditions);
             } catch (IOException ioE) {
 
             }
@@ -376,8 +399,7 @@ public class PeakSlider implements ControllerTool {
             List<Peak> selected = chart.getSelectedPeaks();
             selected.forEach((peak) -> {
                 for (PeakDim peakDim : peak.getPeakDims()) {
-                    String label = peakDim.getLabel();
-                    Atom atom = Molecule.getAtomByName(label);
+                    Atom atom = labelCache.getAtom(peakDim);
                     if (atom != null) {
                         Double refPPM = atom.getRefPPM();
                         if (refPPM != null) {
@@ -412,24 +434,30 @@ public class PeakSlider implements ControllerTool {
     public void restoreAllPeaks(boolean randomize) {
         Alert alert = new Alert(Alert.AlertType.CONFIRMATION, "Move all peaks back to predicted positions?");
         alert.showAndWait().ifPresent(response -> {
-            Map<Atom, Double> shiftMap = getShiftMap(randomize);
+            FreezeTransaction transaction = new FreezeTransaction();
+            List<ResolvedLabelCache.ResolvedList> resolvedLists = new ArrayList<>();
             for (PeakList peakList : PeakList.peakLists()) {
                 if (peakList.isSimulated()) {
-                    peakList.peaks().stream().forEach(peak -> {
-                        for (PeakDim peakDim : peak.getPeakDims()) {
-                            String label = peakDim.getLabel();
-                            Atom atom = Molecule.getAtomByName(label);
-                            if (atom != null) {
-                                Double refPPM = shiftMap.get(atom);
-                                if (refPPM != null) {
-                                    peakDim.setChemShift(refPPM.floatValue());
-                                }
-                            }
-                        }
-                        peak.setFrozen(false, true);
-                    });
+                    resolvedLists.add(labelCache.getResolved(peakList));
+                }
+            }
+            double[] shifts = labelCache.getRefShifts(randomize ? rand : null);
+            try {
+                PolyChart.setPeakListenerState(false);
+                // applied on the FX thread, setChemShift updates linked peaks and fires peak events
+                for (ResolvedLabelCache.ResolvedList resolved : resolvedLists) {
+                    ResolvedLabelCache.applyShifts(resolved, shifts);
                 }
+            } finally {
+                PolyChart.setPeakListenerState(true);
             }
+            for (ResolvedLabelCache.ResolvedList resolved : resolvedLists) {
+                for (Peak peak : resolved.getPeaks()) {
+                    transaction.freeze(peak, false, true);
+                }
+            }
+            transaction.commit();
+            controller.redrawChildren();
         });
     }
 
@@ -654,7 +682,7 @@ public class PeakSlider implements ControllerTool {
                 System.out.println("All peaks to freeze: " + peaksToFreeze);
                 printClusterScore(clickedPeak, 0);
                 printClusterScore(clickedPeak, 1);
-                updateMatchers(true);
+                updateMatchers(true, getTouchedPeaks(clickedPeak));
             }
         }
     }
@@ -669,11 +697,142 @@ public class PeakSlider implements ControllerTool {
     }
 
     void updateMatchers(boolean drawMatches) {
+        if (isAligning()) {
+            return;
+        }
         clearPeakConnections();
         matchClusters(0, drawMatches);
         matchClusters(1, drawMatches);
     }
 
+    /**
+     * Re-match after peaks have been shifted and frozen. Only the connection
+     * paths of predicted clusters whose pairing or peaks changed are
+     * rebuilt. Charts are redrawn only if they
+     * show a peak list with a changed path.
+     *
+     * @param drawMatches draw the connections between matched peaks
+     * @param touchedPeaks peaks whose shifts or frozen state changed
+     */
+    void updateMatchers(boolean drawMatches, Set<Peak> touchedPeaks) {
+        if (isAligning()) {
+            return;
+        }
+        Set<PeakList> changedLists = new HashSet<>();
+        for (int iDim = 0; iDim < matchers.length; iDim++) {
+            if (matchers[iDim] == null) {
+                createNewMatcher(iDim);
+                matchers[iDim].runMatch();
+                matchers[iDim].getClusterMatch().forEach(clusMatch -> changedLists.add(clusMatch[1].rootPeak.getPeakList()));
+                if (drawMatches) {
+                    updateMatchPaths(iDim, null);
+                }
+            } else {
+                Set<PeakCluster> changed = rematchClusters(matchers[iDim], touchedPeaks);
+                if (drawMatches) {
+                    updateMatchPaths(iDim, changed);
+                }
+                changed.forEach(cluster -> changedLists.add(cluster.rootPeak.getPeakList()));
+            }
+        }
+        if (drawMatches && !changedLists.isEmpty()) {
+            controller.getCharts().stream()
+                    .filter(chart -> chart.getPeakListAttributes().size() == 2)
+                    .filter(chart -> chart.getPeakListAttributes().stream()
+                    .anyMatch(peakListAttr -> changedLists.contains(((PeakListAttributes) peakListAttr).getPeakList())))
+                    .forEach(chart -> {
+                        chart.clearPeakPaths();
+                        matchPaths.forEach(dimPaths -> dimPaths.values().forEach(matchPath -> {
+                            matchPath.paths.forEach(chart::addPeakPath);
+                        }));
+                        chart.drawPeakLists(true);
+                    });
+        }
+    }
+
+    /**
+     * Re-match the clusters after peaks were touched, and find the predicted
+     * clusters whose connection paths must be rebuilt: those whose pairing
+     * changed, those containing touched peaks and those paired to
+     * experimental clusters containing touched peaks. The pairing is done by
+     * runMatch, so it is the same as after a full matchClusters.
+     *
+     * @param matcher the matcher
+     * @param touchedPeaks peaks whose shifts or frozen state changed
+     * @return the predicted clusters whose pairing or peaks changed
+     */
+    Set<PeakCluster> rematchClusters(PeakClusterMatcher matcher, Set<Peak> touchedPeaks) {
+        Map<PeakCluster, PeakCluster> oldPairs = getClusterPairs(matcher);
+        matcher.runMatch();
+        Map<PeakCluster, PeakCluster> newPairs = getClusterPairs(matcher);
+        Set<PeakCluster> changed = new HashSet<>();
+        oldPairs.forEach((predCluster, expCluster) -> {
+            if (newPairs.get(predCluster) != expCluster) {
+                changed.add(predCluster);
+            }
+        });
+        newPairs.forEach((predCluster, expCluster) -> {
+            if (oldPairs.get(predCluster) != expCluster) {
+                changed.add(predCluster);
+            }
+        });
+        for (Peak peak : touchedPeaks) {
+            PeakCluster cluster = matcher.getCluster(peak);
+            if (cluster == null) {
+                continue;
+            }
+            if (peak.getPeakList().isSimulated()) {
+                changed.add(cluster);
+            } else if (cluster.getPairedTo() != null) {
+                changed.add(cluster.getPairedTo());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Get the experimental cluster each predicted cluster is matched to.
+     */
+    Map<PeakCluster, PeakCluster> getClusterPairs(PeakClusterMatcher matcher) {
+        Map<PeakCluster, PeakCluster> pairs = new HashMap<>();
+        List<PeakCluster[]> clusterMatches = matcher.getClusterMatch();
+        if (clusterMatches != null) {
+            clusterMatches.forEach(clusMatch -> pairs.put(clusMatch[1], clusMatch[0]));
+        }
+        return pairs;
+    }
+
+    /**
+     * Get the peaks whose positions may have been changed by shifting and
+     * freezing the clicked peak: the peaks in its row and column clusters,
+     * their matching experimental peaks and any peaks linked to these.
+     */
+    Set<Peak> getTouchedPeaks(Peak clickedPeak) {
+        Set<Peak> touched = new HashSet<>();
+        touched.add(clickedPeak);
+        for (PeakClusterMatcher matcher : matchers) {
+            PeakCluster simClus = matcher.getCluster(clickedPeak);
+            if (simClus != null) {
+                for (Peak peak : simClus.getLinkedPeaks()) {
+                    touched.add(peak);
+                    Peak matchingPeak = matcher.getMatchingPeak(peak);
+                    if (matchingPeak != null) {
+                        touched.add(matchingPeak);
+                    }
+                }
+            }
+        }
+        Set<Peak> linked = new HashSet<>();
+        for (Peak peak : touched) {
+            int nDim = peak.getPeakList().getNDim();
+            for (int i = 0; i < nDim; i++) {
+                linked.addAll(PeakList.getLinks(peak, i));
+            }
+        }
+        touched.addAll(linked);
+        return touched;
+    }
+
     void freezeMatchPeakDim(Peak peakToFreeze, Peak assocPeak, int iDim) {
         if (peakToFreeze == null || assocPeak == null) {
             return;
@@ -884,6 +1043,10 @@ public class PeakSlider implements ControllerTool {
 
     public void matchClusters(int iDim, boolean drawMatches) {
         System.out.println("matchClusters(" + iDim + ")");
+        if (isAligning()) {
+            alignStatusLabel.setText("Can't match while aligning");
+            return;
+        }
 
         // storing peak list attributes which contain information about the peak lists
         // in each chart.
@@ -931,45 +1094,91 @@ public class PeakSlider implements ControllerTool {
         }
         );
         matchers[iDim] = new PeakClusterMatcher(expLists, predLists, iDim);
+        matchPaths.get(iDim).clear();
+
+    }
+
+    /**
+     * Connection paths between the peaks of a matched pair of clusters.
+     */
+    static class MatchPaths {
+
+        final Peak expRoot;
+        final List<ConnectPeakAttributes> paths;
 
+        MatchPaths(Peak expRoot, List<ConnectPeakAttributes> paths) {
+            this.expRoot = expRoot;
+            this.paths = paths;
+        }
     }
 
     void drawAllMatches(int iDim) {
-        controller.getCharts().stream()
-                .filter(chart -> chart.getPeakListAttributes().size() == 2)
-                .forEach(chart -> {
-                    PeakClusterMatcher matcher = matchers[iDim];
-                    if (matcher != null) {
-                        List<PeakCluster[]> clusterMatches = matcher.getClusterMatch(); // list of matched clusters
-                        if (clusterMatches != null) {
-                            clusterMatches.stream()
-                                    .map((clusMatch) -> {
-                                        PeakCluster expCluster = clusMatch[0];
-                                        PeakCluster predCluster = clusMatch[1];
-                                        List<List<Peak>> matchingPeaks = expCluster.getPeakMatches(predCluster);
-                                        return matchingPeaks;
-                                    })
-                                    .forEachOrdered((matchingPeaks) -> {
-                                        matchingPeaks.forEach(pairedPeaks -> {
-                                            boolean isColumn = matcher.getMatchDim() == 0;
-                                            ConnectPeakAttributes connPeakAttrs = setPeakPairAttrs(isColumn, pairedPeaks);
-                                            if (connPeakAttrs != null) {
-                                                chart.addPeakPath(connPeakAttrs);
-                                            }
-                                        }
-                                        );
-                                    });
-                            chart.drawPeakLists(true);
-                        }
+        if (updateMatchPaths(iDim, null)) {
+            controller.getCharts().stream()
+                    .filter(chart -> chart.getPeakListAttributes().size() == 2)
+                    .forEach(chart -> {
+                        matchPaths.get(iDim).values().forEach(matchPath -> {
+                            matchPath.paths.forEach(chart::addPeakPath);
+                        });
+                        chart.drawPeakLists(true);
+                    });
+        }
+    }
+
+    /**
+     * Build the connection paths between matched peaks of the specified
+     * dimension.
+     *
+     * @param iDim the match dimension
+     * @param changed the predicted clusters whose paths are replaced. If null
+     * the paths of all matched clusters are built.
+     * @return true if the matcher has cluster matches
+     */
+    boolean updateMatchPaths(int iDim, Set<PeakCluster> changed) {
+        PeakClusterMatcher matcher = matchers[iDim];
+        if (matcher == null) {
+            return false;
+        }
+        boolean isColumn = matcher.getMatchDim() == 0;
+        Map<Peak, MatchPaths> dimPaths = matchPaths.get(iDim);
+        Map<PeakCluster, PeakCluster> pairs = new HashMap<>();
+        if (changed == null) {
+            List<PeakCluster[]> clusterMatches = matcher.getClusterMatch(); // list of matched clusters
+            if (clusterMatches == null) {
+                return false;
+            }
+            dimPaths.clear();
+            clusterMatches.forEach(clusMatch -> pairs.put(clusMatch[1], clusMatch[0]));
+        } else {
+            changed.forEach(predCluster -> pairs.put(predCluster, predCluster.getPairedTo()));
+        }
+        pairs.forEach((predCluster, expCluster) -> {
+            if (expCluster == null) {
+                dimPaths.remove(predCluster.rootPeak);
+            } else {
+                List<ConnectPeakAttributes> paths = new ArrayList<>();
+                List<List<Peak>> matchingPeaks = expCluster.getPeakMatches(predCluster);
+                matchingPeaks.forEach(pairedPeaks -> {
+                    ConnectPeakAttributes connPeakAttrs = setPeakPairAttrs(isColumn, pairedPeaks);
+                    if (connPeakAttrs != null) {
+                        paths.add(connPeakAttrs);
                     }
                 });
-
+                dimPaths.put(predCluster.rootPeak, new MatchPaths(expCluster.rootPeak, paths));
+            }
+        });
+        return true;
     }
 
     public void clearMatches() {
+        if (isAligning()) {
+            alignStatusLabel.setText("Matches can't be cleared while aligning");
+            return;
+        }
         for (int i = 0; i < matchers.length; i++) {
             matchers[i] = null;
         }
+        matchPaths.forEach(Map::clear);
 
         clearPeakConnections();
     }
@@ -992,277 +1201,191 @@ public class PeakSlider implements ControllerTool {
         return isNull;
     }
 
-    public void autoAlign() {
-        Optional<PeakList> hmqcPredListOpt = Optional.empty();
-        Optional<PeakList> hmqcExpListOpt = Optional.empty();
-        Optional<PeakList> tocsyPredListOpt = Optional.empty();
-        Optional<PeakList> tocsyExpListOpt = Optional.empty();
-        Optional<PeakList> noesyPredListOpt = Optional.empty();
-        Optional<PeakList> noesyExpListOpt = Optional.empty();
-        for (PeakList peakList : Project.getActive().getPeakLists()) {
-            if (peakList.getName().contains("hmqc")) {
-                if (peakList.isSimulated()) {
-                    hmqcPredListOpt = Optional.of(peakList);
-                } else {
-                    hmqcExpListOpt = Optional.of(peakList);
-                }
-            } else if (peakList.getName().contains("tocsy")) {
-                if (peakList.isSimulated()) {
-                    tocsyPredListOpt = Optional.of(peakList);
-                } else {
-                    tocsyExpListOpt = Optional.of(peakList);
-                }
-            } else if (peakList.getName().contains("noesy")) {
-                if (peakList.isSimulated()) {
-                    noesyPredListOpt = Optional.of(peakList);
-                } else {
-                    noesyExpListOpt = Optional.of(peakList);
-                }
-            }
-        }
-        System.out.println(hmqcPredListOpt);
-        System.out.println(hmqcExpListOpt);
-        System.out.println(tocsyPredListOpt);
-        System.out.println(tocsyExpListOpt);
-        if (hmqcExpListOpt.isPresent() && hmqcPredListOpt.isPresent()) {
-            System.out.println("got hmqc");
-            if (tocsyExpListOpt.isPresent() && tocsyPredListOpt.isPresent()) {
-                System.out.println("got tocsy");
-                double[] tocsyScale = {0.5, 0.5};
-                double[] hmqcScale = {0.5, 5.0};
-                alignPeakList(hmqcPredListOpt.get(), hmqcExpListOpt.get(),
-                        tocsyPredListOpt.get(), tocsyExpListOpt.get(),
-                        noesyPredListOpt.get(), noesyExpListOpt.get(),
-                        hmqcScale, tocsyScale);
-            }
-
-        }
+    /**
+     * Set whether the align methods use the sparse, tolerance gated, matcher
+     * instead of the dense BipartiteMatcher.
+     *
+     * @param state true to use the sparse matcher
+     */
+    public void setSparseMatching(boolean state) {
+        sparseMatching = state;
     }
 
-    BipartiteMatcher compareHMQC(PeakList hmqcPred, PeakList hmqcExp) {
-
-        BipartiteMatcher matcher = new BipartiteMatcher();
-        int N = hmqcPred.size() + hmqcExp.size();
-        matcher.reset(N, true);
-        // init
-        for (int i = 0; i < N; i++) {
-            for (int j = 0; j < N; j++) {
-                matcher.setWeight(i, j, 0.0);
-            }
-        }
-
-        int sizeE = hmqcExp.size();
-        int sizeP = hmqcPred.size();
-        double[] scale = {0.5, 10.0};
-
-        for (int iE = 0; iE < sizeE; iE++) {
-            for (int jP = 0; jP < sizeP; jP++) {
-                Peak expPeak = hmqcExp.getPeak(iE);
-                Peak predPeak = hmqcPred.getPeak(jP);
-                double distance = expPeak.distance(predPeak, scale);
-                double weight = 0.0;
-                if (distance < 1.0) {
-                    weight = 1.0 - distance;
-                }
-                matcher.setWeight(iE, jP, weight);
-            }
-        }
-        return matcher;
+    public boolean isSparseMatching() {
+        return sparseMatching;
     }
 
-    double calcNOEClusterAdj(PeakList predNOEPeakList, Peak predHMQCPeak, Peak expHMQCPeak) {
-        double maxScore = Double.NEGATIVE_INFINITY;
-        List<PeakDim> peakDims = PeakList.getLinkedPeakDims(predHMQCPeak, 0);
-        Peak maxPeak = null;
-//        System.out.println("hmqc " + predHMQCPeak.getName());
-        for (PeakDim peakDim : peakDims) {
-            if (peakDim.getPeakList() == predNOEPeakList) {
-                PeakClusterMatcher matcher = matchers[peakDim.getSpectralDim()];
-                PeakCluster peakCluster = matcher.getClusterWithPeak(peakDim.getPeak());
-//                System.out.println(matcher + " " + peakCluster + " " + peakDim.getPeak().getName());
-                if (peakCluster != null) {
-                    peakCluster.setShift(expHMQCPeak.getPeakDim(0).getChemShiftValue());
-                    PeakCluster[] expClusters = matcher.getExpPeakClus();
-                    for (PeakCluster expCluster : expClusters) {
-                        if (peakCluster.isInTol(expCluster)) {
-                            double score = expCluster.comparisonScore(peakCluster);
-                            if (score > maxScore) {
-                                maxScore = score;
-                                maxPeak = expCluster.rootPeak;
-                            }
-                        }
-                    }
-                    peakCluster.restoreShift();
-                    break;
-                }
-            }
+    public void autoAlign() {
+        Optional<PeakListAligner> alignerOpt = PeakListAligner.fromProject("active", Project.getActive());
+        if (alignerOpt.isPresent()) {
+            PeakListAligner aligner = alignerOpt.get();
+            aligner.setScales(PeakListAligner.DEFAULT_HMQC_SCALE, PeakListAligner.DEFAULT_TOCSY_SCALE);
+            alignPeakList(aligner);
+        } else {
+            GUIUtils.warn("Auto Align", "Auto align needs predicted and experimental hmqc, tocsy and noesy peak lists");
         }
-//        if (maxPeak != null) {
-//            System.out.println(predHMQCPeak.getName() + " " + maxPeak.getName() + " " + maxScore);
-//        }
-        return maxScore;
     }
 
-    double calcTOCSYAdj(PeakList predTOCSYList, PeakList expTOCSYList,
-            Peak predHMQCPeak, Peak expHMQCPeak,
-            double[] tocsyScale, double smallTol) {
-        double weightAdj = 1.0;
-        double[][] limits = new double[2][2];
-
-        if (predHMQCPeak.getPeakDim(0).getLabel().endsWith("H5") || predHMQCPeak.getPeakDim(0).getLabel().endsWith("H6")) {
-            double expPPM = expHMQCPeak.getPeakDim(0).getChemShiftValue();
-            List<PeakDim> peakDims = PeakList.getLinkedPeakDims(predHMQCPeak, 0);
-//            System.out.println("linked " + peakDims.size() + " " + predHMQCPeak.getPeakDim(0).getLabel());
-            for (PeakDim peakDim : peakDims) {
-                if (peakDim.getPeakList() == predTOCSYList) {
-                    Peak predTOCSYPeak = peakDim.getPeak();
-//                    System.out.println("tocsy " + predTOCSYPeak.getName());
-                    double[] ppms = {predTOCSYPeak.getPeakDim(0).getChemShiftValue(),
-                        predTOCSYPeak.getPeakDim(1).getChemShiftValue()};
-                    int ppmDim;
-                    double origPPM;
-                    if (peakDim.getSpectralDim() == 1) {
-                        limits[0][1] = ppms[0] - tocsyScale[0];
-                        limits[0][0] = ppms[0] + tocsyScale[0];
-                        limits[1][1] = expPPM - smallTol;
-                        limits[1][0] = expPPM + smallTol;
-                        ppmDim = 0;
-                        origPPM = ppms[0];
-                    } else {
-                        limits[0][1] = expPPM - smallTol;
-                        limits[0][0] = expPPM + smallTol;
-                        limits[1][1] = ppms[1] - tocsyScale[1];
-                        limits[1][0] = ppms[1] + tocsyScale[1];
-                        ppmDim = 1;
-                        origPPM = ppms[1];
-                    }
-                    int[] searchDims = {0, 1};
-                    List<Peak> nearPeaks = expTOCSYList.locatePeaks(limits, searchDims);
-                    if (!nearPeaks.isEmpty()) {
-                        double ppmNear = nearPeaks.get(0).getPeakDim(ppmDim).getChemShiftValue();
-                        double tocsyDis = Math.abs(ppmNear - origPPM) / tocsyScale[0];
-//                        System.out.println(predHMQCPeak.getName() + " " + nearPeaks.get(0).getName() + " " + predTOCSYPeak.getName() + " " + tocsyDis);
-                        weightAdj = tocsyDis;
-                    }
-                }
-            }
+    /**
+     * Align from several randomized starts, each on copies of the predicted
+     * lists, and move the live predicted peaks to the best scoring result. The
+     * NOESY clusters are limited to the region shown in the first chart.
+     *
+     * @param nStarts the number of starts
+     */
+    public void autoAlignMultiStart(int nStarts) {
+        if ((alignTask != null) && alignTask.isRunning()) {
+            return;
         }
-        return weightAdj;
-    }
-
-    void alignTOCSY(PeakList predTOCSYList, PeakList expTOCSYList, double[] tocsyScale) {
-
-        BipartiteMatcher matcher = new BipartiteMatcher();
-        int N = predTOCSYList.size() + expTOCSYList.size();
-        matcher.reset(N, true);
-        // init
-        for (int i = 0; i < N; i++) {
-            for (int j = 0; j < N; j++) {
-                matcher.setWeight(i, j, 0.0);
-            }
+        Optional<PeakListAligner> alignerOpt = PeakListAligner.fromProject("multistart", Project.getActive());
+        if (!alignerOpt.isPresent()) {
+            GUIUtils.warn("Auto Align", "Auto align needs predicted and experimental hmqc, tocsy and noesy peak lists");
+            return;
         }
-        int sizeE = expTOCSYList.size();
-        int sizeP = predTOCSYList.size();
-
-        for (int iE = 0; iE < sizeE; iE++) {
-            for (int jP = 0; jP < sizeP; jP++) {
-                Peak expPeak = expTOCSYList.getPeak(iE);
-                Peak predPeak = predTOCSYList.getPeak(jP);
-                double distance = expPeak.distance(predPeak, tocsyScale); // if predPeak frozen tighten tolerance
-                double weight = -1.0;
-                if ((distance < 1.0) && (expPeak.getIntensity() > 0.0)) {
-                    weight = 2.0 - distance;
+        PeakListAligner aligner = alignerOpt.get();
+        aligner.setScales(PeakListAligner.DEFAULT_HMQC_SCALE, PeakListAligner.DEFAULT_TOCSY_SCALE);
+        aligner.setSparseMatching(sparseMatching);
+        PolyChart chart = controller.getCharts().get(0);
+        double[][] limits = {{chart.getXAxis().getLowerBound(), chart.getXAxis().getUpperBound()},
+        {chart.getYAxis().getLowerBound(), chart.getYAxis().getUpperBound()}};
+        aligner.setLimits(limits);
+        MultiStartAligner multiStart = new MultiStartAligner(aligner, nStarts, rand.nextLong());
+        multiStart.prepare();
+
+        Task<MultiStartAligner.MultiStartResult> task = new Task<MultiStartAligner.MultiStartResult>() {
+            @Override
+            protected MultiStartAligner.MultiStartResult call() throws Exception {
+                try {
+                    return multiStart.run(this::isCancelled, nDone -> updateProgress(nDone, nStarts));
+                } finally {
+                    // run has waited for all starts, so the copies are no longer used
+                    Platform.runLater(multiStart::dispose);
                 }
-                matcher.setWeight(jP, iE, weight);
             }
-        }
-        int[] matching = matcher.getMatching();
-        for (int i = 0; i < sizeP; i++) {
-            int match = matching[i];
-            if ((match >= 0) && (match < sizeE)) {
-                Peak predPeak = predTOCSYList.getPeak(i);
-                Peak expPeak = expTOCSYList.getPeak(match);
-//                System.out.println(predPeak.getName() + " " + expPeak.getName());
-                for (int dim = 0; dim < 2; dim++) {
-//                    System.out.println(dim + " " + expPeak.getPeakDim(dim).getChemShiftValue());
-                    predPeak.getPeakDim(dim).setChemShiftValue(
-                            expPeak.getPeakDim(dim).getChemShiftValue());
+        };
+        task.setOnSucceeded(e -> {
+            MultiStartAligner.MultiStartResult result = task.getValue();
+            endAlignTask();
+            if (result == null) {
+                return;
+            }
+            StringBuilder startResults = new StringBuilder();
+            for (PeakListAligner.AlignmentResult startResult : result.getResults()) {
+                startResults.append(startResult.toString()).append('\n');
+            }
+            alignStatusLabel.setTooltip(new Tooltip(startResults.toString()));
+            FreezeTransaction transaction = new FreezeTransaction();
+            try {
+                PolyChart.setPeakListenerState(false);
+                if (multiStart.apply(result, transaction)) {
+                    alignStatusLabel.setText("Best " + result.getBestResult().toString());
+                } else {
+                    GUIUtils.warn("Multi-Start Align", "No start produced an alignment");
                 }
+            } finally {
+                PolyChart.setPeakListenerState(true);
             }
-        }
+            transaction.commit();
+            clearMatches();
+            for (FXMLController controller : FXMLController.getControllers()) {
+                controller.redrawChildren();
+            }
+        });
+        task.setOnCancelled(e -> {
+            endAlignTask();
+            alignStatusLabel.setText("Alignment cancelled");
+        });
+        task.setOnFailed(e -> {
+            endAlignTask();
+            ExceptionDialog dialog = new ExceptionDialog(task.getException());
+            dialog.showAndWait();
+        });
+        startAlignTask(task);
     }
 
-    void alignPeakList(PeakList predHMQCList, PeakList expHMQCList,
-            PeakList predTOCSYList, PeakList expTOCSYList,
-            PeakList predNOESYList, PeakList expNOESYList,
-            double[] scale, double[] tocsyScale) {
-        System.out.println("align");
+    void alignPeakList(PeakListAligner aligner) {
+        if ((alignTask != null) && alignTask.isRunning()) {
+            return;
+        }
+        aligner.setSparseMatching(sparseMatching);
         try {
-            alignTOCSY(predTOCSYList, expTOCSYList, tocsyScale);
             PolyChart.setPeakListenerState(false);
+            aligner.alignTOCSY();
             createNewMatcher(0);
             matchers[0].setupClusters();
             createNewMatcher(1);
             matchers[1].setupClusters();
+            // a copy, the slider can replace its matchers once the alignment is done
+            aligner.setMatchers(matchers.clone());
+        } finally {
+            PolyChart.setPeakListenerState(true);
+        }
 
-            BipartiteMatcher matcher = new BipartiteMatcher();
-            int N = predHMQCList.size() + expHMQCList.size();
-            matcher.reset(N, true);
-            // init
-            for (int i = 0; i < N; i++) {
-                for (int j = 0; j < N; j++) {
-                    matcher.setWeight(i, j, 0.0);
-                }
-            }
-
-            int sizeE = expHMQCList.size();
-            int sizeP = predHMQCList.size();
-//        System.out.println("compare " + expHMQCList.getName() + " " + sizeE + " " + predHMQCList.getName() + " " + sizeP + " " + N);
-            double smallTol = expTOCSYList.widthStatsPPM(0).getAverage() / 2.0;
-            for (int iE = 0; iE < sizeE; iE++) {
-                for (int jP = 0; jP < sizeP; jP++) {
-                    Peak expPeak = expHMQCList.getPeak(iE);
-                    Peak predPeak = predHMQCList.getPeak(jP);
-                    double distance = expPeak.distance(predPeak, scale); // if predPeak frozen tighten tolerance
-                    double weight = -1.0;
-                    if ((distance < 1.0) && (expPeak.getIntensity() > 0.0)) {
-                        weight = 2.0 - distance;
-                        double weightAdj = calcTOCSYAdj(predTOCSYList, expTOCSYList, predPeak, expPeak, tocsyScale, smallTol);
-                        double noeAdj = calcNOEClusterAdj(predNOESYList, predPeak, expPeak);
-                        noeAdj /= 30.0;
-                        weight -= weightAdj;
-                        weight += noeAdj;
-                    }
-                    matcher.setWeight(jP, iE, weight);
-
-                    //  System.out.println(jP + " " + iE + " " + distance + " " + weight);
-                }
+        int sizeP = aligner.predHMQCList.size();
+        Task<int[]> task = new Task<int[]>() {
+            @Override
+            protected int[] call() throws Exception {
+                return aligner.calcMatching(this::isCancelled, nDone -> updateProgress(nDone, sizeP));
             }
-            int[] matching = matcher.getMatching();
-            double minWeight = matcher.getMinWeight();
-
-            double score = matcher.getMaxWtSum(matching, minWeight);
-            System.out.println("aligned " + score);
-
-            for (int i = 0; i < sizeP; i++) {
-                int match = matching[i];
-                if ((match >= 0) && (match < sizeE)) {
-                    Peak predPeak = predHMQCList.getPeak(i);
-                    Peak expPeak = expHMQCList.getPeak(match);
-//                    System.out.println(predPeak.getName() + " " + expPeak.getName());
-                    for (int dim = 0; dim < 2; dim++) {
-//                        System.out.println(dim + " " + expPeak.getPeakDim(dim).getChemShiftValue());
-                        predPeak.getPeakDim(dim).setChemShiftValue(
-                                expPeak.getPeakDim(dim).getChemShiftValue());
-                        predPeak.getPeakDim(dim).setFrozen(true);
+        };
+        task.setOnSucceeded(e -> {
+            int[] matching = task.getValue();
+            if (matching != null) {
+                alignStatusLabel.setText(String.format("Aligned, score %.3f", aligner.getScore()));
+                try {
+                    PolyChart.setPeakListenerState(false);
+                    aligner.applyMatching(matching);
+                } finally {
+                    PolyChart.setPeakListenerState(true);
+                    for (FXMLController controller : FXMLController.getControllers()) {
+                        controller.redrawChildren();
                     }
                 }
             }
-        } finally {
-            PolyChart.setPeakListenerState(true);
-            for (FXMLController controller : FXMLController.getControllers()) {
-                controller.redrawChildren();
-            }
+            endAlignTask();
+        });
+        task.setOnCancelled(e -> {
+            endAlignTask();
+            alignStatusLabel.setText("Alignment cancelled");
+        });
+        task.setOnFailed(e -> {
+            endAlignTask();
+            ExceptionDialog dialog = new ExceptionDialog(task.getException());
+            dialog.showAndWait();
+        });
+        startAlignTask(task);
+    }
+
+    /**
+     * @return true while an alignment task is running. The matchers and lists
+     * must not be changed until it finishes.
+     */
+    boolean isAligning() {
+        return alignTask != null;
+    }
+
+    void startAlignTask(Task<?> task) {
+        alignTask = task;
+        alignStatusLabel.setText("Aligning");
+        alignStatusLabel.setTooltip(null);
+        alignProgressBar.progressProperty().bind(task.progressProperty());
+        alignProgressBar.setVisible(true);
+        cancelAlignButton.setVisible(true);
+        Thread th = new Thread(task);
+        th.setDaemon(true);
+        th.start();
+    }
+
+    void endAlignTask() {
+        alignProgressBar.progressProperty().unbind();
+        alignProgressBar.setVisible(false);
+        cancelAlignButton.setVisible(false);
+        alignTask = null;
+    }
+
+    public void cancelAlign() {
+        if (alignTask != null) {
+            alignTask.cancel();
         }
     }
 
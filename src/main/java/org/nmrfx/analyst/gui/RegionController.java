@@ -46,7 +46,6 @@ import org.nmrfx.peaks.PeakList;
 import org.nmrfx.processor.datasets.Dataset;
 import org.nmrfx.processor.gui.FXMLController;
 import org.nmrfx.processor.gui.PolyChart;
-import org.nmrfx.processor.gui.spectra.CrossHairs;
 import org.nmrfx.processor.gui.spectra.DatasetAttributes;
 import org.nmrfx.processor.gui.spectra.MultipletSelection;
 import org.nmrfx.processor.gui.spectra.PeakListAttributes;
@@ -81,6 +80,7 @@ public class RegionController implements Initializable {
     @FXML
     Button splitRegionButton;
     TextField integralField;
+    ThresholdField thresholdField;
     TextField[] couplingFields;
     TextField[] slopeFields;
     private PolyChart chart;
@@ -88,6 +88,7 @@ public class RegionController implements Initializable {
     boolean ignoreCouplingChanges = false;
     ChangeListener<String> patternListener;
     Analyzer analyzer = null;
+    RegionFitControls fitControls = new RegionFitControls();
 
     public RegionController() {
     }
@@ -131,9 +132,18 @@ public class RegionController implements Initializable {
         MenuItem clearThresholdMenuItem = new MenuItem("Clear Threshold");
         clearThresholdMenuItem.setOnAction(e -> clearThreshold());
 
+        MenuItem fullThresholdMenuItem = new MenuItem("Calculate Threshold (Full Pass)");
+        fullThresholdMenuItem.setOnAction(e -> calculateThreshold(true));
+
         menu.getItems().addAll(findRegionsMenuItem, pickRegionsMenuItem,
                 fitRegionsMenuItem, adjustPeakIntegralsMenuItem,
-                clearMenuItem, thresholdMenuItem, clearThresholdMenuItem);
+                clearMenuItem, thresholdMenuItem, clearThresholdMenuItem,
+                fullThresholdMenuItem);
+
+        thresholdField = new ThresholdField(this::getAnalyzer);
+        menuBar.getChildren().addAll(thresholdField.getLabel(), thresholdField.getTextField());
+
+        menuBar.getChildren().addAll(fitControls.getProgressBar(), fitControls.getCancelButton());
     }
 
     public void initNavigator(HBox toolBar) {
@@ -294,17 +304,25 @@ public class RegionController implements Initializable {
         });
     }
 
+    /**
+     * Get the Analyzer of the active chart's dataset. If the active chart
+     * doesn't have a 1D dataset the current Analyzer is kept.
+     *
+     * @return the Analyzer or null if there is none
+     */
     public Analyzer getAnalyzer() {
-        if (analyzer == null) {
-            chart = PolyChart.getActiveChart();
-            Dataset dataset = (Dataset) chart.getDataset();
-            if ((dataset == null) || (dataset.getNDim() > 1)) {
-                Alert alert = new Alert(Alert.AlertType.ERROR);
-                alert.setContentText("Chart must have a 1D dataset");
-                alert.showAndWait();
-                return null;
+        PolyChart activeChart = PolyChart.getActiveChart();
+        Dataset dataset = activeChart == null ? null : (Dataset) activeChart.getDataset();
+        if ((dataset != null) && (dataset.getNDim() == 1)) {
+            if ((analyzer == null) || (analyzer.getDataset() != dataset)) {
+                chart = activeChart;
+                analyzer = AnalyzerRegistry.get(dataset);
             }
-            analyzer = new Analyzer(dataset);
+        } else if (analyzer == null) {
+            Alert alert = new Alert(Alert.AlertType.ERROR);
+            alert.setContentText("Chart must have a 1D dataset");
+            alert.showAndWait();
+            return null;
         }
         return analyzer;
     }
@@ -329,8 +347,7 @@ public class RegionController implements Initializable {
     private void findRegions() {
         Analyzer analyzer = getAnalyzer();
         if (analyzer != null) {
-            analyzer.calculateThreshold();
-            analyzer.getThreshold();
+            thresholdField.calculate(analyzer, false);
             analyzer.autoSetRegions();
             try {
                 analyzer.integrate();
@@ -348,15 +365,13 @@ public class RegionController implements Initializable {
 
     private void fitRegions() {
         Analyzer analyzer = getAnalyzer();
-        if (analyzer != null) {
-            try {
-                analyzer.fitRegions();
-            } catch (Exception ex) {
-                ExceptionDialog eDialog = new ExceptionDialog(ex);
-                eDialog.showAndWait();
+        if ((analyzer != null) && !fitControls.isRunning()) {
+            PeakList peakList = analyzer.getPeakList();
+            if (peakList == null) {
+                warn("Fit Regions", "No peaks to fit, pick the regions first");
                 return;
             }
-            refresh();
+            fitControls.fit((Dataset) chart.getDataset(), peakList, getRegions(), () -> chart.refresh(), this::refresh);
         }
     }
 
@@ -391,21 +406,21 @@ public class RegionController implements Initializable {
 
     private void clearThreshold() {
         if (analyzer != null) {
-            analyzer.clearThreshold();
+            thresholdField.clear(analyzer);
+        }
+    }
+
+    private void calculateThreshold(boolean full) {
+        Analyzer analyzer = getAnalyzer();
+        if (analyzer != null) {
+            thresholdField.calculate(analyzer, full);
         }
     }
 
     private void setThreshold() {
         Analyzer analyzer = getAnalyzer();
         if (analyzer != null) {
-            CrossHairs crossHairs = chart.getCrossHairs();
-            if (!crossHairs.hasCrosshairState("h0")) {
-                warn("Threshold", "Must have horizontal crosshair");
-                return;
-            }
-            Double[] pos = crossHairs.getCrossHairPositions(0);
-            System.out.println(pos[0] + " " + pos[1]);
-            analyzer.setThreshold(pos[1]);
+            thresholdField.setFromCrossHairs(analyzer, chart);
         }
     }
 
@@ -0,0 +1,131 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui;
+
+import java.util.Collection;
+import java.util.function.Consumer;
+import javafx.concurrent.Task;
+import javafx.scene.control.Button;
+import javafx.scene.control.ProgressBar;
+import org.controlsfx.dialog.ExceptionDialog;
+import org.nmrfx.datasets.DatasetRegion;
+import org.nmrfx.peaks.PeakList;
+import org.nmrfx.processor.datasets.Dataset;
+
+/**
+ * The progress bar and cancel button shown by the region tools while regions
+ * are fit, or another long task runs, in the background. Only one task runs
+ * at a time; the controls are visible while it runs. All methods must be
+ * called on the FX thread.
+ */
+public class RegionFitControls {
+
+    final ProgressBar progressBar;
+    final Button cancelButton;
+    Task<?> task = null;
+
+    public RegionFitControls() {
+        progressBar = new ProgressBar(0.0);
+        progressBar.setPrefWidth(100);
+        cancelButton = new Button("Cancel Fit");
+        cancelButton.setOnAction(e -> cancel());
+        setVisible(false);
+    }
+
+    public ProgressBar getProgressBar() {
+        return progressBar;
+    }
+
+    public Button getCancelButton() {
+        return cancelButton;
+    }
+
+    /**
+     * @return true if a task is running
+     */
+    public boolean isRunning() {
+        return (task != null) && !task.isDone();
+    }
+
+    /**
+     * Cancel the running task, if any.
+     */
+    public void cancel() {
+        if (task != null) {
+            task.cancel();
+        }
+    }
+
+    /**
+     * Fit the regions in parallel with a RegionFitter. The first region that
+     * failed, if any, is shown in an ExceptionDialog when all are done.
+     *
+     * @param dataset the 1D dataset
+     * @param peakList the peak list with the peaks of the regions
+     * @param regions the regions to fit
+     * @param chartUpdate run as fitted regions are applied to the peaks
+     * @param onEnd run when the fit ends, whether it succeeded or not
+     */
+    public void fit(Dataset dataset, PeakList peakList, Collection<DatasetRegion> regions,
+            Runnable chartUpdate, Runnable onEnd) {
+        RegionFitter fitter = new RegionFitter(dataset, peakList, regions);
+        run(fitter.createTask(chartUpdate), results -> {
+            for (RegionFitter.FitResult result : results) {
+                if (result.failed()) {
+                    ExceptionDialog eDialog = new ExceptionDialog(result.getError());
+                    eDialog.showAndWait();
+                    break;
+                }
+            }
+        }, onEnd);
+    }
+
+    /**
+     * Run a task on a background thread, showing its progress. If the task
+     * fails its exception is shown in an ExceptionDialog.
+     *
+     * @param <T> the type of the task's value
+     * @param task the task
+     * @param onSucceeded called with the task's value if it succeeds, can be
+     * null
+     * @param onEnd run when the task ends, before onSucceeded, can be null
+     */
+    public <T> void run(Task<T> task, Consumer<T> onSucceeded, Runnable onEnd) {
+        this.task = task;
+        progressBar.progressProperty().bind(task.progressProperty());
+        task.setOnSucceeded(e -> {
+            end(onEnd);
+            if (onSucceeded != null) {
+                onSucceeded.accept(task.getValue());
+            }
+        });
+        task.setOnFailed(e -> {
+            end(onEnd);
+            ExceptionDialog eDialog = new ExceptionDialog(task.getException());
+            eDialog.showAndWait();
+        });
+        task.setOnCancelled(e -> end(onEnd));
+        setVisible(true);
+        Thread thread = new Thread(task);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void end(Runnable onEnd) {
+        progressBar.progressProperty().unbind();
+        setVisible(false);
+        if (onEnd != null) {
+            onEnd.run();
+        }
+    }
+
+    void setVisible(boolean state) {
+        progressBar.setVisible(state);
+        progressBar.setManaged(state);
+        cancelButton.setVisible(state);
+        cancelButton.setManaged(state);
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import javafx.application.Platform;
+import javafx.concurrent.Task;
+import org.nmrfx.analyst.peaks.Analyzer;
+import org.nmrfx.datasets.DatasetRegion;
+import org.nmrfx.peaks.AbsMultipletComponent;
+import org.nmrfx.peaks.Multiplet;
+import org.nmrfx.peaks.Peak;
+import org.nmrfx.peaks.PeakDim;
+import org.nmrfx.peaks.PeakList;
+import org.nmrfx.processor.datasets.Dataset;
+
+/**
+ * Fits the peaks of the regions of a 1D dataset in parallel. Regions are
+ * independent, so they are distributed over a thread pool. Each worker fits
+ * with its own Analyzer on its own copy of the peak list, so the live peaks are
+ * never changed by the workers; the fitted values of a region are copied to
+ * the live peaks, on the FX thread, as the region completes. The dataset is
+ * shared and only read.
+ * <p>
+ * Creating a PeakList registers it with the active project, so the copies are
+ * made by prepare and removed by dispose, which must both be called on the FX
+ * thread, before and after fit. fit only returns once every region it
+ * submitted has finished, so the copies are never removed while in use.
+ */
+public class RegionFitter {
+
+    static final AtomicInteger copyCount = new AtomicInteger(0);
+
+    final Dataset dataset;
+    final PeakList peakList;
+    final List<DatasetRegion> regions;
+    final List<PeakList> copies = new ArrayList<>();
+    final List<Peak> livePeaks = new ArrayList<>();
+    final Map<DatasetRegion, List<Integer>> regionPeaks = new IdentityHashMap<>();
+    int nThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The outcome of fitting one region.
+     */
+    public static class FitResult {
+
+        final DatasetRegion region;
+        final Double rms;
+        final Exception error;
+        final Map<Peak, PeakFit> fitted;
+
+        FitResult(DatasetRegion region, Double rms, Exception error, Map<Peak, PeakFit> fitted) {
+            this.region = region;
+            this.rms = rms;
+            this.error = error;
+            this.fitted = fitted;
+        }
+
+        public DatasetRegion getRegion() {
+            return region;
+        }
+
+        /**
+         * @return the rms of the fit, or null if the region had nothing to fit
+         * or failed
+         */
+        public Double getRms() {
+            return rms;
+        }
+
+        public Exception getError() {
+            return error;
+        }
+
+        public boolean failed() {
+            return error != null;
+        }
+
+        /**
+         * Copy the fitted peak values and multiplets to the live peaks of the
+         * region. Must be called on the FX thread.
+         */
+        public void apply() {
+            fitted.forEach((peak, fit) -> fit.apply(peak));
+        }
+    }
+
+    /**
+     * The fitted values of one peak, taken from a worker's copy: the
+     * intensity, the volume, the shift, linewidth and bounds of each dimension
+     * and the multiplet components.
+     */
+    static class PeakFit {
+
+        final float intensity;
+        final float volume;
+        final float[] shifts;
+        final float[] widths;
+        final float[] bounds;
+        final List<AbsMultipletComponent> components;
+
+        PeakFit(Peak copy) {
+            intensity = copy.getIntensity();
+            volume = copy.getVolume1();
+            PeakDim[] peakDims = copy.getPeakDims();
+            shifts = new float[peakDims.length];
+            widths = new float[peakDims.length];
+            bounds = new float[peakDims.length];
+            for (int i = 0; i < peakDims.length; i++) {
+                shifts[i] = peakDims[i].getChemShiftValue();
+                widths[i] = peakDims[i].getLineWidthValue();
+                bounds[i] = peakDims[i].getBoundsValue();
+            }
+            Multiplet multiplet = copy.getPeakDim(0).getMultiplet();
+            components = multiplet == null ? null : multiplet.getAbsComponentList();
+        }
+
+        /**
+         * Copy the fitted values to a live peak. Must be called on the FX
+         * thread.
+         */
+        void apply(Peak peak) {
+            peak.setIntensity(intensity);
+            peak.setVolume1(volume);
+            PeakDim[] peakDims = peak.getPeakDims();
+            for (int i = 0; i < Math.min(peakDims.length, shifts.length); i++) {
+                peakDims[i].setChemShiftValue(shifts[i]);
+                peakDims[i].setLineWidthValue(widths[i]);
+                peakDims[i].setBoundsValue(bounds[i]);
+            }
+            Multiplet multiplet = peak.getPeakDim(0).getMultiplet();
+            if ((multiplet != null) && (components != null)) {
+                multiplet.updateCoupling(components);
+            }
+        }
+    }
+
+    /**
+     * Create a fitter.
+     *
+     * @param dataset the 1D dataset
+     * @param peakList the peak list with the peaks of the regions
+     * @param regions the regions to fit, copied
+     */
+    public RegionFitter(Dataset dataset, PeakList peakList, Collection<DatasetRegion> regions) {
+        this.dataset = dataset;
+        this.peakList = peakList;
+        this.regions = new ArrayList<>(regions);
+    }
+
+    public void setNThreads(int nThreads) {
+        this.nThreads = nThreads > 0 ? nThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    public int size() {
+        return regions.size();
+    }
+
+    int getNWorkers() {
+        return Math.max(1, Math.min(nThreads, regions.size()));
+    }
+
+    /**
+     * Make the copies of the peak list used by the workers and find the peaks
+     * of each region. Must be called on the FX thread, before fit.
+     */
+    public void prepare() {
+        dispose();
+        livePeaks.clear();
+        for (int j = 0; j < peakList.size(); j++) {
+            livePeaks.add(peakList.getPeak(j));
+        }
+        regionPeaks.clear();
+        for (DatasetRegion region : regions) {
+            regionPeaks.put(region, getPeakIndices(region));
+        }
+        for (int i = 0; i < getNWorkers(); i++) {
+            PeakList copy = peakList.copy(peakList.getName() + "_fit" + copyCount.incrementAndGet(), false, false, true);
+            for (int j = 0; j < copy.size(); j++) {
+                for (PeakDim peakDim : copy.getPeak(j).getPeakDims()) {
+                    peakDim.unLink();
+                }
+            }
+            copies.add(copy);
+        }
+    }
+
+    /**
+     * Remove the copies made by prepare. Must be called on the FX thread, after
+     * fit has returned.
+     */
+    public void dispose() {
+        for (PeakList copy : copies) {
+            PeakList.remove(copy.getName());
+        }
+        copies.clear();
+    }
+
+    /**
+     * Get the indices of the live peaks whose position is in the region.
+     */
+    List<Integer> getPeakIndices(DatasetRegion region) {
+        double min = Math.min(region.getRegionStart(0), region.getRegionEnd(0));
+        double max = Math.max(region.getRegionStart(0), region.getRegionEnd(0));
+        List<Integer> indices = new ArrayList<>();
+        for (int j = 0; j < livePeaks.size(); j++) {
+            double shift = livePeaks.get(j).getPeakDim(0).getChemShiftValue();
+            if ((shift >= min) && (shift <= max)) {
+                indices.add(j);
+            }
+        }
+        return indices;
+    }
+
+    /**
+     * Fit the regions on the copies made by prepare. The live peaks are not
+     * changed; apply each result on the FX thread. Returns only when all
+     * started regions have finished.
+     *
+     * @param cancelled polled before each region is fit, can be null
+     * @param onResult called, on a worker thread, as each region completes,
+     * can be null
+     * @return the results, in order of completion
+     * @throws InterruptedException if interrupted while waiting for regions
+     */
+    public List<FitResult> fit(BooleanSupplier cancelled, Consumer<FitResult> onResult) throws InterruptedException {
+        if (copies.size() != getNWorkers()) {
+            throw new IllegalStateException("Copies of the peak list not prepared");
+        }
+        BlockingQueue<Analyzer> analyzers = new LinkedBlockingQueue<>();
+        for (PeakList copy : copies) {
+            Analyzer analyzer = new Analyzer(dataset);
+            analyzer.setPeakList(copy);
+            analyzers.add(analyzer);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(copies.size(), r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            return thread;
+        });
+        CompletionService<FitResult> completion = new ExecutorCompletionService<>(executor);
+        List<FitResult> results = new ArrayList<>();
+        try {
+            for (DatasetRegion region : regions) {
+                completion.submit(() -> {
+                    if ((cancelled != null) && cancelled.getAsBoolean()) {
+                        return null;
+                    }
+                    Analyzer analyzer = analyzers.take();
+                    FitResult result;
+                    try {
+                        Double rms = analyzer.fitRegion(region).orElse(null);
+                        Map<Peak, PeakFit> fitted = new IdentityHashMap<>();
+                        PeakList copy = analyzer.getPeakList();
+                        for (int j : regionPeaks.get(region)) {
+                            fitted.put(livePeaks.get(j), new PeakFit(copy.getPeak(j)));
+                        }
+                        result = new FitResult(region, rms, null, fitted);
+                    } catch (Exception ex) {
+                        result = new FitResult(region, null, ex, new IdentityHashMap<>());
+                    } finally {
+                        analyzers.add(analyzer);
+                    }
+                    if (onResult != null) {
+                        onResult.accept(result);
+                    }
+                    return result;
+                });
+            }
+            for (int i = 0; i < regions.size(); i++) {
+                FitResult result;
+                try {
+                    result = completion.take().get();
+                } catch (ExecutionException eE) {
+                    throw new IllegalStateException("Region fit failed", eE.getCause());
+                }
+                if (result != null) {
+                    results.add(result);
+                }
+            }
+        } finally {
+            // regions that haven't begun are dropped, running ones must finish
+            // before the caller may dispose of the copies
+            executor.shutdownNow();
+            ExecutorUtils.awaitTermination(executor);
+        }
+        return results;
+    }
+
+    /**
+     * Create a task that fits the regions. Must be called on the FX thread, it
+     * makes the copies of the peak list, and the task removes them when done.
+     * The progress of the task is the fraction of regions fit. As regions
+     * complete their results are applied to the live peaks and chartUpdate is
+     * run, on the FX thread and at most once per pulse, so results show up as
+     * they complete. Once the task is cancelled no more results are applied.
+     *
+     * @param chartUpdate run on the FX thread after results are applied
+     * @return the task
+     */
+    public Task<List<FitResult>> createTask(Runnable chartUpdate) {
+        prepare();
+        AtomicBoolean updatePending = new AtomicBoolean(false);
+        ConcurrentLinkedQueue<FitResult> toApply = new ConcurrentLinkedQueue<>();
+        return new Task<List<FitResult>>() {
+            @Override
+            protected List<FitResult> call() throws Exception {
+                int nRegions = regions.size();
+                AtomicInteger nDone = new AtomicInteger(0);
+                updateProgress(0, nRegions);
+                try {
+                    return fit(this::isCancelled, result -> {
+                        updateProgress(nDone.incrementAndGet(), nRegions);
+                        toApply.add(result);
+                        if (updatePending.compareAndSet(false, true)) {
+                            Platform.runLater(() -> {
+                                updatePending.set(false);
+                                // regions still running when the task was
+                                // cancelled are not applied
+                                FitResult next;
+                                while (!isCancelled() && ((next = toApply.poll()) != null)) {
+                                    next.apply();
+                                }
+                                chartUpdate.run();
+                            });
+                        }
+                    });
+                } finally {
+                    Platform.runLater(RegionFitter.this::dispose);
+                }
+            }
+        };
+    }
+}
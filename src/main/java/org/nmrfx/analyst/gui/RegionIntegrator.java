@@ -0,0 +1,134 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import org.nmrfx.datasets.DatasetRegion;
+import org.nmrfx.processor.datasets.Dataset;
+
+/**
+ * Keeps the integrals of the regions of a dataset up to date by measuring
+ * only the regions that are new or whose bounds changed since they were last
+ * measured, instead of integrating every region after each edit. Regions are
+ * tracked by identity, so a region replaced by a split or adjustment is
+ * measured again and regions that were removed are forgotten. All regions are
+ * measured again when the dataset's data version changes, for example after
+ * it was reprocessed. The version is checked on every edit; it doesn't read
+ * the data (see AnalyzerRegistry.getVersion), so finding the dirty regions
+ * costs no more than comparing their bounds.
+ *
+ * The integrators are weakly keyed by dataset and don't refer to the dataset,
+ * so they are dropped with it.
+ */
+public class RegionIntegrator {
+
+    static final Map<Dataset, RegionIntegrator> INTEGRATORS = new WeakHashMap<>();
+
+    final Map<DatasetRegion, double[]> measured = new IdentityHashMap<>();
+    List<Object> version = null;
+
+    RegionIntegrator() {
+    }
+
+    static RegionIntegrator get(Dataset dataset) {
+        synchronized (INTEGRATORS) {
+            return INTEGRATORS.computeIfAbsent(dataset, d -> new RegionIntegrator());
+        }
+    }
+
+    /**
+     * Forget the measured regions of a dataset, for example when the dataset
+     * is closed.
+     *
+     * @param dataset the dataset
+     */
+    public static void remove(Dataset dataset) {
+        synchronized (INTEGRATORS) {
+            INTEGRATORS.remove(dataset);
+        }
+    }
+
+    static double[] getBounds(Dataset dataset, DatasetRegion region) {
+        int nDim = dataset.getNDim();
+        double[] bounds = new double[nDim * 2];
+        for (int iDim = 0; iDim < nDim; iDim++) {
+            bounds[iDim * 2] = region.getRegionStart(iDim);
+            bounds[iDim * 2 + 1] = region.getRegionEnd(iDim);
+        }
+        return bounds;
+    }
+
+    static Collection<DatasetRegion> getRegions(Dataset dataset) {
+        TreeSet<DatasetRegion> regions = dataset.getRegions();
+        return regions == null ? Collections.emptyList() : regions;
+    }
+
+    /**
+     * Get the regions of a dataset that are new or changed since they were
+     * last measured.
+     *
+     * @param dataset the dataset
+     * @return the regions
+     */
+    public static List<DatasetRegion> getDirtyRegions(Dataset dataset) {
+        return get(dataset).findDirty(dataset);
+    }
+
+    /**
+     * Measure the dirty regions of a dataset and forget regions that are no
+     * longer in the dataset.
+     *
+     * @param dataset the dataset
+     * @return the regions that were measured
+     * @throws IOException if the dataset can't be read
+     */
+    public static List<DatasetRegion> update(Dataset dataset) throws IOException {
+        return get(dataset).measure(dataset);
+    }
+
+    synchronized List<DatasetRegion> findDirty(Dataset dataset) {
+        // cheap: a modification count and a few sampled values, not a checksum
+        List<Object> currentVersion = AnalyzerRegistry.getVersion(dataset);
+        if (!currentVersion.equals(version)) {
+            measured.clear();
+            version = currentVersion;
+        }
+        List<DatasetRegion> dirty = new ArrayList<>();
+        for (DatasetRegion region : getRegions(dataset)) {
+            double[] bounds = measured.get(region);
+            if ((bounds == null) || !Arrays.equals(bounds, getBounds(dataset, region))) {
+                dirty.add(region);
+            }
+        }
+        return dirty;
+    }
+
+    synchronized List<DatasetRegion> measure(Dataset dataset) throws IOException {
+        List<DatasetRegion> dirty = findDirty(dataset);
+        for (DatasetRegion region : dirty) {
+            region.measure(dataset);
+            measured.put(region, getBounds(dataset, region));
+        }
+        Collection<DatasetRegion> regions = getRegions(dataset);
+        if (measured.size() > regions.size()) {
+            Map<DatasetRegion, Boolean> current = new IdentityHashMap<>();
+            for (DatasetRegion region : regions) {
+                current.put(region, Boolean.TRUE);
+            }
+            measured.keySet().retainAll(current.keySet());
+        }
+        return dirty;
+    }
+}
@@ -7,21 +7,28 @@ package org.nmrfx.analyst.gui;
 
 import de.jensd.fx.glyphs.GlyphsDude;
 import de.jensd.fx.glyphs.fontawesome.FontAwesomeIcon;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.TreeSet;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javafx.application.Platform;
 import javafx.beans.value.ChangeListener;
+import javafx.concurrent.Task;
 import javafx.fxml.FXMLLoader;
 import javafx.geometry.Orientation;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
+import javafx.scene.control.ButtonType;
 import javafx.scene.control.ContentDisplay;
 import javafx.scene.control.Label;
 import javafx.scene.control.MenuButton;
@@ -37,6 +44,7 @@ import javafx.scene.layout.HBox;
 import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
 import javafx.scene.text.Font;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.Stage;
 import javafx.stage.StageStyle;
 import org.controlsfx.dialog.ExceptionDialog;
@@ -48,7 +56,6 @@ import org.nmrfx.processor.datasets.Dataset;
 import org.nmrfx.processor.gui.ControllerTool;
 import org.nmrfx.processor.gui.FXMLController;
 import org.nmrfx.processor.gui.PolyChart;
-import org.nmrfx.processor.gui.spectra.CrossHairs;
 import org.nmrfx.processor.gui.spectra.DatasetAttributes;
 import org.nmrfx.processor.gui.spectra.MultipletSelection;
 import org.nmrfx.processor.gui.spectra.PeakListAttributes;
@@ -76,6 +83,7 @@ public class RegionTool implements ControllerTool {
     Button splitButton;
     Button splitRegionButton;
     TextField integralField;
+    ThresholdField thresholdField;
     TextField[] couplingFields;
     TextField[] slopeFields;
     private PolyChart chart;
@@ -83,6 +91,7 @@ public class RegionTool implements ControllerTool {
     boolean ignoreCouplingChanges = false;
     ChangeListener<String> patternListener;
     Analyzer analyzer = null;
+    RegionFitControls fitControls = new RegionFitControls();
 
     FXMLController controller;
     Consumer<RegionTool> closeAction;
@@ -136,6 +145,9 @@ public class RegionTool implements ControllerTool {
         MenuItem fitRegionsMenuItem = new MenuItem("Fit Regions");
         fitRegionsMenuItem.setOnAction(e -> fitRegions());
 
+        MenuItem batchMenuItem = new MenuItem("Analyze All 1D Datasets...");
+        batchMenuItem.setOnAction(e -> analyzeAll1D());
+
         MenuItem adjustPeakIntegralsMenuItem = new MenuItem("Adjust Peak Integrals");
         adjustPeakIntegralsMenuItem.setOnAction(e -> adjustPeakIntegrals());
 
@@ -148,9 +160,18 @@ public class RegionTool implements ControllerTool {
         MenuItem clearThresholdMenuItem = new MenuItem("Clear Threshold");
         clearThresholdMenuItem.setOnAction(e -> clearThreshold());
 
+        MenuItem fullThresholdMenuItem = new MenuItem("Calculate Threshold (Full Pass)");
+        fullThresholdMenuItem.setOnAction(e -> calculateThreshold(true));
+
         menu.getItems().addAll(findRegionsMenuItem, pickRegionsMenuItem,
-                fitRegionsMenuItem, adjustPeakIntegralsMenuItem,
-                clearMenuItem, thresholdMenuItem, clearThresholdMenuItem);
+                fitRegionsMenuItem, batchMenuItem, adjustPeakIntegralsMenuItem,
+                clearMenuItem, thresholdMenuItem, clearThresholdMenuItem,
+                fullThresholdMenuItem);
+
+        thresholdField = new ThresholdField(this::getAnalyzer);
+        toolBar.getItems().addAll(thresholdField.getLabel(), thresholdField.getTextField());
+
+        toolBar.getItems().addAll(fitControls.getProgressBar(), fitControls.getCancelButton());
     }
 
     public void initNavigator(ToolBar toolBar) {
@@ -320,17 +341,25 @@ public class RegionTool implements ControllerTool {
         });
     }
 
+    /**
+     * Get the Analyzer of the active chart's dataset. If the active chart
+     * doesn't have a 1D dataset the current Analyzer is kept.
+     *
+     * @return the Analyzer or null if there is none
+     */
     public Analyzer getAnalyzer() {
-        if (analyzer == null) {
-            chart = PolyChart.getActiveChart();
-            Dataset dataset = (Dataset) chart.getDataset();
-            if ((dataset == null) || (dataset.getNDim() > 1)) {
-                Alert alert = new Alert(Alert.AlertType.ERROR);
-                alert.setContentText("Chart must have a 1D dataset");
-                alert.showAndWait();
-                return null;
+        PolyChart activeChart = PolyChart.getActiveChart();
+        Dataset dataset = activeChart == null ? null : (Dataset) activeChart.getDataset();
+        if ((dataset != null) && (dataset.getNDim() == 1)) {
+            if ((analyzer == null) || (analyzer.getDataset() != dataset)) {
+                chart = activeChart;
+                analyzer = AnalyzerRegistry.get(dataset);
             }
-            analyzer = new Analyzer(dataset);
+        } else if (analyzer == null) {
+            Alert alert = new Alert(Alert.AlertType.ERROR);
+            alert.setContentText("Chart must have a 1D dataset");
+            alert.showAndWait();
+            return null;
         }
         return analyzer;
     }
@@ -364,11 +393,10 @@ public class RegionTool implements ControllerTool {
     private void findRegions() {
         Analyzer analyzer = getAnalyzer();
         if (analyzer != null) {
-            analyzer.calculateThreshold();
-            analyzer.getThreshold();
+            thresholdField.calculate(analyzer, false);
             analyzer.autoSetRegions();
             try {
-                analyzer.integrate();
+                integrateChanged();
             } catch (IOException ex) {
                 ExceptionDialog eDialog = new ExceptionDialog(ex);
                 eDialog.showAndWait();
@@ -383,16 +411,96 @@ public class RegionTool implements ControllerTool {
 
     private void fitRegions() {
         Analyzer analyzer = getAnalyzer();
-        if (analyzer != null) {
-            try {
-                analyzer.fitRegions();
-            } catch (Exception ex) {
-                ExceptionDialog eDialog = new ExceptionDialog(ex);
-                eDialog.showAndWait();
+        if ((analyzer != null) && !fitControls.isRunning()) {
+            PeakList peakList = analyzer.getPeakList();
+            if (peakList == null) {
+                warn("Fit Regions", "No peaks to fit, pick the regions first");
                 return;
             }
-            refresh();
+            fitControls.fit((Dataset) chart.getDataset(), peakList, getRegions(), () -> chart.refresh(), this::refresh);
+        }
+    }
+
+    private void analyzeAll1D() {
+        if (fitControls.isRunning()) {
+            return;
+        }
+        ButtonType openButton = new ButtonType("Open Datasets");
+        ButtonType dirButton = new ButtonType("Directory...");
+        Alert alert = new Alert(Alert.AlertType.CONFIRMATION,
+                "Analyze the open 1D datasets or the datasets in a directory?",
+                openButton, dirButton, ButtonType.CANCEL);
+        alert.setTitle("Batch Analysis");
+        Optional<ButtonType> choice = alert.showAndWait();
+        if (!choice.isPresent() || (choice.get() == ButtonType.CANCEL)) {
+            return;
+        }
+        BatchAnalyzer1D batch = new BatchAnalyzer1D(0);
+        if (choice.get() == dirButton) {
+            DirectoryChooser dirChooser = new DirectoryChooser();
+            dirChooser.setTitle("Batch Analysis Input Directory");
+            File inputDir = dirChooser.showDialog(null);
+            if (inputDir == null) {
+                return;
+            }
+            batch.addAll(openDirectory(inputDir));
+        } else {
+            batch.addAll(Dataset.datasets());
+        }
+        if (batch.size() == 0) {
+            warn("Batch Analysis", "No 1D datasets to analyze");
+            return;
+        }
+        if (!affirm("Analyze " + batch.size() + " 1D datasets? Their regions and peak lists will be replaced.")) {
+            return;
         }
+        DirectoryChooser dirChooser = new DirectoryChooser();
+        dirChooser.setTitle("Batch Analysis Output Directory");
+        File dir = dirChooser.showDialog(null);
+        if (dir == null) {
+            return;
+        }
+        // the datasets may be displayed, so they are changed on the FX thread
+        batch.setApplyExecutor(Platform::runLater);
+        Task<List<BatchAnalyzer1D.DatasetResult>> batchTask = new Task<List<BatchAnalyzer1D.DatasetResult>>() {
+            @Override
+            protected List<BatchAnalyzer1D.DatasetResult> call() throws Exception {
+                updateProgress(0, batch.size());
+                List<BatchAnalyzer1D.DatasetResult> results = batch.run(this::isCancelled, n -> updateProgress(n, batch.size()));
+                BatchAnalyzer1D.writeResults(results, dir);
+                return results;
+            }
+        };
+        fitControls.run(batchTask, results -> {
+            long nFailed = results.stream().filter(r -> r.failed()).count();
+            if (nFailed > 0) {
+                warn("Batch Analysis", nFailed + " of " + batch.size() + " datasets failed, see analysis.tsv");
+            }
+        }, () -> controller.getCharts().forEach(PolyChart::refresh));
+    }
+
+    /**
+     * Open the datasets in a directory.
+     *
+     * @param dir the directory
+     * @return the datasets that were opened
+     */
+    List<Object> openDirectory(File dir) {
+        Set<Object> before = new HashSet<>(Dataset.datasets());
+        File[] files = dir.listFiles(file -> !file.isHidden());
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                controller.openFile(file.toString(), false, false);
+            }
+        }
+        List<Object> opened = new ArrayList<>();
+        for (Object dataset : Dataset.datasets()) {
+            if (!before.contains(dataset)) {
+                opened.add(dataset);
+            }
+        }
+        return opened;
     }
 
     private void pickRegions() {
@@ -426,21 +534,21 @@ public class RegionTool implements ControllerTool {
 
     private void clearThreshold() {
         if (analyzer != null) {
-            analyzer.clearThreshold();
+            thresholdField.clear(analyzer);
+        }
+    }
+
+    private void calculateThreshold(boolean full) {
+        Analyzer analyzer = getAnalyzer();
+        if (analyzer != null) {
+            thresholdField.calculate(analyzer, full);
         }
     }
 
     private void setThreshold() {
         Analyzer analyzer = getAnalyzer();
         if (analyzer != null) {
-            CrossHairs crossHairs = chart.getCrossHairs();
-            if (!crossHairs.hasCrosshairState("h0")) {
-                warn("Threshold", "Must have horizontal crosshair");
-                return;
-            }
-            Double[] pos = crossHairs.getCrossHairPositions(0);
-            System.out.println(pos[0] + " " + pos[1]);
-            analyzer.setThreshold(pos[1]);
+            thresholdField.setFromCrossHairs(analyzer, chart);
         }
     }
 
@@ -659,12 +767,33 @@ public class RegionTool implements ControllerTool {
         });
     }
 
+    /**
+     * Integrate the regions that are new or changed since they were last
+     * integrated.
+     */
+    void integrateChanged() throws IOException {
+        Optional<Dataset> datasetOpt = getDataset();
+        if (datasetOpt.isPresent()) {
+            RegionIntegrator.update(datasetOpt.get());
+        }
+    }
+
+    void regionsEdited() {
+        try {
+            integrateChanged();
+        } catch (IOException ex) {
+            ExceptionDialog eDialog = new ExceptionDialog(ex);
+            eDialog.showAndWait();
+        }
+    }
+
     public void splitRegion() {
         double ppm = chart.getVerticalCrosshairPositions()[0];
 
         activeRegion.ifPresent(r -> {
             DatasetRegion newRegion = r.split(ppm - 0.001, ppm + 0.001);
             getRegions().add(newRegion);
+            regionsEdited();
             updateRegion();
         });
         chart.refresh();
@@ -676,6 +805,7 @@ public class RegionTool implements ControllerTool {
         double ppm1 = chart.getVerticalCrosshairPositions()[1];
         analyzer.removeRegion((ppm0 + ppm1) / 2);
         analyzer.addRegion(ppm0, ppm1);
+        regionsEdited();
         RegionTool.this.updateRegion(false);
         chart.refresh();
     }
@@ -685,6 +815,7 @@ public class RegionTool implements ControllerTool {
         double ppm0 = chart.getVerticalCrosshairPositions()[0];
         double ppm1 = chart.getVerticalCrosshairPositions()[1];
         analyzer.addRegion(ppm0, ppm1);
+        regionsEdited();
         RegionTool.this.updateRegion(false);
         chart.refresh();
 
@@ -698,6 +829,7 @@ public class RegionTool implements ControllerTool {
                 newRegion = regions.higher(region);
             }
             regions.remove(region);
+            regionsEdited();
             activeRegion = Optional.of(newRegion);
             chart.refresh();
         });
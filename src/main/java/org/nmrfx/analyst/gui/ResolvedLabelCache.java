@@ -0,0 +1,218 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.nmrfx.chemistry.Atom;
+import org.nmrfx.peaks.Peak;
+import org.nmrfx.peaks.PeakDim;
+import org.nmrfx.peaks.PeakList;
+import org.nmrfx.structure.chemistry.Molecule;
+
+/**
+ * Cache of the atoms that the labels of peak dimensions refer to, for the
+ * active molecule. Each peak list is resolved into flat arrays of peak
+ * dimensions and atom indices so shifts can be applied without parsing atom
+ * specifiers. The cache is cleared when the active molecule changes and
+ * individual entries are re-resolved when the label of a peak dimension no
+ * longer matches the label it was resolved from.
+ */
+public class ResolvedLabelCache {
+
+    Molecule molecule = null;
+    final List<Atom> atoms = new ArrayList<>();
+    final Map<Atom, Integer> atomIndices = new HashMap<>();
+    final Map<PeakList, ResolvedList> lists = new HashMap<>();
+
+    /**
+     * The resolved peak dimensions of a peak list. atomIndex is -1 for
+     * dimensions whose label doesn't refer to an atom.
+     */
+    public static class ResolvedList {
+
+        Peak[] peaks = new Peak[0];
+        PeakDim[] peakDims = new PeakDim[0];
+        String[] labels = new String[0];
+        int[] atomIndex = new int[0];
+        final Map<PeakDim, Integer> dimIndex = new IdentityHashMap<>();
+
+        public int size() {
+            return peakDims.length;
+        }
+
+        public PeakDim getPeakDim(int i) {
+            return peakDims[i];
+        }
+
+        public int getAtomIndex(int i) {
+            return atomIndex[i];
+        }
+
+        public Peak[] getPeaks() {
+            return peaks;
+        }
+    }
+
+    public synchronized void invalidate() {
+        molecule = null;
+        atoms.clear();
+        atomIndices.clear();
+        lists.clear();
+    }
+
+    void checkMolecule() {
+        Molecule active = Molecule.getActive();
+        if (active != molecule) {
+            invalidate();
+            molecule = active;
+        }
+    }
+
+    int resolve(String label) {
+        if ((molecule == null) || (label == null) || label.equals("")) {
+            return -1;
+        }
+        Atom atom = Molecule.getAtomByName(label);
+        if (atom == null) {
+            return -1;
+        }
+        return atomIndices.computeIfAbsent(atom, k -> {
+            atoms.add(k);
+            return atoms.size() - 1;
+        });
+    }
+
+    /**
+     * Get the resolved form of a peak list, updating any entries whose peaks
+     * or labels have changed since it was last resolved.
+     *
+     * @param peakList the peak list
+     * @return the resolved peak list
+     */
+    public synchronized ResolvedList getResolved(PeakList peakList) {
+        checkMolecule();
+        ResolvedList resolved = lists.computeIfAbsent(peakList, k -> new ResolvedList());
+        int nPeaks = peakList.size();
+        boolean sameLayout = resolved.peaks.length == nPeaks;
+        for (int j = 0; sameLayout && (j < nPeaks); j++) {
+            sameLayout = resolved.peaks[j] == peakList.getPeak(j);
+        }
+        if (!sameLayout) {
+            List<PeakDim> peakDims = new ArrayList<>();
+            Peak[] peaks = new Peak[nPeaks];
+            for (int j = 0; j < nPeaks; j++) {
+                peaks[j] = peakList.getPeak(j);
+                peakDims.addAll(Arrays.asList(peaks[j].getPeakDims()));
+            }
+            int nDims = peakDims.size();
+            resolved.peaks = peaks;
+            resolved.peakDims = peakDims.toArray(new PeakDim[nDims]);
+            resolved.labels = new String[nDims];
+            resolved.atomIndex = new int[nDims];
+            resolved.dimIndex.clear();
+            for (int i = 0; i < nDims; i++) {
+                resolved.dimIndex.put(resolved.peakDims[i], i);
+                resolved.labels[i] = resolved.peakDims[i].getLabel();
+                resolved.atomIndex[i] = resolve(resolved.labels[i]);
+            }
+        } else {
+            for (int i = 0; i < resolved.peakDims.length; i++) {
+                updateEntry(resolved, i);
+            }
+        }
+        return resolved;
+    }
+
+    void updateEntry(ResolvedList resolved, int i) {
+        String label = resolved.peakDims[i].getLabel();
+        String oldLabel = resolved.labels[i];
+        if ((label != oldLabel) && ((label == null) || !label.equals(oldLabel))) {
+            resolved.labels[i] = label;
+            resolved.atomIndex[i] = resolve(label);
+        }
+    }
+
+    /**
+     * Get the atom a peak dimension's label refers to.
+     *
+     * @param peakDim the peak dimension
+     * @return the atom or null
+     */
+    public synchronized Atom getAtom(PeakDim peakDim) {
+        checkMolecule();
+        ResolvedList resolved = lists.get(peakDim.getPeakList());
+        Integer index = resolved == null ? null : resolved.dimIndex.get(peakDim);
+        if (index == null) {
+            resolved = getResolved(peakDim.getPeakList());
+            index = resolved.dimIndex.get(peakDim);
+            if (index == null) {
+                int atomIndex = resolve(peakDim.getLabel());
+                return atomIndex >= 0 ? atoms.get(atomIndex) : null;
+            }
+        } else {
+            updateEntry(resolved, index);
+        }
+        int atomIndex = resolved.atomIndex[index];
+        return atomIndex >= 0 ? atoms.get(atomIndex) : null;
+    }
+
+    public synchronized int getNAtoms() {
+        return atoms.size();
+    }
+
+    /**
+     * Get the reference shift of each resolved atom, indexed by atom index.
+     *
+     * @param rand if not null, each shift is randomized with a gaussian of half
+     * the atom's reference standard deviation
+     * @return the shifts, NaN for atoms without a reference shift
+     */
+    public synchronized double[] getRefShifts(Random rand) {
+        double[] shifts = new double[atoms.size()];
+        for (int i = 0; i < shifts.length; i++) {
+            Atom atom = atoms.get(i);
+            Double refPPM = atom.getRefPPM();
+            if (refPPM == null) {
+                shifts[i] = Double.NaN;
+            } else {
+                double ppm = refPPM;
+                if (rand != null) {
+                    Double errPPM = atom.getSDevRefPPM();
+                    if (errPPM != null) {
+                        ppm += rand.nextGaussian() * errPPM * 0.5;
+                    }
+                }
+                shifts[i] = ppm;
+            }
+        }
+        return shifts;
+    }
+
+    /**
+     * Set the shift of every resolved dimension of a peak list from an array
+     * of shifts indexed by atom index. Changes live peaks, so it must be
+     * called on the FX thread.
+     *
+     * @param resolved the resolved peak list
+     * @param shifts shifts indexed by atom index, NaN values are skipped
+     */
+    public static void applyShifts(ResolvedList resolved, double[] shifts) {
+        PeakDim[] peakDims = resolved.peakDims;
+        int[] atomIndex = resolved.atomIndex;
+        for (int i = 0; i < peakDims.length; i++) {
+            int index = atomIndex[i];
+            if ((index >= 0) && (index < shifts.length) && !Double.isNaN(shifts[index])) {
+                peakDims[i].setChemShift((float) shifts[index]);
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui;
+
+import org.nmrfx.peaks.Peak;
+import org.nmrfx.processor.optimization.PeakCluster;
+
+/**
+ * A predicted PeakCluster scored as if it were at a different shift. The
+ * score is calculated with the PeakCluster methods, isInTol and
+ * comparisonScore, on the cluster moved with setShift, exactly as the
+ * alignment always has, and the shift is restored before bestMatch returns.
+ * The clusters of the column and row matchers share peaks, so the whole
+ * shift, score and restore is done holding a lock shared by all the clusters
+ * of the matchers; no other scoring sees a moved cluster.
+ */
+public class ShiftedPeakCluster {
+
+    final PeakCluster cluster;
+    final float shift;
+
+    public ShiftedPeakCluster(PeakCluster cluster, float shift) {
+        this.cluster = cluster;
+        this.shift = shift;
+    }
+
+    public PeakCluster getCluster() {
+        return cluster;
+    }
+
+    public float getShift() {
+        return shift;
+    }
+
+    /**
+     * Find the experimental cluster, within tolerance, that best matches the
+     * cluster at the shift.
+     *
+     * @param expClusters the experimental clusters to compare to
+     * @param lock the lock shared by all clusters of the matchers
+     * @return the best score, and the root peak of the cluster it was obtained
+     * with. The score is negative infinity if no cluster is in tolerance.
+     */
+    public ClusterScore bestMatch(PeakCluster[] expClusters, Object lock) {
+        double maxScore = Double.NEGATIVE_INFINITY;
+        Peak maxPeak = null;
+        synchronized (lock) {
+            cluster.setShift(shift);
+            try {
+                for (PeakCluster expCluster : expClusters) {
+                    if (cluster.isInTol(expCluster)) {
+                        double score = expCluster.comparisonScore(cluster);
+                        if (score > maxScore) {
+                            maxScore = score;
+                            maxPeak = expCluster.rootPeak;
+                        }
+                    }
+                }
+            } finally {
+                cluster.restoreShift();
+            }
+        }
+        return new ClusterScore(maxScore, maxPeak);
+    }
+
+    /**
+     * Result of scoring a shifted cluster.
+     */
+    public static class ClusterScore {
+
+        final double score;
+        final Peak peak;
+
+        public ClusterScore(double score, Peak peak) {
+            this.score = score;
+            this.peak = peak;
+        }
+
+        public double getScore() {
+            return score;
+        }
+
+        public Peak getPeak() {
+            return peak;
+        }
+    }
+}
@@ -237,6 +237,8 @@ public class SimFitMolController extends SimMolController {
             Vec currentVec = datasets[1].getVec();
             currentVec.zeros();
             cData.addToVec(currentVec, 1.0);
+            AnalyzerRegistry.markChanged(datasets[0]);
+            AnalyzerRegistry.markChanged(datasets[1]);
             if (currData != null) {
                 Vec expVec = currData.getVec();
             }
@@ -315,6 +317,7 @@ public class SimFitMolController extends SimMolController {
         if (sumDataset != null) {
             Vec sumVec = sumDataset.getVec();
             cmpdMatcher.updateVec(sumVec);
+            AnalyzerRegistry.markChanged(sumDataset);
         }
     }
 
@@ -334,6 +337,7 @@ public class SimFitMolController extends SimMolController {
             Vec currentVec = currentDataset.getVec();
             currentVec.zeros();
             cData.addToVec(currentVec, activeMatch.getShifts(), activeMatch.getScale());
+            AnalyzerRegistry.markChanged(currentDataset);
             PolyChart chart = controller.getActiveChart();
             chart.refresh();
             scaleField.setText(String.format("%.3f", activeMatch.getScale()));
@@ -0,0 +1,301 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui;
+
+import java.util.Arrays;
+
+/**
+ * Maximum weight assignment between rows and columns on a sparse set of
+ * candidate edges. Rows (and columns) may be left unassigned, which is
+ * equivalent to the zero padded square matrix used with BipartiteMatcher, but
+ * only the edges that were explicitly added are stored and searched. The
+ * problem is solved with successive shortest augmenting paths (Dijkstra with
+ * column potentials), each row being given a private zero cost dummy column
+ * that represents leaving it unassigned.
+ */
+public class SparseAssignment {
+
+    final int nRows;
+    final int nCols;
+    int nEdges = 0;
+    int[] edgeRows = new int[16];
+    int[] edgeCols = new int[16];
+    double[] edgeWeights = new double[16];
+    int[] rowStart;
+    int[] adjCols;
+    double[] adjCosts;
+    int[] matching = null;
+    double weightSum = 0.0;
+
+    public SparseAssignment(int nRows, int nCols) {
+        this.nRows = nRows;
+        this.nCols = nCols;
+    }
+
+    public int getNRows() {
+        return nRows;
+    }
+
+    public int getNCols() {
+        return nCols;
+    }
+
+    public int getNEdges() {
+        return nEdges;
+    }
+
+    /**
+     * Add a candidate edge. Edges with a weight that is not positive can never
+     * improve on leaving the row unassigned so they are ignored.
+     *
+     * @param row the row index
+     * @param col the column index
+     * @param weight the weight of assigning row to col
+     */
+    public void addEdge(int row, int col, double weight) {
+        if (!(weight > 0.0) || Double.isInfinite(weight)) {
+            return;
+        }
+        if (nEdges == edgeRows.length) {
+            int newSize = nEdges * 2;
+            edgeRows = Arrays.copyOf(edgeRows, newSize);
+            edgeCols = Arrays.copyOf(edgeCols, newSize);
+            edgeWeights = Arrays.copyOf(edgeWeights, newSize);
+        }
+        edgeRows[nEdges] = row;
+        edgeCols[nEdges] = col;
+        edgeWeights[nEdges] = weight;
+        nEdges++;
+        matching = null;
+    }
+
+    /**
+     * Get the optimal assignment.
+     *
+     * @return array, indexed by row, of the assigned column or -1 if the row is
+     * unassigned
+     */
+    public int[] getMatching() {
+        if (matching == null) {
+            solve();
+        }
+        return matching;
+    }
+
+    /**
+     * Get the sum of the weights of the edges in the optimal assignment.
+     *
+     * @return the weight sum
+     */
+    public double getWeightSum() {
+        getMatching();
+        return weightSum;
+    }
+
+    void buildAdjacency() {
+        rowStart = new int[nRows + 1];
+        for (int i = 0; i < nEdges; i++) {
+            rowStart[edgeRows[i] + 1]++;
+        }
+        for (int i = 0; i < nRows; i++) {
+            rowStart[i + 1] += rowStart[i];
+        }
+        int[] fill = Arrays.copyOf(rowStart, nRows);
+        adjCols = new int[nEdges];
+        adjCosts = new double[nEdges];
+        for (int i = 0; i < nEdges; i++) {
+            int pos = fill[edgeRows[i]]++;
+            adjCols[pos] = edgeCols[i];
+            // minimize cost, so negate weight
+            adjCosts[pos] = -edgeWeights[i];
+        }
+    }
+
+    void solve() {
+        buildAdjacency();
+        // columns nCols + iRow are the dummy (unassigned) columns
+        int nTotal = nCols + nRows;
+        double[] v = new double[nTotal];
+        int[] rowOfCol = new int[nTotal];
+        int[] colOfRow = new int[nRows];
+        double[] assignedCost = new double[nRows];
+        double[] dist = new double[nTotal];
+        int[] predRow = new int[nTotal];
+        double[] predCost = new double[nTotal];
+        boolean[] done = new boolean[nTotal];
+        int[] touched = new int[nTotal];
+        int[] finished = new int[nTotal];
+        Arrays.fill(rowOfCol, -1);
+        Arrays.fill(colOfRow, -1);
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        IndexHeap heap = new IndexHeap(nTotal, dist);
+
+        for (int start = 0; start < nRows; start++) {
+            int nTouched = 0;
+            int nFinished = 0;
+            // row potential so all reduced costs out of the start row are >= 0
+            double uStart = -v[nCols + start];
+            for (int k = rowStart[start]; k < rowStart[start + 1]; k++) {
+                uStart = Math.min(uStart, adjCosts[k] - v[adjCols[k]]);
+            }
+            int row = start;
+            double base = 0.0;
+            double uRow = uStart;
+            int sink;
+            while (true) {
+                for (int k = rowStart[row]; k <= rowStart[row + 1]; k++) {
+                    int col;
+                    double cost;
+                    if (k == rowStart[row + 1]) {
+                        col = nCols + row;
+                        cost = 0.0;
+                    } else {
+                        col = adjCols[k];
+                        cost = adjCosts[k];
+                    }
+                    if (done[col]) {
+                        continue;
+                    }
+                    double newDist = base + cost - uRow - v[col];
+                    if (newDist < dist[col]) {
+                        if (dist[col] == Double.POSITIVE_INFINITY) {
+                            touched[nTouched++] = col;
+                        }
+                        dist[col] = newDist;
+                        predRow[col] = row;
+                        predCost[col] = cost;
+                        heap.update(col);
+                    }
+                }
+                int col = heap.poll();
+                done[col] = true;
+                finished[nFinished++] = col;
+                if (rowOfCol[col] == -1) {
+                    sink = col;
+                    break;
+                }
+                row = rowOfCol[col];
+                base = dist[col];
+                uRow = assignedCost[row] - v[col];
+            }
+            double pathDist = dist[sink];
+            for (int i = 0; i < nFinished; i++) {
+                int col = finished[i];
+                v[col] -= pathDist - dist[col];
+            }
+            int col = sink;
+            while (true) {
+                int pRow = predRow[col];
+                int prevCol = colOfRow[pRow];
+                colOfRow[pRow] = col;
+                rowOfCol[col] = pRow;
+                assignedCost[pRow] = predCost[col];
+                if (pRow == start) {
+                    break;
+                }
+                col = prevCol;
+            }
+            for (int i = 0; i < nTouched; i++) {
+                dist[touched[i]] = Double.POSITIVE_INFINITY;
+                done[touched[i]] = false;
+            }
+            heap.clear();
+        }
+        matching = new int[nRows];
+        weightSum = 0.0;
+        for (int i = 0; i < nRows; i++) {
+            if (colOfRow[i] < nCols) {
+                matching[i] = colOfRow[i];
+                weightSum -= assignedCost[i];
+            } else {
+                matching[i] = -1;
+            }
+        }
+    }
+
+    /**
+     * Binary min heap of column indices ordered by their current distance.
+     */
+    static class IndexHeap {
+
+        final int[] heap;
+        final int[] pos;
+        final double[] keys;
+        int size = 0;
+
+        IndexHeap(int n, double[] keys) {
+            heap = new int[n];
+            pos = new int[n];
+            Arrays.fill(pos, -1);
+            this.keys = keys;
+        }
+
+        void update(int index) {
+            int i = pos[index];
+            if (i == -1) {
+                i = size++;
+                heap[i] = index;
+                pos[index] = i;
+            }
+            siftUp(i);
+        }
+
+        int poll() {
+            int top = heap[0];
+            pos[top] = -1;
+            size--;
+            if (size > 0) {
+                heap[0] = heap[size];
+                pos[heap[0]] = 0;
+                siftDown(0);
+            }
+            return top;
+        }
+
+        void clear() {
+            for (int i = 0; i < size; i++) {
+                pos[heap[i]] = -1;
+            }
+            size = 0;
+        }
+
+        void siftUp(int i) {
+            int index = heap[i];
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (keys[heap[parent]] <= keys[index]) {
+                    break;
+                }
+                heap[i] = heap[parent];
+                pos[heap[i]] = i;
+                i = parent;
+            }
+            heap[i] = index;
+            pos[index] = i;
+        }
+
+        void siftDown(int i) {
+            int index = heap[i];
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if ((child + 1 < size) && (keys[heap[child + 1]] < keys[heap[child]])) {
+                    child++;
+                }
+                if (keys[index] <= keys[heap[child]]) {
+                    break;
+                }
+                heap[i] = heap[child];
+                pos[heap[i]] = i;
+                i = child;
+            }
+            heap[i] = index;
+            pos[index] = i;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui;
+
+import java.util.function.Supplier;
+import javafx.scene.control.Label;
+import javafx.scene.control.TextField;
+import javafx.scene.control.Tooltip;
+import org.nmrfx.analyst.peaks.Analyzer;
+import org.nmrfx.processor.gui.PolyChart;
+import org.nmrfx.processor.gui.spectra.CrossHairs;
+import static org.nmrfx.utils.GUIUtils.warn;
+
+/**
+ * The threshold field shown in the tool bars of the region and multiplet
+ * tools. It shows the Analyzer's threshold, with a tooltip saying where it
+ * came from, and sets a manual threshold when Enter is pressed.
+ */
+public class ThresholdField {
+
+    final Label label = new Label("Threshold:");
+    final TextField textField = new TextField();
+    final Supplier<Analyzer> analyzerSupplier;
+
+    /**
+     * Create the field.
+     *
+     * @param analyzerSupplier gets the tool's Analyzer when a value is
+     * entered, returning null if there is none
+     */
+    public ThresholdField(Supplier<Analyzer> analyzerSupplier) {
+        this.analyzerSupplier = analyzerSupplier;
+        textField.setPrefWidth(80);
+        textField.setOnAction(e -> fieldChanged());
+    }
+
+    public Label getLabel() {
+        return label;
+    }
+
+    public TextField getTextField() {
+        return textField;
+    }
+
+    /**
+     * Calculate the automatic threshold of the Analyzer, see
+     * AnalyzerRegistry.calculateThreshold, and show it. A manual threshold is
+     * kept, and shown, unless a full pass is requested.
+     *
+     * @param analyzer the Analyzer
+     * @param full if true estimate the noise from the whole vector
+     */
+    public void calculate(Analyzer analyzer, boolean full) {
+        if (!full && AnalyzerRegistry.hasManualThreshold(analyzer)) {
+            textField.setText(String.format("%.4g", analyzer.getThreshold()));
+            textField.setTooltip(new Tooltip("Set manually"));
+            return;
+        }
+        AnalyzerRegistry.calculateThreshold(analyzer, full);
+        textField.setText(String.format("%.4g", analyzer.getThreshold()));
+        double bound = AnalyzerRegistry.getThresholdBound(analyzer.getDataset());
+        String tip = bound > 0.0 ? String.format("5 x median block noise, sampled, +/- %.2g (95%%)", bound)
+                : "5 x median block noise, full pass";
+        textField.setTooltip(new Tooltip(tip));
+    }
+
+    /**
+     * Clear the threshold of the Analyzer.
+     *
+     * @param analyzer the Analyzer
+     */
+    public void clear(Analyzer analyzer) {
+        AnalyzerRegistry.clearThreshold(analyzer);
+        textField.setText("");
+        textField.setTooltip(null);
+    }
+
+    /**
+     * Set the threshold of the Analyzer from the horizontal crosshair of a
+     * chart.
+     *
+     * @param analyzer the Analyzer
+     * @param chart the chart
+     */
+    public void setFromCrossHairs(Analyzer analyzer, PolyChart chart) {
+        CrossHairs crossHairs = chart.getCrossHairs();
+        if (!crossHairs.hasCrosshairState("h0")) {
+            warn("Threshold", "Must have horizontal crosshair");
+            return;
+        }
+        Double[] pos = crossHairs.getCrossHairPositions(0);
+        AnalyzerRegistry.setManualThreshold(analyzer, pos[1]);
+        textField.setText(String.format("%.4g", pos[1]));
+        textField.setTooltip(new Tooltip("Set from crosshair"));
+    }
+
+    void fieldChanged() {
+        Analyzer analyzer = analyzerSupplier.get();
+        if (analyzer != null) {
+            try {
+                AnalyzerRegistry.setManualThreshold(analyzer, Double.parseDouble(textField.getText().trim()));
+                textField.setTooltip(new Tooltip("Set manually"));
+            } catch (NumberFormatException nfE) {
+                warn("Threshold", "Not a number: " + textField.getText());
+            }
+        }
+    }
+}
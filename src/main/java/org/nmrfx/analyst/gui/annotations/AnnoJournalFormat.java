@@ -1,7 +1,5 @@
 package org.nmrfx.analyst.gui.annotations;
 
-import org.nmrfx.analyst.peaks.JournalFormat;
-import org.nmrfx.analyst.peaks.JournalFormatPeaks;
 import org.nmrfx.graphicsio.GraphicsContextInterface;
 import org.nmrfx.peaks.PeakList;
 import org.nmrfx.processor.gui.annotations.AnnoText;
@@ -14,7 +12,6 @@ public class AnnoJournalFormat extends AnnoText {
 
     String peakListName = null;
     String journalName = "JMedCh";
-    JournalFormat format = null;
 
     public AnnoJournalFormat(double x1, double y1, double x2, double y2,
             POSTYPE xPosType, POSTYPE yPosType, String peakListName) {
@@ -24,16 +21,16 @@ public class AnnoJournalFormat extends AnnoText {
         this.peakListName = peakListName;
     }
 
+    /**
+     * Get the text from the journal format cache, which only formats the peak
+     * list again after it changed.
+     */
     void updateText() {
         text = "";
         if (peakListName != null) {
             PeakList peakList = PeakList.get(peakListName);
             if (peakList != null) {
-                if ((format == null) || !format.getName().equals(journalName)) {
-                    format = JournalFormatPeaks.getFormat(journalName);
-                }
-                String journalText = format.genOutput(peakList);
-                text = JournalFormatPeaks.formatToPlain(journalText);
+                text = JournalFormatCache.getPlainText(peakList, journalName);
             }
         }
     }
@@ -0,0 +1,131 @@
+package org.nmrfx.analyst.gui.annotations;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import org.nmrfx.analyst.peaks.JournalFormat;
+import org.nmrfx.analyst.peaks.JournalFormatPeaks;
+import org.nmrfx.peaks.Peak;
+import org.nmrfx.peaks.PeakEvent;
+import org.nmrfx.peaks.PeakList;
+import org.nmrfx.peaks.PeakListener;
+
+/**
+ * The journal format output of peak lists, generated once and reused until
+ * the peak list changes, so that repainting a chart with an AnnoJournalFormat
+ * or copying the report doesn't format every multiplet again. The cache
+ * listens to the peak lists and is cleared by their change events.
+ */
+public class JournalFormatCache {
+
+    static final Map<PeakList, Entry> ENTRIES = new WeakHashMap<>();
+    static final PeakListener LISTENER = new CacheListener();
+
+    static class Entry {
+
+        final String journalName;
+        final String journalText;
+        final String plainText;
+        String rtfText = null;
+
+        Entry(String journalName, String journalText) {
+            this.journalName = journalName;
+            this.journalText = journalText;
+            this.plainText = JournalFormatPeaks.formatToPlain(journalText);
+        }
+    }
+
+    static class CacheListener implements PeakListener {
+
+        @Override
+        public void peakListChanged(PeakEvent peakEvent) {
+            invalidate(peakEvent);
+        }
+    }
+
+    private JournalFormatCache() {
+    }
+
+    static synchronized Entry getEntry(PeakList peakList, String journalName) {
+        Entry entry = ENTRIES.get(peakList);
+        if ((entry == null) || !entry.journalName.equals(journalName)) {
+            if (!ENTRIES.containsKey(peakList)) {
+                peakList.registerListener(LISTENER);
+            }
+            JournalFormat format = JournalFormatPeaks.getFormat(journalName);
+            entry = new Entry(journalName, format.genOutput(peakList));
+            ENTRIES.put(peakList, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Get the output of a peak list in a journal format, with the format's
+     * markup.
+     *
+     * @param peakList the peak list
+     * @param journalName the name of the journal format
+     * @return the output
+     */
+    public static String getJournalText(PeakList peakList, String journalName) {
+        return getEntry(peakList, journalName).journalText;
+    }
+
+    /**
+     * Get the output of a peak list in a journal format, as plain text.
+     *
+     * @param peakList the peak list
+     * @param journalName the name of the journal format
+     * @return the plain text
+     */
+    public static String getPlainText(PeakList peakList, String journalName) {
+        return getEntry(peakList, journalName).plainText;
+    }
+
+    /**
+     * Get the output of a peak list in a journal format, as RTF.
+     *
+     * @param peakList the peak list
+     * @param journalName the name of the journal format
+     * @return the RTF text
+     */
+    public static synchronized String getRTFText(PeakList peakList, String journalName) {
+        Entry entry = getEntry(peakList, journalName);
+        if (entry.rtfText == null) {
+            entry.rtfText = JournalFormatPeaks.formatToRTF(entry.journalText);
+        }
+        return entry.rtfText;
+    }
+
+    /**
+     * Forget the output of a peak list, so it's generated again when next
+     * used.
+     *
+     * @param peakList the peak list
+     */
+    public static synchronized void invalidate(PeakList peakList) {
+        if (ENTRIES.containsKey(peakList)) {
+            ENTRIES.put(peakList, null);
+        }
+    }
+
+    /**
+     * Forget the output of the peak list a peak event came from, or of all
+     * peak lists if the event doesn't come from a peak or peak list.
+     *
+     * @param peakEvent the event
+     */
+    public static void invalidate(PeakEvent peakEvent) {
+        Object source = peakEvent.getSource();
+        if (source instanceof PeakList) {
+            invalidate((PeakList) source);
+        } else if (source instanceof Peak) {
+            invalidate(((Peak) source).getPeakList());
+        } else {
+            invalidateAll();
+        }
+    }
+
+    public static synchronized void invalidateAll() {
+        ENTRIES.replaceAll((peakList, entry) -> null);
+    }
+}
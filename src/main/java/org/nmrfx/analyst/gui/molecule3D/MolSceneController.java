@@ -8,9 +8,12 @@ package org.nmrfx.analyst.gui.molecule3D;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.ResourceBundle;
 import java.util.Set;
@@ -64,6 +67,8 @@ import org.nmrfx.peaks.Peak;
 import org.nmrfx.peaks.PeakList;
 import org.nmrfx.processor.datasets.Dataset;
 import org.nmrfx.analyst.gui.AtomController;
+import org.nmrfx.analyst.gui.FreezeSetListener;
+import org.nmrfx.analyst.gui.FreezeTransaction;
 import org.nmrfx.analyst.gui.molecule.MoleculeCanvas;
 import org.nmrfx.processor.project.Project;
 import org.nmrfx.structure.chemistry.Molecule;
@@ -81,7 +86,7 @@ import org.python.util.PythonInterpreter;
  *
  * @author Bruce Johnson
  */
-public class MolSceneController implements Initializable, MolSelectionListener, FreezeListener, ProgressUpdater {
+public class MolSceneController implements Initializable, MolSelectionListener, FreezeListener, FreezeSetListener, ProgressUpdater {
 
     private Stage stage;
     SSViewer ssViewer;
@@ -128,6 +133,9 @@ public class MolSceneController implements Initializable, MolSelectionListener,
     Pane twoDPane = new Pane();
     Pane ligandCanvasPane;
     PeakList peakList = null;
+    // constraints derived from the peaks of peakList, updated incrementally on freeze changes
+    Map<Peak, String[]> constraintMap = new LinkedHashMap<>();
+    double maxIntensity = 1.0;
     int itemIndex = 0;
     private StructureCalculator calcStructure = new StructureCalculator();
 
@@ -721,13 +729,13 @@ public class MolSceneController implements Initializable, MolSelectionListener,
     void setPeakList(String peakListName) {
         peakList = PeakList.get(peakListName);
         PeakList.registerFreezeListener(this);
+        FreezeTransaction.registerListener(this);
         updatePeaks();
     }
 
     void updatePeaks() {
         if (peakList != null) {
-            List<String> constraintPairs = new ArrayList<>();
-            boolean onlyFrozen = frozenCheckBox.isSelected();
+            constraintMap.clear();
             if (peakList.valid()) {
                 double max = Double.NEGATIVE_INFINITY;
                 for (Peak peak : peakList.peaks()) {
@@ -735,30 +743,9 @@ public class MolSceneController implements Initializable, MolSelectionListener,
                         max = peak.getIntensity();
                     }
                 }
+                maxIntensity = max;
                 for (Peak peak : peakList.peaks()) {
-                    boolean frozen1 = peak.getPeakDim(0).isFrozen();
-                    boolean frozen2 = peak.getPeakDim(1).isFrozen();
-                    if (!onlyFrozen || (frozen1 && frozen2)) {
-                        String name1 = peak.getPeakDim(0).getLabel();
-                        String name2 = peak.getPeakDim(1).getLabel();
-                        if (!name1.equals("") && !name2.equals("")) {
-                            double intensity = peak.getIntensity();
-                            double normIntensity = 100.0 * intensity / max;
-                            String intMode = "w";
-                            if (normIntensity > 10.0) {
-                                intMode = "s";
-                            } else if (normIntensity > 1.5) {
-                                intMode = "m";
-                            } else if (normIntensity > 1.0) {
-                                intMode = "w";
-                            } else {
-                                intMode = "vw";
-                            }
-                            constraintPairs.add(name1);
-                            constraintPairs.add(name2);
-                            constraintPairs.add(intMode);
-                        }
-                    }
+                    updateConstraint(peak);
                 }
                 String datasetName = peakList.getDatasetName();
                 if ((datasetName != null) && !datasetName.equals("") && (Molecule.getActive() != null)) {
@@ -768,18 +755,77 @@ public class MolSceneController implements Initializable, MolSelectionListener,
                     rnaLabels.parseSelGroups(Molecule.getActive(), labelScheme);
                 }
             }
-            ssViewer.setConstraintPairs(constraintPairs);
-            ssViewer.drawSS();
+            drawConstraints();
+        }
+    }
+
+    /**
+     * Add, replace or remove the constraint derived from a peak.
+     *
+     * @param peak the peak
+     */
+    void updateConstraint(Peak peak) {
+        constraintMap.remove(peak);
+        boolean onlyFrozen = frozenCheckBox.isSelected();
+        boolean frozen1 = peak.getPeakDim(0).isFrozen();
+        boolean frozen2 = peak.getPeakDim(1).isFrozen();
+        if (!onlyFrozen || (frozen1 && frozen2)) {
+            String name1 = peak.getPeakDim(0).getLabel();
+            String name2 = peak.getPeakDim(1).getLabel();
+            if (!name1.equals("") && !name2.equals("")) {
+                double intensity = peak.getIntensity();
+                double normIntensity = 100.0 * intensity / maxIntensity;
+                String intMode = "w";
+                if (normIntensity > 10.0) {
+                    intMode = "s";
+                } else if (normIntensity > 1.5) {
+                    intMode = "m";
+                } else if (normIntensity > 1.0) {
+                    intMode = "w";
+                } else {
+                    intMode = "vw";
+                }
+                constraintMap.put(peak, new String[]{name1, name2, intMode});
+            }
         }
     }
 
+    void drawConstraints() {
+        List<String> constraintPairs = new ArrayList<>();
+        for (String[] constraint : constraintMap.values()) {
+            constraintPairs.addAll(Arrays.asList(constraint));
+        }
+        ssViewer.setConstraintPairs(constraintPairs);
+        ssViewer.drawSS();
+    }
+
     @Override
     public void freezeHappened(Peak peak, boolean state) {
+        if (FreezeTransaction.isApplying()) {
+            // the whole transaction is handled in freezeSetHappened
+            return;
+        }
         if (frozenCheckBox.isSelected() && peak.getPeakList() == peakList) {
             updatePeaks();
         }
     }
 
+    @Override
+    public void freezeSetHappened(Map<Peak, Boolean> changes) {
+        if (frozenCheckBox.isSelected() && (peakList != null) && peakList.valid()) {
+            boolean changed = false;
+            for (Peak peak : changes.keySet()) {
+                if (peak.getPeakList() == peakList) {
+                    updateConstraint(peak);
+                    changed = true;
+                }
+            }
+            if (changed) {
+                drawConstraints();
+            }
+        }
+    }
+
     @FXML
     private void calcStructureAction() {
         calcStructure();
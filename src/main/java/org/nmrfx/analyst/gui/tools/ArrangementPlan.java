@@ -0,0 +1,264 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui.tools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import org.nmrfx.datasets.DatasetBase;
+import org.nmrfx.peaks.PeakList;
+import org.nmrfx.structure.seqassign.RunAbout;
+import org.nmrfx.structure.seqassign.RunAbout.TypeInfo;
+import org.nmrfx.structure.seqassign.SpinSystem;
+
+/**
+ * A RunAbout arrangement from the YAML file, compiled once so that generating
+ * the windows and drawing spin systems don't parse strings. For each column
+ * the residue offset and whether intra residue peaks are shown are stored,
+ * and for each chart (rows times columns, row by row) the experiment type,
+ * dataset, peak list, dataset dimensions, window widths and the atoms that
+ * are drawn in each dimension.
+ */
+public class ArrangementPlan {
+
+    final String name;
+    final int nRows;
+    final int[] resOffsets;
+    final boolean[] intraResidue;
+    final int minOffset;
+    final List<ChartPlan> charts;
+
+    /**
+     * The settings of one chart of the arrangement.
+     */
+    public static class ChartPlan {
+
+        final String typeName;
+        final DatasetBase dataset;
+        final PeakList peakList;
+        final TypeInfo typeInfo;
+        final int nExpected;
+        final int[] iDims;
+        final Double[] widths;
+        final boolean[][] atomMatches;
+
+        ChartPlan(RunAbout runAbout, String row, String colType, String colDims) {
+            Optional<String> typeOpt = runAbout.getTypeName(row, colType);
+            atomMatches = compilePatterns(runAbout.getPatterns(row, colType));
+            List<String> dimNames = runAbout.getDimLabel(colDims);
+            typeName = typeOpt.orElse(null);
+            Optional<DatasetBase> datasetOpt = typeOpt.isPresent() ? runAbout.getDataset(typeName) : Optional.empty();
+            if (datasetOpt.isPresent()) {
+                dataset = datasetOpt.get();
+                peakList = runAbout.getPeakList(typeName);
+                iDims = runAbout.getIDims(dataset, typeName, dimNames);
+                widths = parseWidths(dimNames);
+            } else {
+                dataset = null;
+                peakList = null;
+                iDims = null;
+                widths = null;
+            }
+            if (typeName != null) {
+                typeInfo = runAbout.getTypeInfo(typeName);
+                nExpected = runAbout.getTypeCount(typeName);
+            } else {
+                typeInfo = null;
+                nExpected = 0;
+            }
+        }
+
+        /**
+         * @return the experiment type, or null if the arrangement has no type
+         * for this chart
+         */
+        public String getTypeName() {
+            return typeName;
+        }
+
+        /**
+         * @return the dataset, or null if none was found for the type
+         */
+        public DatasetBase getDataset() {
+            return dataset;
+        }
+
+        public PeakList getPeakList() {
+            return peakList;
+        }
+
+        public TypeInfo getTypeInfo() {
+            return typeInfo;
+        }
+
+        public int getNExpected() {
+            return nExpected;
+        }
+
+        public int[] getIDims() {
+            return iDims == null ? null : iDims.clone();
+        }
+
+        public boolean hasWidths() {
+            return widths != null;
+        }
+
+        /**
+         * @param iDim the chart dimension
+         * @return the width of the window, or null to show the full range
+         */
+        public Double getWidth(int iDim) {
+            return iDim < widths.length ? widths[iDim] : null;
+        }
+
+        /**
+         * Test whether an atom is drawn in a dimension.
+         *
+         * @param iDim the spectral dimension of the peak
+         * @param atomIndex the spin system atom index
+         * @return true if the atom matches one of the patterns of the
+         * dimension
+         */
+        public boolean matchesAtom(int iDim, int atomIndex) {
+            return (iDim < atomMatches.length) && (atomIndex >= 0)
+                    && (atomIndex < atomMatches[iDim].length) && atomMatches[iDim][atomIndex];
+        }
+    }
+
+    ArrangementPlan(String name, int nRows, int[] resOffsets, boolean[] intraResidue, List<ChartPlan> charts) {
+        this.name = name;
+        this.nRows = nRows;
+        this.resOffsets = resOffsets;
+        this.intraResidue = intraResidue;
+        int min = 0;
+        for (int resOffset : resOffsets) {
+            min = Math.min(min, resOffset);
+        }
+        this.minOffset = min;
+        this.charts = Collections.unmodifiableList(charts);
+    }
+
+    /**
+     * Compile an arrangement of the YAML file loaded into runAbout.
+     *
+     * @param runAbout the RunAbout with the YAML data loaded
+     * @param arrangeName the name of the arrangement
+     * @return the plan
+     */
+    public static ArrangementPlan compile(RunAbout runAbout, String arrangeName) {
+        Map<String, List<String>> rowCols = runAbout.getArrangements().get(arrangeName);
+        if (rowCols == null) {
+            throw new IllegalArgumentException("No arrangement " + arrangeName);
+        }
+        List<String> rows = rowCols.get("rows");
+        List<String> cols = rowCols.get("cols");
+        int[] resOffsets = new int[cols.size()];
+        boolean[] intraResidue = new boolean[cols.size()];
+        String[][] colElems = new String[cols.size()][];
+        for (int iCol = 0; iCol < cols.size(); iCol++) {
+            colElems[iCol] = cols.get(iCol).split("\\.");
+            char resChar = colElems[iCol][0].charAt(0);
+            intraResidue[iCol] = !colElems[iCol][0].endsWith("-1");
+            resOffsets[iCol] = resChar - 'i';
+        }
+        List<ChartPlan> charts = new ArrayList<>();
+        for (String row : rows) {
+            for (int iCol = 0; iCol < cols.size(); iCol++) {
+                charts.add(new ChartPlan(runAbout, row, colElems[iCol][0], colElems[iCol][1]));
+            }
+        }
+        return new ArrangementPlan(arrangeName, rows.size(), resOffsets, intraResidue, charts);
+    }
+
+    /**
+     * Parse the atom patterns of a chart (like "i.h,n" for each dimension)
+     * into, for each dimension, a flag per spin system atom type.
+     */
+    static boolean[][] compilePatterns(List<String> patElems) {
+        int nAtoms = SpinSystem.getNAtomTypes();
+        String[] atomNames = new String[nAtoms];
+        for (int i = 0; i < nAtoms; i++) {
+            atomNames[i] = SpinSystem.getAtomName(i).toUpperCase();
+        }
+        boolean[][] matches = new boolean[patElems.size()][nAtoms];
+        for (int iDim = 0; iDim < patElems.size(); iDim++) {
+            String pattern = patElems.get(iDim).trim();
+            String[] resAtoms = pattern.split("\\.");
+            String[] atomPats = resAtoms[1].split(",");
+            for (String atomPat : atomPats) {
+                if (atomPat.endsWith("-") || atomPat.endsWith("+")) {
+                    int len = atomPat.length();
+                    atomPat = atomPat.substring(0, len - 1);
+                }
+                atomPat = atomPat.toUpperCase();
+                for (int i = 0; i < nAtoms; i++) {
+                    if (atomNames[i].equals(atomPat)) {
+                        matches[iDim][i] = true;
+                    }
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Parse the window widths from dimension names like "H_0.2". Dimensions
+     * without a width get null, meaning the full range is shown.
+     */
+    static Double[] parseWidths(List<String> dims) {
+        Double[] widths = new Double[dims.size()];
+        int j = 0;
+        for (String dim : dims) {
+            int sepPos = dim.indexOf("_");
+            widths[j++] = sepPos != -1 ? Double.valueOf(dim.substring(sepPos + 1)) : null;
+        }
+        return widths;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getNRows() {
+        return nRows;
+    }
+
+    public int getNCharts() {
+        return charts.size();
+    }
+
+    public ChartPlan getChart(int iChart) {
+        return charts.get(iChart);
+    }
+
+    public int[] getResOffsets() {
+        return resOffsets.clone();
+    }
+
+    public boolean[] getIntraResidue() {
+        return intraResidue.clone();
+    }
+
+    public int getMinOffset() {
+        return minOffset;
+    }
+
+    /**
+     * @return true if every chart with an experiment type has its dataset.
+     * Datasets loaded after the plan was compiled are only found by compiling
+     * it again.
+     */
+    public boolean isResolved() {
+        for (ChartPlan chart : charts) {
+            if ((chart.typeName != null) && (chart.dataset == null)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
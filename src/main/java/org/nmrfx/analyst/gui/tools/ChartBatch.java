@@ -0,0 +1,58 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui.tools;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import javafx.application.Platform;
+import org.nmrfx.processor.gui.PolyChart;
+
+/**
+ * Collects the charts of the RunAbout grid that need to be redrawn and
+ * coalesces their redraws per FX pulse. Callers first apply all the axis and
+ * annotation changes, adding each chart, and then call refresh. The redraw
+ * runs once, later on the FX thread, so charts added several times before it
+ * runs (for example while stepping quickly through spin systems) are only
+ * drawn once, with their latest settings. Each chart still renders its own
+ * contours: charts showing the same plane are neither grouped nor share
+ * rendered tiles, as PolyChart doesn't expose its contour tiles.
+ */
+public class ChartBatch {
+
+    final Set<PolyChart> pending = new LinkedHashSet<>();
+    boolean scheduled = false;
+
+    /**
+     * Add a chart to the batch.
+     *
+     * @param chart the chart
+     */
+    public void add(PolyChart chart) {
+        pending.add(chart);
+    }
+
+    /**
+     * Redraw the charts in the batch on the next FX pulse.
+     */
+    public void refresh() {
+        if (!scheduled && !pending.isEmpty()) {
+            scheduled = true;
+            Platform.runLater(this::refreshNow);
+        }
+    }
+
+    /**
+     * Redraw the charts in the batch now.
+     */
+    public void refreshNow() {
+        scheduled = false;
+        PolyChart[] charts = pending.toArray(new PolyChart[0]);
+        pending.clear();
+        for (PolyChart chart : charts) {
+            chart.refresh();
+        }
+    }
+}
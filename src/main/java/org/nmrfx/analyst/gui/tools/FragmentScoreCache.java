@@ -0,0 +1,93 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui.tools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.nmrfx.chemistry.Polymer;
+import org.nmrfx.structure.seqassign.ResidueSeqScore;
+import org.nmrfx.structure.seqassign.SeqFragment;
+import org.nmrfx.structure.seqassign.SpinSystem;
+import org.nmrfx.structure.seqassign.SpinSystemMatch;
+
+/**
+ * Least recently used cache of the scores of sequence fragments against the
+ * polymers of the molecule. Entries are keyed by the content of the fragment
+ * (its chain of spin systems), so a fragment whose matches change gets a new
+ * entry. The polymers are scored in parallel. The cache must be cleared when
+ * the spin systems can have changed (comparison) or the molecule changes;
+ * after peak edits only the fragments with affected spin systems need to be
+ * removed.
+ */
+public class FragmentScoreCache {
+
+    static final int MAX_ENTRIES = 256;
+
+    final Map<List<Object>, Map<Polymer, List<ResidueSeqScore>>> scores
+            = new LinkedHashMap<List<Object>, Map<Polymer, List<ResidueSeqScore>>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Object>, Map<Polymer, List<ResidueSeqScore>>> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    static List<Object> getKey(SeqFragment fragment) {
+        List<SpinSystemMatch> spinMatches = fragment.getSpinSystemMatches();
+        List<Object> key = new ArrayList<>(spinMatches.size() + 1);
+        if (!spinMatches.isEmpty()) {
+            key.add(spinMatches.get(0).getSpinSystemA());
+        }
+        for (SpinSystemMatch spinMatch : spinMatches) {
+            key.add(spinMatch.getSpinSystemB());
+        }
+        return key;
+    }
+
+    /**
+     * Get the scores of a fragment against each polymer, scoring the polymers
+     * in parallel if they aren't cached.
+     *
+     * @param fragment the fragment
+     * @param polymers the polymers to score against
+     * @return the scores of each polymer
+     */
+    public synchronized Map<Polymer, List<ResidueSeqScore>> getScores(SeqFragment fragment, List<Polymer> polymers) {
+        List<Object> key = getKey(fragment);
+        Map<Polymer, List<ResidueSeqScore>> fragScores = scores.get(key);
+        if ((fragScores == null) || !fragScores.keySet().containsAll(polymers)) {
+            List<List<ResidueSeqScore>> polymerScores = polymers.parallelStream()
+                    .map(fragment::scoreFragment)
+                    .collect(Collectors.toList());
+            fragScores = new LinkedHashMap<>();
+            for (int i = 0; i < polymers.size(); i++) {
+                fragScores.put(polymers.get(i), Collections.unmodifiableList(new ArrayList<>(polymerScores.get(i))));
+            }
+            fragScores = Collections.unmodifiableMap(fragScores);
+            scores.put(key, fragScores);
+        }
+        return fragScores;
+    }
+
+    public synchronized void clear() {
+        scores.clear();
+    }
+
+    /**
+     * Remove the scores of fragments that contain any of the spin systems.
+     *
+     * @param spinSystems the spin systems whose shifts may have changed
+     */
+    public synchronized void invalidate(Set<SpinSystem> spinSystems) {
+        if (!spinSystems.isEmpty()) {
+            scores.keySet().removeIf(key -> !Collections.disjoint(key, spinSystems));
+        }
+    }
+}
@@ -0,0 +1,516 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import org.nmrfx.chemistry.Polymer;
+import org.nmrfx.chemistry.Residue;
+import org.nmrfx.structure.chemistry.Molecule;
+import org.nmrfx.structure.seqassign.FragmentScoring;
+import org.nmrfx.structure.seqassign.FragmentScoring.AAScore;
+import org.nmrfx.structure.seqassign.SpinSystem;
+import org.nmrfx.structure.seqassign.SpinSystemMatch;
+
+/**
+ * Searches for the best global mapping of spin systems to the residues of the
+ * peptide polymers by parallel tempering. The score of a mapping is the sum,
+ * over residues, of the log of the residue type score (FragmentScoring) of the
+ * spin system placed there, plus, for each pair of sequential residues, the
+ * score of the SpinSystemMatch between their spin systems (or a penalty if
+ * there is no such match). Confirmed matches get a large bonus. Spin systems
+ * without a CA or CB shift have no residue type information, and get the same
+ * type score at every residue.
+ * <p>
+ * All scores are collected from the spin systems when the search is created
+ * (this must be done on the thread that owns them), so the search itself only
+ * works on arrays and can run in the background. Each replica runs its sweeps
+ * on its own thread; states are exchanged between replicas at neighbouring
+ * temperatures after each round. The search reports the best distinct
+ * mappings found and, for the best mapping, the fraction of samples of the
+ * coldest replica that agree with it at each residue.
+ */
+public class GlobalAssignmentSearch {
+
+    static final double MIN_NORM = 1.0e-4;
+    static final double UNASSIGNED_SCORE = Math.log(MIN_NORM);
+    // type score of spin systems with no CA or CB shift, uniform over 20 types
+    static final double UNTYPED_SCORE = Math.log(1.0 / 20.0);
+
+    final List<SpinSystem> spinSystems;
+    final List<Residue> residues = new ArrayList<>();
+    final boolean[] chainStart;
+    final double[][] typeScores;
+    final int[][] candidates;
+    final Map<Long, Double> linkScores = new HashMap<>();
+    final Map<Long, SpinSystemMatch> linkMatches = new HashMap<>();
+    final Set<Long> confirmedLinks = new HashSet<>();
+    final int nSys;
+
+    int nReplicas = Math.max(2, Runtime.getRuntime().availableProcessors());
+    int nRounds = 2000;
+    int nTop = 5;
+    int maxCandidates = 20;
+    double tMin = 0.05;
+    double tMax = 5.0;
+    double linkWeight = 1.0;
+    double missingLinkScore = -1.0;
+    double confirmedBonus = 10.0;
+    long seed = 0;
+
+    /**
+     * Create a search, collecting the residue type and match scores of the
+     * spin systems.
+     *
+     * @param spinSystems the spin systems to place
+     * @param molecule the molecule whose peptide polymers define the sequence
+     */
+    public GlobalAssignmentSearch(List<SpinSystem> spinSystems, Molecule molecule) {
+        this.spinSystems = new ArrayList<>(spinSystems);
+        nSys = spinSystems.size();
+        List<Boolean> starts = new ArrayList<>();
+        for (Polymer polymer : molecule.getPolymers()) {
+            if (polymer.isPeptide()) {
+                boolean first = true;
+                for (Residue residue : polymer.getResidues()) {
+                    residues.add(residue);
+                    starts.add(first);
+                    first = false;
+                }
+            }
+        }
+        int nRes = residues.size();
+        chainStart = new boolean[nRes];
+        for (int r = 0; r < nRes; r++) {
+            chainStart[r] = starts.get(r);
+        }
+
+        Map<SpinSystem, Integer> sysIndex = new HashMap<>();
+        for (int s = 0; s < nSys; s++) {
+            sysIndex.put(this.spinSystems.get(s), s);
+        }
+        typeScores = new double[nRes][nSys];
+        for (double[] row : typeScores) {
+            Arrays.fill(row, UNASSIGNED_SCORE);
+        }
+        for (int s = 0; s < nSys; s++) {
+            SpinSystem spinSys = this.spinSystems.get(s);
+            Map<String, Double> aaScores = getTypeScores(getCaCb(spinSys));
+            for (int r = 0; r < nRes; r++) {
+                if (aaScores == null) {
+                    typeScores[r][s] = UNTYPED_SCORE;
+                } else {
+                    Double score = aaScores.get(residues.get(r).getName().toUpperCase());
+                    if (score != null) {
+                        typeScores[r][s] = score;
+                    }
+                }
+            }
+            for (SpinSystemMatch spinMatch : spinSys.getMatchToNext()) {
+                Integer t = sysIndex.get(spinMatch.getSpinSystemB());
+                if (t != null) {
+                    long key = linkKey(s, t);
+                    Double current = linkScores.get(key);
+                    if ((current == null) || (spinMatch.getScore() > current)) {
+                        linkScores.put(key, spinMatch.getScore());
+                        linkMatches.put(key, spinMatch);
+                    }
+                    if (spinSys.confirmed(spinMatch, false)) {
+                        confirmedLinks.add(key);
+                    }
+                }
+            }
+        }
+        candidates = new int[nRes][];
+        for (int r = 0; r < nRes; r++) {
+            final double[] rowScores = typeScores[r];
+            candidates[r] = IntStream.range(0, nSys).boxed()
+                    .sorted(Comparator.comparingDouble((Integer s) -> rowScores[s]).reversed())
+                    .limit(maxCandidates).mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    /**
+     * Get the CA and CB shifts of a spin system.
+     *
+     * @return the shifts, NaN if the spin system has no value for the atom
+     */
+    static double[] getCaCb(SpinSystem spinSys) {
+        double[] ppms = {Double.NaN, Double.NaN};
+        for (int i = 0; i < SpinSystem.getNAtomTypes(); i++) {
+            String aName = SpinSystem.getAtomName(i);
+            double value = spinSys.getValue(1, i);
+            if (!Double.isNaN(value)) {
+                if (aName.equalsIgnoreCase("ca")) {
+                    ppms[0] = value;
+                } else if (aName.equalsIgnoreCase("cb")) {
+                    ppms[1] = value;
+                }
+            }
+        }
+        return ppms;
+    }
+
+    /**
+     * Get the log of the residue type scores for the CA and CB shifts. Missing
+     * shifts are skipped, and scores that aren't finite are dropped.
+     *
+     * @return the scores by upper case residue name, or null if there are no
+     * shifts or no finite scores
+     */
+    static Map<String, Double> getTypeScores(double[] ppms) {
+        if (Double.isNaN(ppms[0]) && Double.isNaN(ppms[1])) {
+            return null;
+        }
+        Map<String, Double> aaScores = new HashMap<>();
+        for (AAScore aaScore : FragmentScoring.scoreAA(ppms)) {
+            double norm = aaScore.getNorm();
+            if (Double.isFinite(norm)) {
+                aaScores.put(aaScore.getName().toUpperCase(), Math.log(Math.max(norm, MIN_NORM)));
+            }
+        }
+        return aaScores.isEmpty() ? null : aaScores;
+    }
+
+    long linkKey(int s, int t) {
+        return (long) s * nSys + t;
+    }
+
+    public void setNReplicas(int nReplicas) {
+        this.nReplicas = Math.max(2, nReplicas);
+    }
+
+    public void setNRounds(int nRounds) {
+        this.nRounds = nRounds;
+    }
+
+    public int getNRounds() {
+        return nRounds;
+    }
+
+    public void setTemperatures(double tMin, double tMax) {
+        this.tMin = tMin;
+        this.tMax = tMax;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    double siteScore(int r, int s) {
+        return s < 0 ? UNASSIGNED_SCORE : typeScores[r][s];
+    }
+
+    double pairScore(int s, int t) {
+        if ((s < 0) || (t < 0)) {
+            return 0.0;
+        }
+        long key = linkKey(s, t);
+        Double score = linkScores.get(key);
+        double value = score == null ? missingLinkScore : score;
+        value *= linkWeight;
+        if (confirmedLinks.contains(key)) {
+            value += confirmedBonus;
+        }
+        return value;
+    }
+
+    /**
+     * Score of the pair of residues r and r + 1, zero if r + 1 starts a new
+     * chain or is past the end.
+     */
+    double pairTerm(int[] assign, int r) {
+        if ((r < 0) || (r + 1 >= assign.length) || chainStart[r + 1]) {
+            return 0.0;
+        }
+        return pairScore(assign[r], assign[r + 1]);
+    }
+
+    double totalScore(int[] assign) {
+        double score = 0.0;
+        for (int r = 0; r < assign.length; r++) {
+            score += siteScore(r, assign[r]) + pairTerm(assign, r);
+        }
+        return score;
+    }
+
+    /**
+     * Sum of the terms that depend on the assignment of residues r1 and r2
+     * (r2 can be -1 or equal to r1), each term counted once.
+     */
+    double localScore(int[] assign, int r1, int r2) {
+        double score = siteScore(r1, assign[r1]) + pairTerm(assign, r1 - 1) + pairTerm(assign, r1);
+        if ((r2 >= 0) && (r2 != r1)) {
+            score += siteScore(r2, assign[r2]);
+            if ((r2 - 1 != r1) && (r2 - 1 != r1 - 1)) {
+                score += pairTerm(assign, r2 - 1);
+            }
+            if ((r2 != r1 - 1) && (r2 != r1)) {
+                score += pairTerm(assign, r2);
+            }
+        }
+        return score;
+    }
+
+    /**
+     * The state of one replica.
+     */
+    class Replica {
+
+        final int[] assign;
+        final int[] owner;
+        final Random rand;
+        double score;
+
+        Replica(long replicaSeed) {
+            rand = new Random(replicaSeed);
+            assign = new int[residues.size()];
+            owner = new int[nSys];
+            Arrays.fill(assign, -1);
+            Arrays.fill(owner, -1);
+            score = totalScore(assign);
+        }
+
+        void sweep(double temperature) {
+            int nRes = assign.length;
+            for (int iMove = 0; iMove < nRes; iMove++) {
+                int r = rand.nextInt(nRes);
+                int[] rCandidates = candidates[r];
+                int s = ((rCandidates.length == 0) || (rand.nextDouble() < 0.1))
+                        ? -1 : rCandidates[rand.nextInt(rCandidates.length)];
+                int oldS = assign[r];
+                if (s == oldS) {
+                    continue;
+                }
+                int r2 = s >= 0 ? owner[s] : -1;
+                double before = localScore(assign, r, r2);
+                set(r, s);
+                if (r2 >= 0) {
+                    set(r2, oldS);
+                }
+                double delta = localScore(assign, r, r2) - before;
+                if ((delta >= 0.0) || (rand.nextDouble() < Math.exp(delta / temperature))) {
+                    score += delta;
+                } else {
+                    if (r2 >= 0) {
+                        set(r2, s);
+                    }
+                    set(r, oldS);
+                }
+            }
+        }
+
+        void set(int r, int s) {
+            int oldS = assign[r];
+            if ((oldS >= 0) && (owner[oldS] == r)) {
+                owner[oldS] = -1;
+            }
+            assign[r] = s;
+            if (s >= 0) {
+                owner[s] = r;
+            }
+        }
+    }
+
+    /**
+     * A mapping of residues to spin systems and its score.
+     */
+    public static class Solution {
+
+        final int[] assign;
+        final double score;
+
+        Solution(int[] assign, double score) {
+            this.assign = assign.clone();
+            this.score = score;
+        }
+
+        public double getScore() {
+            return score;
+        }
+
+        /**
+         * @param r residue index
+         * @return index of the spin system at the residue, or -1
+         */
+        public int getSpinSystemIndex(int r) {
+            return assign[r];
+        }
+    }
+
+    /**
+     * The best solutions found and the confidence of the best solution.
+     */
+    public class SearchResult {
+
+        final List<Solution> solutions;
+        final double[] confidence;
+
+        SearchResult(List<Solution> solutions, double[] confidence) {
+            this.solutions = Collections.unmodifiableList(solutions);
+            this.confidence = confidence;
+        }
+
+        public List<Solution> getSolutions() {
+            return solutions;
+        }
+
+        public double getConfidence(int r) {
+            return confidence[r];
+        }
+
+        public Residue getResidue(int r) {
+            return residues.get(r);
+        }
+
+        public SpinSystem getSpinSystem(int s) {
+            return s >= 0 ? spinSystems.get(s) : null;
+        }
+
+        /**
+         * Get the matches between the spin systems of sequential residues of
+         * the best solution, where both residues have at least the specified
+         * confidence and the match isn't already confirmed.
+         *
+         * @param minConfidence the minimum confidence
+         * @return the matches, to be confirmed (to the next spin system) on the
+         * FX thread
+         */
+        public List<SpinSystemMatch> getLinks(double minConfidence) {
+            List<SpinSystemMatch> links = new ArrayList<>();
+            if (solutions.isEmpty()) {
+                return links;
+            }
+            int[] assign = solutions.get(0).assign;
+            for (int r = 0; r + 1 < assign.length; r++) {
+                if (chainStart[r + 1] || (assign[r] < 0) || (assign[r + 1] < 0)
+                        || (confidence[r] < minConfidence) || (confidence[r + 1] < minConfidence)) {
+                    continue;
+                }
+                long key = linkKey(assign[r], assign[r + 1]);
+                SpinSystemMatch spinMatch = linkMatches.get(key);
+                if ((spinMatch != null) && !confirmedLinks.contains(key)) {
+                    links.add(spinMatch);
+                }
+            }
+            return links;
+        }
+
+        /**
+         * Format the scores of the solutions and, for each residue, the spin
+         * system (by root peak id) in the best solution and its confidence.
+         *
+         * @return the report
+         */
+        public String getReport() {
+            StringBuilder sBuilder = new StringBuilder();
+            for (int i = 0; i < solutions.size(); i++) {
+                sBuilder.append(String.format("solution %d score %.3f\n", i + 1, solutions.get(i).getScore()));
+            }
+            if (!solutions.isEmpty()) {
+                Solution best = solutions.get(0);
+                sBuilder.append("residue\tspinsys\tconfidence\n");
+                for (int r = 0; r < residues.size(); r++) {
+                    Residue residue = residues.get(r);
+                    SpinSystem spinSys = getSpinSystem(best.assign[r]);
+                    String sysLabel = spinSys == null ? "-" : String.valueOf(spinSys.getRootPeak().getIdNum());
+                    sBuilder.append(residue.getName()).append(residue.getNumber()).append('\t');
+                    sBuilder.append(sysLabel).append('\t');
+                    sBuilder.append(String.format("%.2f\n", confidence[r]));
+                }
+            }
+            return sBuilder.toString();
+        }
+    }
+
+    void offer(List<Solution> top, Replica replica) {
+        if ((top.size() == nTop) && (replica.score <= top.get(top.size() - 1).score)) {
+            return;
+        }
+        for (Solution solution : top) {
+            if (Arrays.equals(solution.assign, replica.assign)) {
+                return;
+            }
+        }
+        top.add(new Solution(replica.assign, replica.score));
+        top.sort(Comparator.comparingDouble(Solution::getScore).reversed());
+        if (top.size() > nTop) {
+            top.remove(top.size() - 1);
+        }
+    }
+
+    /**
+     * Run the search.
+     *
+     * @param cancelled polled after each round, can be null
+     * @param progress called with the number of rounds completed, can be null
+     * @return the result, with the solutions found up to cancellation
+     */
+    public SearchResult search(BooleanSupplier cancelled, IntConsumer progress) {
+        int nRes = residues.size();
+        double[] temperatures = new double[nReplicas];
+        Replica[] replicas = new Replica[nReplicas];
+        for (int k = 0; k < nReplicas; k++) {
+            temperatures[k] = tMin * Math.pow(tMax / tMin, (double) k / (nReplicas - 1));
+            replicas[k] = new Replica(seed + k);
+        }
+        Random swapRand = new Random(seed - 1);
+        List<Solution> top = new ArrayList<>();
+        List<Map<Integer, Integer>> samples = new ArrayList<>();
+        for (int r = 0; r < nRes; r++) {
+            samples.add(new HashMap<>());
+        }
+        int nSamples = 0;
+        int burnIn = nRounds / 2;
+        for (int round = 0; round < nRounds; round++) {
+            IntStream.range(0, nReplicas).parallel().forEach(k -> replicas[k].sweep(temperatures[k]));
+            for (int k = (round % 2); k < nReplicas - 1; k += 2) {
+                double delta = (replicas[k + 1].score - replicas[k].score)
+                        * (1.0 / temperatures[k] - 1.0 / temperatures[k + 1]);
+                if ((delta >= 0.0) || (swapRand.nextDouble() < Math.exp(delta))) {
+                    Replica hold = replicas[k];
+                    replicas[k] = replicas[k + 1];
+                    replicas[k + 1] = hold;
+                }
+            }
+            for (Replica replica : replicas) {
+                offer(top, replica);
+            }
+            if (round >= burnIn) {
+                int[] assign = replicas[0].assign;
+                for (int r = 0; r < nRes; r++) {
+                    samples.get(r).merge(assign[r], 1, Integer::sum);
+                }
+                nSamples++;
+            }
+            if (progress != null) {
+                progress.accept(round + 1);
+            }
+            if ((cancelled != null) && cancelled.getAsBoolean()) {
+                break;
+            }
+        }
+        double[] confidence = new double[nRes];
+        if (!top.isEmpty() && (nSamples > 0)) {
+            int[] best = top.get(0).assign;
+            for (int r = 0; r < nRes; r++) {
+                confidence[r] = samples.get(r).getOrDefault(best[r], 0) / (double) nSamples;
+            }
+        }
+        return new SearchResult(top, confidence);
+    }
+}
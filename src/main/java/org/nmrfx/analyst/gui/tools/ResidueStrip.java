@@ -0,0 +1,299 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui.tools;
+
+import java.util.BitSet;
+import java.util.function.IntConsumer;
+import javafx.application.Platform;
+import javafx.geometry.VPos;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Font;
+import javafx.scene.text.TextAlignment;
+
+/**
+ * A strip of labelled, coloured cells (residues of the sequence or spin
+ * systems) drawn on a single canvas. Cells are laid out by index in rows that
+ * wrap at the width of the pane, optionally with a gap after every ten cells.
+ * At most maxRows rows are shown; the others are reached by scrolling. Only
+ * the visible rows are drawn, and changing the text or color of a cell only
+ * redraws that cell. Clicks are mapped to the index of the cell under the
+ * mouse.
+ */
+public class ResidueStrip extends Pane {
+
+    static final double MARGIN = 15.0;
+
+    final Canvas canvas = new Canvas();
+    final double cellWidth;
+    final boolean groupGaps;
+    Font font;
+    int maxRows = 8;
+    String[] texts = new String[0];
+    Color[] colors = new Color[0];
+    final BitSet dirty = new BitSet();
+    boolean repaintAll = true;
+    boolean repaintPending = false;
+    int firstRow = 0;
+    int cellsPerRow = 1;
+    IntConsumer onCellClicked = null;
+
+    /**
+     * Create a strip.
+     *
+     * @param cellWidth the width and height of each cell
+     * @param fontSize the size of the font used for the cell text
+     * @param groupGaps if true a gap of half a cell is left after every ten
+     * cells
+     */
+    public ResidueStrip(double cellWidth, double fontSize, boolean groupGaps) {
+        this.cellWidth = cellWidth;
+        this.groupGaps = groupGaps;
+        this.font = Font.font(fontSize);
+        getChildren().add(canvas);
+        canvas.setOnMouseClicked(this::mouseClicked);
+        canvas.setOnScroll(this::scrolled);
+    }
+
+    public void setMaxRows(int maxRows) {
+        this.maxRows = Math.max(1, maxRows);
+        requestLayout();
+    }
+
+    public void setOnCellClicked(IntConsumer onCellClicked) {
+        this.onCellClicked = onCellClicked;
+    }
+
+    public int size() {
+        return texts.length;
+    }
+
+    /**
+     * Replace all the cells.
+     *
+     * @param texts the text of each cell
+     * @param colors the background color of each cell
+     */
+    public void setCells(String[] texts, Color[] colors) {
+        if (texts.length != colors.length) {
+            throw new IllegalArgumentException("Number of texts and colors differ");
+        }
+        boolean resized = texts.length != this.texts.length;
+        this.texts = texts.clone();
+        this.colors = colors.clone();
+        if (resized) {
+            firstRow = 0;
+            requestLayout();
+        }
+        repaintAll = true;
+        scheduleRepaint();
+    }
+
+    /**
+     * Set the background of all cells to one color.
+     *
+     * @param color the color
+     */
+    public void fill(Color color) {
+        for (int i = 0; i < colors.length; i++) {
+            setColor(i, color);
+        }
+    }
+
+    public void setColor(int index, Color color) {
+        if (!color.equals(colors[index])) {
+            colors[index] = color;
+            dirty.set(index);
+            scheduleRepaint();
+        }
+    }
+
+    public Color getColor(int index) {
+        return colors[index];
+    }
+
+    public void setText(int index, String text) {
+        if (!text.equals(texts[index])) {
+            texts[index] = text;
+            dirty.set(index);
+            scheduleRepaint();
+        }
+    }
+
+    public String getText(int index) {
+        return texts[index];
+    }
+
+    int getNRows(double width) {
+        int nPerRow = getCellsPerRow(width);
+        return (texts.length + nPerRow - 1) / nPerRow;
+    }
+
+    int getCellsPerRow(double width) {
+        double usable = width - 2.0 * MARGIN;
+        if (groupGaps) {
+            int nGroups = (int) Math.floor(usable / getGroupWidth());
+            return Math.max(1, nGroups) * 10;
+        } else {
+            return Math.max(1, (int) Math.floor(usable / cellWidth));
+        }
+    }
+
+    double getGroupWidth() {
+        return 10.5 * cellWidth;
+    }
+
+    int getVisibleRows() {
+        return Math.max(1, Math.min(maxRows, getNRows(getWidth())));
+    }
+
+    @Override
+    protected double computePrefHeight(double width) {
+        double w = width > 0 ? width : getWidth();
+        int nRows = Math.max(1, Math.min(maxRows, getNRows(w)));
+        return nRows * cellWidth + 2.0 * MARGIN;
+    }
+
+    @Override
+    public void layoutChildren() {
+        double width = getWidth();
+        double height = getHeight();
+        int nPerRow = getCellsPerRow(width);
+        if ((width != canvas.getWidth()) || (height != canvas.getHeight()) || (nPerRow != cellsPerRow)) {
+            canvas.setWidth(width);
+            canvas.setHeight(height);
+            cellsPerRow = nPerRow;
+            firstRow = Math.max(0, Math.min(firstRow, getNRows(width) - getVisibleRows()));
+            repaintAll = true;
+        }
+        repaint();
+    }
+
+    double getCellX(int col) {
+        double x = MARGIN + col * cellWidth;
+        if (groupGaps) {
+            x += (col / 10) * cellWidth / 2.0;
+        }
+        return x;
+    }
+
+    double getCellY(int row) {
+        return MARGIN + (row - firstRow) * cellWidth;
+    }
+
+    /**
+     * Find the cell at a position on the canvas.
+     *
+     * @param x the x position
+     * @param y the y position
+     * @return the index of the cell or -1 if there is no cell at the position
+     */
+    public int getIndexAt(double x, double y) {
+        double dX = x - MARGIN;
+        double dY = y - MARGIN;
+        if ((dX < 0.0) || (dY < 0.0)) {
+            return -1;
+        }
+        int row = firstRow + (int) (dY / cellWidth);
+        if (row >= firstRow + getVisibleRows()) {
+            return -1;
+        }
+        int col;
+        if (groupGaps) {
+            int group = (int) (dX / getGroupWidth());
+            int inGroup = (int) ((dX - group * getGroupWidth()) / cellWidth);
+            if (inGroup >= 10) {
+                return -1;
+            }
+            col = group * 10 + inGroup;
+        } else {
+            col = (int) (dX / cellWidth);
+        }
+        if (col >= cellsPerRow) {
+            return -1;
+        }
+        int index = row * cellsPerRow + col;
+        return index < texts.length ? index : -1;
+    }
+
+    void mouseClicked(MouseEvent e) {
+        int index = getIndexAt(e.getX(), e.getY());
+        if ((index >= 0) && (onCellClicked != null)) {
+            onCellClicked.accept(index);
+        }
+    }
+
+    void scrolled(ScrollEvent e) {
+        int maxFirst = Math.max(0, getNRows(getWidth()) - getVisibleRows());
+        int newFirst = firstRow + (e.getDeltaY() < 0.0 ? 1 : -1);
+        newFirst = Math.max(0, Math.min(newFirst, maxFirst));
+        if (newFirst != firstRow) {
+            firstRow = newFirst;
+            repaintAll = true;
+            repaint();
+        }
+        e.consume();
+    }
+
+    /**
+     * Scroll so the cell at index is visible.
+     *
+     * @param index the index of the cell
+     */
+    public void scrollTo(int index) {
+        int row = index / cellsPerRow;
+        int nVisible = getVisibleRows();
+        if ((row < firstRow) || (row >= firstRow + nVisible)) {
+            firstRow = Math.max(0, row - nVisible / 2);
+            repaintAll = true;
+            scheduleRepaint();
+        }
+    }
+
+    void scheduleRepaint() {
+        if (!repaintPending) {
+            repaintPending = true;
+            Platform.runLater(this::repaint);
+        }
+    }
+
+    void repaint() {
+        repaintPending = false;
+        GraphicsContext gC = canvas.getGraphicsContext2D();
+        gC.setFont(font);
+        gC.setTextAlign(TextAlignment.CENTER);
+        gC.setTextBaseline(VPos.CENTER);
+        int start = firstRow * cellsPerRow;
+        int end = Math.min(texts.length, start + getVisibleRows() * cellsPerRow);
+        if (repaintAll) {
+            gC.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
+            for (int i = start; i < end; i++) {
+                drawCell(gC, i);
+            }
+            repaintAll = false;
+        } else {
+            for (int i = dirty.nextSetBit(start); (i >= 0) && (i < end); i = dirty.nextSetBit(i + 1)) {
+                drawCell(gC, i);
+            }
+        }
+        dirty.clear();
+    }
+
+    void drawCell(GraphicsContext gC, int index) {
+        int row = index / cellsPerRow;
+        int col = index % cellsPerRow;
+        double x = getCellX(col);
+        double y = getCellY(row);
+        gC.setFill(colors[index]);
+        gC.fillRect(x, y, cellWidth, cellWidth);
+        gC.setFill(Color.BLACK);
+        gC.fillText(texts[index], x + cellWidth / 2.0, y + cellWidth / 2.0, cellWidth);
+    }
+}
@@ -8,27 +8,34 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.function.Consumer;
 import javafx.application.Platform;
 import javafx.collections.MapChangeListener;
 import javafx.collections.ObservableList;
+import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Group;
-import javafx.scene.Node;
+import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
+import javafx.scene.control.ButtonBar;
+import javafx.scene.control.ButtonType;
 import javafx.scene.control.CheckBox;
 import javafx.scene.control.ContentDisplay;
 import javafx.scene.control.Label;
 import javafx.scene.control.Menu;
 import javafx.scene.control.MenuButton;
 import javafx.scene.control.MenuItem;
+import javafx.scene.control.ProgressBar;
 import javafx.scene.control.Spinner;
 import javafx.scene.control.SpinnerValueFactory;
+import javafx.scene.control.TextArea;
 import javafx.scene.control.TextField;
 import javafx.scene.control.ToggleButton;
 import javafx.scene.control.ToolBar;
@@ -48,6 +55,7 @@ import javafx.scene.text.Font;
 import javafx.scene.text.Text;
 import javafx.scene.text.TextAlignment;
 import javafx.stage.FileChooser;
+import org.controlsfx.dialog.ExceptionDialog;
 import org.nmrfx.chemistry.Polymer;
 import org.nmrfx.chemistry.Residue;
 import org.nmrfx.chemistry.io.AtomParser;
@@ -119,21 +127,33 @@ public class RunAboutGUI implements PeakListener {
     int currentSpinSystem = -1;
     SpinStatus spinStatus;
     ClusterStatus clusterStatus;
-    SeqPane seqPane;
-    Group drawingGroup;
-    ClusterPane clusterPane;
-    Group clusterGroup;
-    Map<String, ResidueLabel> residueLabelMap = new HashMap<>();
+    ResidueStrip seqStrip;
+    ResidueStrip clusterStrip;
+    Molecule seqMolecule = null;
+    List<Residue> seqResidues = new ArrayList<>();
+    Map<String, Integer> residueIndexMap = new HashMap<>();
     Map<String, ResidueLabel> aaLabelMap = new HashMap<>();
-    Map<Integer, String> chartTypes = new HashMap<>();
     Map<String, ResidueLabel> clusterLabelMap = new HashMap<>();
 
     boolean useSpinSystem = false;
-    Double[][] widths;
+    Map<String, ArrangementPlan> arrangementPlans = new HashMap<>();
+    ArrangementPlan arrangementPlan = null;
     int[] resOffsets = null;
-    List<List<String>> winPatterns = new ArrayList<>();
     boolean[] intraResidue = null;
     int minOffset = 0;
+    SpinSystemViewCache viewCache = new SpinSystemViewCache();
+    ChartBatch chartBatch = new ChartBatch();
+    final Set<PeakList> changedPeakLists = new HashSet<>();
+    final Set<Peak> changedPeaks = new HashSet<>();
+    boolean peakChangesScheduled = false;
+    FragmentScoreCache fragmentScores = new FragmentScoreCache();
+    GlobalAssignmentSearch.SearchResult globalSearchResult = null;
+    static final double GLOBAL_MIN_CONFIDENCE = 0.5;
+    Task<Map<String, Double>> pipelineTask = null;
+    List<MenuItem> pipelineItems = new ArrayList<>();
+    Label pipelineLabel;
+    ProgressBar pipelineProgressBar;
+    Button pipelineCancelButton;
 
     private RunAboutGUI(PeakNavigable peakNavigable) {
         this.peakNavigable = peakNavigable;
@@ -173,67 +193,6 @@ public class RunAboutGUI implements PeakListener {
         closeAction.accept(this);
     }
 
-    class SeqPane extends Pane {
-
-        double resWidth = 15.0;
-        Font font = Font.font(12.0);
-
-        int getNRows() {
-            int totalRows = 0;
-            Molecule mol = Molecule.getActive();
-            for (Polymer polymer : mol.getPolymers()) {
-                if (polymer.isPeptide()) {
-                    int nRes = polymer.getResidues().size();
-                    double width = (resWidth * (10 + 1)) * nRes / 10.0;
-                    int rows = (int) Math.ceil(width / vBox.getWidth());
-                    totalRows += rows;
-
-                }
-            }
-            return totalRows;
-
-        }
-
-        @Override
-        public void layoutChildren() {
-            setWidth(vBox.getWidth());
-            int rows = getNRows();
-            setHeight(rows * resWidth);
-            System.out.println("set seq pane " + rows + " " + (rows * resWidth) + " " + vBox.getWidth());
-            super.layoutChildren();
-            updateSeqCanvas();
-        }
-
-    }
-
-    class ClusterPane extends Pane {
-
-        double resWidth = 12.0;
-        Font font = Font.font(9.0);
-
-        int getNRows() {
-            int nSys = runAbout.getSpinSystems().getSize();
-            int rows = 0;
-            if (nSys > 0) {
-                double width = (resWidth * (10 + 1)) * nSys / 10.0;
-                rows = (int) Math.ceil(width / vBox.getWidth());
-            }
-            return rows;
-
-        }
-
-        @Override
-        public void layoutChildren() {
-            setWidth(vBox.getWidth());
-            int rows = getNRows();
-            setHeight(rows * resWidth);
-            System.out.println("set cluster pane " + rows + " " + (rows * resWidth) + vBox.getWidth());
-            super.layoutChildren();
-            updateClusterCanvas();
-        }
-
-    }
-
     RunAboutGUI initialize(VBox vBox) {
         this.vBox = vBox;
         ToolBar navBar = new ToolBar();
@@ -242,23 +201,21 @@ public class RunAboutGUI implements PeakListener {
         spinStatus = new SpinStatus();
         vBox.getChildren().add(spinStatus.build());
 
-        seqPane = new SeqPane();
-        drawingGroup = new Group();
-        seqPane.getChildren().add(drawingGroup);
-        seqPane.setMinHeight(60.0);
-        seqPane.setMinWidth(500.0);
+        seqStrip = new ResidueStrip(20.0, 14.0, true);
+        seqStrip.setOnCellClicked(this::gotoResidue);
+        seqStrip.setMinHeight(60.0);
+        seqStrip.setMinWidth(500.0);
 
-        clusterPane = new ClusterPane();
-        clusterGroup = new Group();
-        clusterPane.getChildren().add(clusterGroup);
-        clusterPane.setMinHeight(60.0);
-        clusterPane.setMinWidth(500.0);
+        clusterStrip = new ResidueStrip(20.0, 9.0, false);
+        clusterStrip.setOnCellClicked(this::gotoCluster);
+        clusterStrip.setMinHeight(60.0);
+        clusterStrip.setMinWidth(500.0);
 
         clusterStatus = new ClusterStatus();
 
         vBox.getChildren().add(clusterStatus.build());
-        vBox.getChildren().add(clusterPane);
-        vBox.getChildren().add(seqPane);
+        vBox.getChildren().add(clusterStrip);
+        vBox.getChildren().add(seqStrip);
 
         initPeakNavigator(navBar);
         return this;
@@ -323,26 +280,38 @@ public class RunAboutGUI implements PeakListener {
 
         MenuItem filterItem = new MenuItem("Filter");
         filterItem.setOnAction(e -> {
-            runAbout.filterPeaks();
+            runPipeline(new RunAboutPipeline().stage("filter", runAbout::filterPeaks, null));
         });
         actionMenuButton.getItems().add(filterItem);
 
         MenuItem assembleItem = new MenuItem("Assemble");
         assembleItem.setOnAction(e -> {
-            assemble();
-            clusterStatus.refresh();
+            runPipeline(new RunAboutPipeline().stage("assemble", runAbout::assemble, this::assembled));
         });
         actionMenuButton.getItems().add(assembleItem);
         MenuItem calcCombItem = new MenuItem("Combinations");
         calcCombItem.setOnAction(e -> {
-            runAbout.calcCombinations();
+            runPipeline(new RunAboutPipeline().stage("combinations", runAbout::calcCombinations, null));
         });
         actionMenuButton.getItems().add(calcCombItem);
         MenuItem compareItem = new MenuItem("Compare");
         compareItem.setOnAction(e -> {
-            runAbout.compare();
+            runPipeline(new RunAboutPipeline().stage("compare", runAbout::compare, this::compared));
         });
         actionMenuButton.getItems().add(compareItem);
+        MenuItem runAllItem = new MenuItem("Run All");
+        runAllItem.setOnAction(e -> {
+            runPipeline(new RunAboutPipeline()
+                    .stage("filter", runAbout::filterPeaks, null)
+                    .stage("combinations", runAbout::calcCombinations, null)
+                    .stage("compare", runAbout::compare, this::compared)
+                    .stage("assemble", runAbout::assemble, this::assembled));
+        });
+        actionMenuButton.getItems().add(runAllItem);
+        MenuItem searchItem = new MenuItem("Global Search");
+        searchItem.setOnAction(e -> globalSearch());
+        actionMenuButton.getItems().add(searchItem);
+        pipelineItems = new ArrayList<>(List.of(filterItem, calcCombItem, compareItem, assembleItem, runAllItem, searchItem));
 
         toolBar.getItems().addAll(buttons);
         toolBar.getItems().add(peakIdField);
@@ -350,6 +319,12 @@ public class RunAboutGUI implements PeakListener {
         Button analyzeButton = new Button("Analyze");
         analyzeButton.setOnAction(e -> analyzeSystem());
         toolBar.getItems().add(analyzeButton);
+        pipelineLabel = new Label();
+        pipelineProgressBar = new ProgressBar(0.0);
+        pipelineCancelButton = new Button("Cancel");
+        pipelineCancelButton.setOnAction(e -> cancelPipeline());
+        setPipelineVisible(false);
+        toolBar.getItems().addAll(pipelineLabel, pipelineProgressBar, pipelineCancelButton);
         ToolBarUtils.addFiller(navigatorToolBar, 40, 300);
         ToolBarUtils.addFiller(navigatorToolBar, 70, 70);
 
@@ -473,12 +448,10 @@ public class RunAboutGUI implements PeakListener {
             int i = 0;
             for (String aaName : AtomParser.getAANames()) {
                 String aaChar = AtomParser.convert3To1(aaName);
-                ResidueLabel leftLabel = new ResidueLabel(drawingGroup, aaChar.charAt(0));
-                ResidueLabel rightLabel = new ResidueLabel(drawingGroup, aaChar.charAt(0));
+                ResidueLabel leftLabel = new ResidueLabel(leftGroup, aaChar.charAt(0));
+                ResidueLabel rightLabel = new ResidueLabel(rightGroup, aaChar.charAt(0));
                 leftResidues.add(leftLabel);
                 rightResidues.add(rightLabel);
-                leftGroup.getChildren().add(leftLabel);
-                rightGroup.getChildren().add(rightLabel);
                 leftLabel.place(x, y);
                 rightLabel.place(x, y);
                 x += leftLabel.width;
@@ -578,6 +551,7 @@ public class RunAboutGUI implements PeakListener {
 
         List<SpinSystem> spinSystems;
         SpinSystem spinSys;
+        Set<Integer> highlightedResidues = new HashSet<>();
 
         void valueChanged(Spinner spinner) {
             gotoSpinSystems(spinners[0].getValue(), spinners[1].getValue());
@@ -592,31 +566,44 @@ public class RunAboutGUI implements PeakListener {
             } else {
                 spinSys.unconfirm(spinMatch, prevState);
             }
+            viewCache.clear();
             updateFragment(spinSys);
             updateClusterCanvas();
         }
 
         void updateFragment(SpinSystem spinSys) {
-            for (ResidueLabel resLabel : residueLabelMap.values()) {
-                resLabel.setColor(Color.WHITE);
-            }
+            Set<Integer> fragResidues = new HashSet<>();
             Optional<SeqFragment> fragmentOpt = spinSys.getFragment();
             fragmentOpt.ifPresent(frag -> {
                 Molecule molecule = Molecule.getActive();
-                for (Polymer polymer : molecule.getPolymers()) {
-                    List<ResidueSeqScore> resSeqScores = frag.scoreFragment(polymer);
+                Map<Polymer, List<ResidueSeqScore>> polymerScores
+                        = fragmentScores.getScores(frag, molecule.getPolymers());
+                polymerScores.forEach((polymer, resSeqScores) -> {
                     for (ResidueSeqScore resSeqScore : resSeqScores) {
-                        System.out.println(resSeqScore.getFirstResidue().getNumber() + " " + resSeqScore.getScore());
                         Residue residue = resSeqScore.getFirstResidue();
                         for (int iRes = 0; iRes < resSeqScore.getNResidues(); iRes++) {
                             String key = polymer.getName() + residue.getNumber();
-                            ResidueLabel resLabel = residueLabelMap.get(key);
-                            resLabel.setColor(Color.LIGHTGREEN);
+                            Integer index = residueIndexMap.get(key);
+                            if (index != null) {
+                                fragResidues.add(index);
+                            }
                             residue = residue.getNext();
                         }
                     }
-                }
+                });
             });
+            // only recolour the residues whose state changed
+            for (Integer index : highlightedResidues) {
+                if (!fragResidues.contains(index) && (index < seqStrip.size())) {
+                    seqStrip.setColor(index, Color.WHITE);
+                }
+            }
+            for (Integer index : fragResidues) {
+                if (!highlightedResidues.contains(index)) {
+                    seqStrip.setColor(index, Color.LIGHTGREEN);
+                }
+            }
+            highlightedResidues = fragResidues;
         }
 
         void gotoSystem(int index) {
@@ -696,58 +683,38 @@ public class RunAboutGUI implements PeakListener {
             this.spinSystems = spinSystems;
             if (!spinSystems.isEmpty()) {
                 spinSys = spinSystems.size() > 2 ? spinSystems.get(2) : spinSystems.get(0);
-                for (int i = 0; i < resOffsets.length; i++) {
-                    System.out.println(i + " " + resOffsets[i]);
-                }
+                SpinSystemView view = spinSys == null ? null : viewCache.get(spinSys);
                 for (int i = 0; i < nFields; i++) {
-                    boolean ok = false;
-                    if (spinSys != null) {
-                        List<SpinSystemMatch> matches = i == 0 ? spinSys.getMatchToPrevious() : spinSys.getMatchToNext();
+                    if (view != null) {
+                        List<SpinSystemView.MatchView> matches = view.getMatches(i == 0);
                         SpinnerValueFactory.IntegerSpinnerValueFactory factory
                                 = (SpinnerValueFactory.IntegerSpinnerValueFactory) spinners[i].getValueFactory();
-                        factory.setMax(matches.size() - 1);
-
+                        if (factory.getMax() != matches.size() - 1) {
+                            factory.setMax(matches.size() - 1);
+                        }
                     }
                 }
                 for (int i = 0; i < nFields; i++) {
                     boolean ok = false;
-                    if (spinSys != null) {
-                        List<SpinSystemMatch> matches = i == 0 ? spinSys.getMatchToPrevious() : spinSys.getMatchToNext();
-                        SpinSystemMatch spinMatch = null;
+                    if (view != null) {
+                        List<SpinSystemView.MatchView> matches = view.getMatches(i == 0);
                         if (!matches.isEmpty()) {
                             selectedButtons[i].setDisable(false);
                             sysFields[i].setDisable(false);
                             spinners[i].setDisable(false);
-                            SpinSystem otherSys;
-                            SpinSystem matchSys;
                             int index = spinners[i].getValue();
-                            System.out.println("i " + i + " index " + index);
-                            spinMatch = matches.get(index);
+                            SpinSystemView.MatchView matchView = matches.get(index);
+                            SpinSystemMatch spinMatch = matchView.getSpinMatch();
+                            selectedButtons[i].setSelected(matchView.isConfirmed());
 
-                            if (i == 0) {
-                                otherSys = spinMatch.getSpinSystemA();
-                                matchSys = otherSys.getMatchToNext().get(0).getSpinSystemB();
-                            } else {
-                                otherSys = spinMatch.getSpinSystemB();
-                                matchSys = otherSys.getMatchToPrevious().get(0).getSpinSystemA();
-                            }
-                            boolean available = !otherSys.confirmed(i == 0);
-                            boolean confirmed = spinSys.confirmed(spinMatch, i == 0);
-                            selectedButtons[i].setSelected(confirmed);
-
-                            boolean reciprocal = matchSys == spinSys;
-                            if (reciprocal) {
+                            if (matchView.isReciprocal()) {
                                 recipLabels[i].setText("R");
                                 recipLabels[i].setStyle("-fx-background-color:LIGHTGREEN");
                             } else {
-                                String matchLabel = "";
-                                if (matchSys != null) {
-                                    matchLabel = String.valueOf(matchSys.getRootPeak().getIdNum());
-                                }
-                                recipLabels[i].setText(matchLabel);
+                                recipLabels[i].setText(matchView.getMatchLabel());
                                 recipLabels[i].setStyle("-fx-background-color:YELLOW");
                             }
-                            if (available) {
+                            if (matchView.isAvailable()) {
                                 availLabels[i].setText("A");
                                 availLabels[i].setStyle("-fx-background-color:LIGHTGREEN");
                             } else {
@@ -757,7 +724,7 @@ public class RunAboutGUI implements PeakListener {
                             viableLabels[i].setText("V");
                             viableLabels[i].setStyle("-fx-background-color:LIGHTGREEN");
 
-                            sysFields[i].setText(String.valueOf(otherSys.getRootPeak().getIdNum()));
+                            sysFields[i].setText(String.valueOf(matchView.getOtherSys().getRootPeak().getIdNum()));
                             nMatchFields[i].setText(String.valueOf(spinMatch.getN()));
                             scoreFields[i].setText(String.format("%4.2f", spinMatch.getScore()));
                             ok = true;
@@ -780,7 +747,6 @@ public class RunAboutGUI implements PeakListener {
                     if (!ok) {
                         sysFields[i].setText("");
                     }
-//scoreField[i].setText(String.format("%4.2f", spinMatch.score));
                 }
             }
 
@@ -835,31 +801,17 @@ public class RunAboutGUI implements PeakListener {
         }
     }
 
-    void gotoResidue(ResidueLabel resLabel) {
+    void gotoResidue(int index) {
 
     }
 
-    void gotoCluster(ResidueLabel resLabel) {
-        int spinNum = Integer.parseInt(resLabel.textItem.getText());
+    void gotoCluster(int index) {
+        int spinNum = Integer.parseInt(clusterStrip.getText(index));
         currentSpinSystem = spinNum;
         gotoSpinSystems();
 
     }
 
-    void updateCluster(ResidueLabel resLabel, int i, SpinSystem spinSys) {
-        resLabel.setText(String.valueOf(spinSys.getRootPeak().getIdNum()));
-        resLabel.setOnMouseClicked(e -> gotoCluster(resLabel));
-        double width = 20.0;
-        double paneWidth = clusterPane.getWidth();
-        int nFit = (int) Math.floor(paneWidth / width) - 4;
-        int iX = i % nFit;
-        int jY = i / nFit;
-        double x = 25.0 + iX * width;
-        double y = 25.0 + jY * width;
-        resLabel.place(x, y);
-
-    }
-
     int countSpinSysItems(List<SpinSystem> sortedSystems) {
         int n = 0;
         for (SpinSystem spinSys : sortedSystems) {
@@ -874,16 +826,15 @@ public class RunAboutGUI implements PeakListener {
         return n;
     }
 
+    static String getClusterText(SpinSystem spinSys) {
+        return String.valueOf(spinSys.getRootPeak().getIdNum());
+    }
+
     void updateClusterCanvas() {
         List<SpinSystem> sortedSystems = runAbout.getSpinSystems().getSortedSystems();
         int n = countSpinSysItems(sortedSystems);
-        if (clusterGroup.getChildren().size() != n) {
-            clusterGroup.getChildren().clear();
-            for (int i = 0; i < n; i++) {
-                ResidueLabel resLabel = new ResidueLabel(clusterGroup, String.valueOf(i));
-            }
-        }
-        List<Node> nodes = clusterGroup.getChildren();
+        String[] texts = new String[n];
+        Color[] colors = new Color[n];
 
         int i = 0;
         Color color = Color.YELLOW;
@@ -892,66 +843,193 @@ public class RunAboutGUI implements PeakListener {
             if (fragmentOpt.isPresent()) {
                 SeqFragment fragment = fragmentOpt.get();
                 List<SpinSystemMatch> spinMatches = fragment.getSpinSystemMatches();
-                ResidueLabel resLabel = (ResidueLabel) nodes.get(i);
-                updateCluster(resLabel, i++, spinMatches.get(0).getSpinSystemA());
-                resLabel.setColor(color);
+                texts[i] = getClusterText(spinMatches.get(0).getSpinSystemA());
+                colors[i++] = color;
                 for (SpinSystemMatch spinMatch : spinMatches) {
-                    resLabel = (ResidueLabel) nodes.get(i);
-                    updateCluster(resLabel, i++, spinMatch.getSpinSystemB());
-                    resLabel.setColor(color);
+                    texts[i] = getClusterText(spinMatch.getSpinSystemB());
+                    colors[i++] = color;
                 }
                 color = color == Color.YELLOW ? Color.ORANGE : Color.YELLOW;
             } else {
                 color = Color.WHITE;
-                ResidueLabel resLabel = (ResidueLabel) nodes.get(i);
-                updateCluster(resLabel, i++, spinSys);
-                resLabel.setColor(color);
+                texts[i] = getClusterText(spinSys);
+                colors[i++] = color;
             }
         }
+        clusterStrip.setCells(texts, colors);
     }
 
     void updateSeqCanvas() {
         Molecule molecule = Molecule.getActive();
-        if (molecule != null) {
-            double width = 20;
-            if (drawingGroup.getChildren().isEmpty()) {
-                for (Polymer polymer : molecule.getPolymers()) {
-                    if (polymer.isPeptide()) {
-                        for (Residue residue : polymer.getResidues()) {
-                            ResidueLabel resLabel = new ResidueLabel(drawingGroup, residue);
-                            String key = polymer.getName() + residue.getNumber();
-                            residueLabelMap.put(key, resLabel);
-                        }
+        if ((molecule != null) && (molecule != seqMolecule)) {
+            seqMolecule = molecule;
+            seqResidues.clear();
+            residueIndexMap.clear();
+            spinStatus.highlightedResidues.clear();
+            for (Polymer polymer : molecule.getPolymers()) {
+                if (polymer.isPeptide()) {
+                    for (Residue residue : polymer.getResidues()) {
+                        String key = polymer.getName() + residue.getNumber();
+                        residueIndexMap.put(key, seqResidues.size());
+                        seqResidues.add(residue);
                     }
-
                 }
             }
-            double y = 25.0;
-            double x = 25.0;
-            int i = 0;
-            for (Node node : drawingGroup.getChildren()) {
-                ResidueLabel resLabel = (ResidueLabel) node;
-                resLabel.setOnMouseClicked(e -> gotoResidue(resLabel));
-                if ((i % 10) == 0) {
-                    x += width / 2.0;
-                }
-                resLabel.place(x, y);
-
-                x += width;
-                if (x > (seqPane.getWidth() - 2.0 * width)) {
-                    x = 25.0;
-                    y += width;
-                }
-                i++;
+            int n = seqResidues.size();
+            String[] texts = new String[n];
+            Color[] colors = new Color[n];
+            for (int i = 0; i < n; i++) {
+                texts[i] = String.valueOf(seqResidues.get(i).getOneLetter());
+                colors[i] = Color.WHITE;
             }
-
+            seqStrip.setCells(texts, colors);
         }
     }
 
-    void assemble() {
-        runAbout.assemble();
+    void assembled() {
+        viewCache.clear();
         updatePeakListMenu();
         useSpinSystem = true;
+        clusterStatus.refresh();
+        updateClusterCanvas();
+    }
+
+    void compared() {
+        viewCache.clear();
+        fragmentScores.clear();
+        if (runAbout.getSpinSystems().getSize() > 0) {
+            if ((currentSpinSystem < 0) || (currentSpinSystem >= runAbout.getSpinSystems().getSize())) {
+                currentSpinSystem = 0;
+            }
+            gotoSpinSystems();
+            viewCache.prefetch(runAbout.getSpinSystems().getSortedSystems());
+        }
+    }
+
+    /**
+     * Search, in the background, for the best global mapping of the spin
+     * systems to the sequence, then show the best solutions with the
+     * confidence of each residue's assignment and offer to confirm the links
+     * of the best solution.
+     */
+    void globalSearch() {
+        Molecule molecule = Molecule.getActive();
+        if ((molecule == null) || (runAbout.getSpinSystems().getSize() == 0)) {
+            GUIUtils.warn("Global Search", "Needs a molecule and compared spin systems");
+            return;
+        }
+        GlobalAssignmentSearch search = new GlobalAssignmentSearch(runAbout.getSpinSystems().getSortedSystems(), molecule);
+        GlobalAssignmentSearch.SearchResult[] result = new GlobalAssignmentSearch.SearchResult[1];
+        double nRounds = search.getNRounds();
+        runPipeline(new RunAboutPipeline().progressStage("search",
+                progress -> result[0] = search.search(() -> pipelineTask != null && pipelineTask.isCancelled(),
+                        nDone -> progress.accept(nDone / nRounds)),
+                () -> {
+                    globalSearchResult = result[0];
+                    showGlobalSearchResult(globalSearchResult);
+                }));
+    }
+
+    /**
+     * Show the report of a global search and, if the user chooses to apply
+     * it, confirm the links between the spin systems of the best solution
+     * whose residues have a confidence of at least GLOBAL_MIN_CONFIDENCE.
+     *
+     * @param result the result of the search
+     */
+    void showGlobalSearchResult(GlobalAssignmentSearch.SearchResult result) {
+        List<SpinSystemMatch> links = result.getLinks(GLOBAL_MIN_CONFIDENCE);
+        TextArea textArea = new TextArea(result.getReport());
+        textArea.setEditable(false);
+        textArea.setPrefColumnCount(40);
+        textArea.setPrefRowCount(20);
+        ButtonType applyType = new ButtonType("Apply", ButtonBar.ButtonData.OK_DONE);
+        Alert alert = new Alert(Alert.AlertType.CONFIRMATION, "", applyType, ButtonType.CANCEL);
+        alert.setTitle("Global Search");
+        alert.setHeaderText(String.format("Apply confirms %d links of the best solution (confidence >= %.2f)",
+                links.size(), GLOBAL_MIN_CONFIDENCE));
+        alert.getDialogPane().setContent(textArea);
+        alert.getDialogPane().lookupButton(applyType).setDisable(links.isEmpty());
+        alert.showAndWait().filter(response -> response == applyType).ifPresent(response -> {
+            for (SpinSystemMatch spinMatch : links) {
+                spinMatch.getSpinSystemA().confirm(spinMatch, false);
+            }
+            viewCache.clear();
+            updateClusterCanvas();
+            gotoSpinSystems();
+        });
+    }
+
+    /**
+     * Run the stages of an analysis pipeline in the background. The stages
+     * change the RunAbout state, so the analysis menu items and the navigation
+     * controls are disabled until the pipeline finishes, fails or is
+     * cancelled. The time of each stage is shown in the pipeline label when it
+     * finishes.
+     *
+     * @param pipeline the pipeline to run
+     */
+    void runPipeline(RunAboutPipeline pipeline) {
+        if ((pipelineTask != null) && pipelineTask.isRunning()) {
+            return;
+        }
+        Task<Map<String, Double>> task = pipeline.createTask();
+        pipelineTask = task;
+        pipelineItems.forEach(item -> item.setDisable(true));
+        setControlsDisable(true);
+        pipelineProgressBar.progressProperty().bind(task.progressProperty());
+        pipelineLabel.textProperty().bind(task.messageProperty());
+        setPipelineVisible(true);
+        task.setOnSucceeded(e -> {
+            endPipeline();
+            pipelineLabel.setText(pipeline.getTimingSummary());
+        });
+        task.setOnCancelled(e -> {
+            endPipeline();
+            pipelineLabel.setText("Cancelled after " + pipeline.getTimingSummary());
+        });
+        task.setOnFailed(e -> {
+            endPipeline();
+            pipelineLabel.setText("");
+            ExceptionDialog dialog = new ExceptionDialog(task.getException());
+            dialog.showAndWait();
+        });
+        Thread th = new Thread(task);
+        th.setDaemon(true);
+        th.start();
+    }
+
+    void endPipeline() {
+        pipelineProgressBar.progressProperty().unbind();
+        pipelineLabel.textProperty().unbind();
+        setPipelineVisible(false);
+        pipelineItems.forEach(item -> item.setDisable(false));
+        setControlsDisable(false);
+        pipelineTask = null;
+    }
+
+    /**
+     * Disable, or enable, the controls that navigate or change the RunAbout
+     * state, leaving the pipeline label, progress and cancel button enabled.
+     */
+    void setControlsDisable(boolean state) {
+        navigatorToolBar.getItems().stream()
+                .filter(node -> (node != pipelineLabel) && (node != pipelineProgressBar) && (node != pipelineCancelButton))
+                .forEach(node -> node.setDisable(state));
+        seqStrip.setDisable(state);
+        clusterStrip.setDisable(state);
+    }
+
+    void setPipelineVisible(boolean state) {
+        // the label stays visible to show the result of the last pipeline
+        pipelineProgressBar.setVisible(state);
+        pipelineCancelButton.setVisible(state);
+    }
+
+    public void cancelPipeline() {
+        if (pipelineTask != null) {
+            pipelineTask.cancel();
+        }
     }
 
     public void updatePeakListMenu() {
@@ -1184,7 +1262,25 @@ public class RunAboutGUI implements PeakListener {
         clusterStatus.setLabels();
         SpinSystem spinSys = runAbout.getSpinSystems().get(currentSpinSystem);
         spinStatus.updateFragment(spinSys);
+        prefetchNeighbours();
+    }
 
+    /**
+     * Prefetch the views of the spin systems shown when moving up to two spin
+     * systems forward or back.
+     */
+    void prefetchNeighbours() {
+        int nSystems = runAbout.getSpinSystems().getSize();
+        List<SpinSystem> neighbours = new ArrayList<>();
+        for (int delta : new int[]{1, -1, 2, -2}) {
+            int index = currentSpinSystem + delta;
+            if ((index >= 0) && (index < nSystems)) {
+                for (int resOffset : resOffsets) {
+                    neighbours.add(runAbout.getSpinSystems().get(index, resOffset, 0, 0));
+                }
+            }
+        }
+        viewCache.prefetch(neighbours);
     }
 
     public void gotoSpinSystems(int pIndex, int sIndex) {
@@ -1357,21 +1453,70 @@ public class RunAboutGUI implements PeakListener {
         updateDeleteStatus();
     }
 
+    /**
+     * Peak events can arrive in bursts of thousands (filtering, deleting,
+     * relinking), from any thread. They are collected here and handled once,
+     * on the next FX pulse, for the union of the changed lists and peaks.
+     */
     @Override
     public void peakListChanged(PeakEvent peakEvent) {
-        if (peakEvent.getSource() instanceof PeakList) {
-            PeakList sourceList = (PeakList) peakEvent.getSource();
-            if (sourceList == refPeakList) {
-                if (Platform.isFxApplicationThread()) {
-                    peakNavigable.refreshPeakView();
-                } else {
-                    Platform.runLater(() -> {
-                        peakNavigable.refreshPeakView();
-                    }
-                    );
+        Object source = peakEvent.getSource();
+        synchronized (changedPeakLists) {
+            if (source instanceof PeakList) {
+                changedPeakLists.add((PeakList) source);
+            } else if (source instanceof Peak) {
+                changedPeaks.add((Peak) source);
+            } else {
+                return;
+            }
+            if (peakChangesScheduled) {
+                return;
+            }
+            peakChangesScheduled = true;
+        }
+        Platform.runLater(this::peaksChanged);
+    }
+
+    void peaksChanged() {
+        Set<PeakList> peakLists;
+        Set<Peak> peaks;
+        synchronized (changedPeakLists) {
+            peakLists = new HashSet<>(changedPeakLists);
+            peaks = new HashSet<>(changedPeaks);
+            changedPeakLists.clear();
+            changedPeaks.clear();
+            peakChangesScheduled = false;
+        }
+        Set<SpinSystem> affected = getAffectedSpinSystems(peakLists, peaks);
+        viewCache.invalidate(affected);
+        fragmentScores.invalidate(affected);
+        boolean refChanged = peakLists.contains(refPeakList);
+        for (Peak peak : peaks) {
+            refChanged |= peak.getPeakList() == refPeakList;
+        }
+        if (refChanged && (peakNavigable != null)) {
+            peakNavigable.refreshPeakView();
+        }
+    }
+
+    /**
+     * Find the spin systems with a peak in one of the lists or one of the
+     * peaks.
+     */
+    Set<SpinSystem> getAffectedSpinSystems(Set<PeakList> peakLists, Set<Peak> peaks) {
+        Set<SpinSystem> affected = new HashSet<>();
+        int nSystems = runAbout.getSpinSystems().getSize();
+        for (int i = 0; i < nSystems; i++) {
+            SpinSystem spinSys = runAbout.getSpinSystems().get(i);
+            for (PeakMatch peakMatch : spinSys.peakMatches()) {
+                Peak peak = peakMatch.getPeak();
+                if (peaks.contains(peak) || peakLists.contains(peak.getPeakList())) {
+                    affected.add(spinSys);
+                    break;
                 }
             }
         }
+        return affected;
     }
 
     void loadYaml() {
@@ -1383,8 +1528,10 @@ public class RunAboutGUI implements PeakListener {
                 runAbout.loadYaml(file.toString());
                 Map<String, Object> yamlData = runAbout.getYamlData();
                 arrangeMenu.getItems().clear();
+                arrangementPlans.clear();
                 Map<String, Map<String, List<String>>> arrangments = (Map<String, Map<String, List<String>>>) yamlData.get("arrangements");
                 for (String arrangment : arrangments.keySet()) {
+                    arrangementPlans.put(arrangment, ArrangementPlan.compile(runAbout, arrangment));
                     MenuItem item = new MenuItem(arrangment);
                     arrangeMenu.getItems().add(item);
                     item.setOnAction(e -> genWin(arrangment));
@@ -1397,127 +1544,47 @@ public class RunAboutGUI implements PeakListener {
     }
 
 
-    /*
-    def getDataset(datasets, type):
-    if type in datasets:
-        return datasets[type]
-    else:
-        return None
-
-
-def getType(types, row, dDir):
-    for type in types:
-       if type['row'] == row and type['dir'] == dDir:
-           return type['name']
-    return ""
-
+    /**
+     * Get the compiled plan of an arrangement. The plan is compiled again if
+     * datasets it needs were missing when it was compiled.
      */
-    List<List<String>> getAtomsFromPatterns(List<String> patElems) {
-        List<List<String>> allAtomPats = new ArrayList<>();
-        for (int i = 0; i < patElems.size(); i++) {
-            String pattern = patElems.get(i).trim();
-            String[] resAtoms = pattern.split("\\.");
-            String[] atomPats = resAtoms[1].split(",");
-            List<String> atomPatList = new ArrayList<>();
-            allAtomPats.add(atomPatList);
-            for (String atomPat : atomPats) {
-                if (atomPat.endsWith("-") || atomPat.endsWith("+")) {
-                    int len = atomPat.length();
-                    atomPat = atomPat.substring(0, len - 1);
-                }
-                atomPatList.add(atomPat.toUpperCase());
-            }
-        }
-        return allAtomPats;
-    }
-
-    Optional<String> getDatasetName(Map<String, String> typeMap, String typeName) {
-        Optional<String> dName = Optional.empty();
-        if (typeMap.containsKey(typeName)) {
-            dName = Optional.of(typeMap.get(typeName));
-        }
-        return dName;
-    }
-
-    Double[] getDimWidth(List<String> dims) {
-        Double[] widths = new Double[dims.size()];
-        int j = 0;
-        for (String dim : dims) {
-            Double width;
-            int sepPos = dim.indexOf("_");
-            System.out.println(dim + " " + sepPos);
-            if (sepPos != -1) {
-                width = Double.parseDouble(dim.substring(sepPos + 1));
-            } else {
-                width = null;
-            }
-            widths[j] = width;
-            j++;
+    ArrangementPlan getArrangementPlan(String arrangeName) {
+        ArrangementPlan plan = arrangementPlans.get(arrangeName);
+        if ((plan == null) || !plan.isResolved()) {
+            plan = ArrangementPlan.compile(runAbout, arrangeName);
+            arrangementPlans.put(arrangeName, plan);
         }
-        return widths;
+        return plan;
     }
 
     void genWin(String arrangeName) {
         if (runAbout.isActive()) {
-            Map<String, List<String>> rowCols = runAbout.getArrangements().get(arrangeName);
-            List<String> rows = rowCols.get("rows");
-            List<String> cols = rowCols.get("cols");
-            int nCharts = rows.size() * cols.size();
+            ArrangementPlan plan = getArrangementPlan(arrangeName);
+            int nCharts = plan.getNCharts();
             controller.setNCharts(nCharts);
-            controller.arrange(rows.size());
+            controller.arrange(plan.getNRows());
             List<PolyChart> charts = controller.getCharts();
-            widths = new Double[nCharts][];
-            minOffset = 0;
-            resOffsets = new int[cols.size()];
-            intraResidue = new boolean[cols.size()];
-            int iCol = 0;
-
-            for (String col : cols) {
-                String[] colElems = col.split("\\.");
-                char resChar = colElems[0].charAt(0);
-                int del = resChar - 'i';
-                intraResidue[iCol] = !colElems[0].endsWith("-1");
-                resOffsets[iCol++] = del;
-                minOffset = Math.min(del, minOffset);
-            }
-            int iChart = 0;
-            winPatterns.clear();
-            for (String row : rows) {
-                for (String col : cols) {
-                    PolyChart chart = charts.get(iChart);
-                    chart.clearDataAndPeaks();
-                    String[] colElems = col.split("\\.");
-                    Optional<String> typeName = runAbout.getTypeName(row, colElems[0]);
-                    winPatterns.add(runAbout.getPatterns(row, colElems[0]));
-                    List<String> dimNames = runAbout.getDimLabel(colElems[1]);
-                    System.out.println(typeName);
-                    if (typeName.isPresent()) {
-                        chartTypes.put(iChart, typeName.get());
-                        Optional<DatasetBase> datasetOpt =  runAbout.getDataset(typeName.get());
-                        System.out.println(datasetOpt);
-                        if (datasetOpt.isPresent()) {
-                            DatasetBase dataset = datasetOpt.get();
-                            dataset.setTitle(typeName.get());
-                            PeakList peakList = runAbout.getPeakList(typeName.get());
-                            String dName = dataset.getName();
-                            List<String> datasets = Collections.singletonList(dName);
-                            chart.setActiveChart();
-                            chart.updateDatasets(datasets);
-                            DatasetAttributes dataAttr = chart.getDatasetAttributes().get(0);
-
-                            int[] iDims = runAbout.getIDims(dataset, typeName.get(), dimNames);
-                            widths[iChart] = getDimWidth(dimNames);
-                            for (int id = 0; id < widths[iChart].length; id++) {
-                                System.out.println(id + " " + widths[iChart][id]);
-                            }
-                            dataAttr.setDims(iDims);
-                            if (peakList != null) {
-                                List<String> peakLists = Collections.singletonList(peakList.getName());
-                                chart.updatePeakLists(peakLists);
-                            }
-                        }
+            arrangementPlan = plan;
+            resOffsets = plan.getResOffsets();
+            intraResidue = plan.getIntraResidue();
+            minOffset = plan.getMinOffset();
+            for (int iChart = 0; iChart < nCharts; iChart++) {
+                PolyChart chart = charts.get(iChart);
+                chart.clearDataAndPeaks();
+                ArrangementPlan.ChartPlan chartPlan = plan.getChart(iChart);
+                DatasetBase dataset = chartPlan.getDataset();
+                if (dataset != null) {
+                    dataset.setTitle(chartPlan.getTypeName());
+                    PeakList peakList = chartPlan.getPeakList();
+                    List<String> datasets = Collections.singletonList(dataset.getName());
+                    chart.setActiveChart();
+                    chart.updateDatasets(datasets);
+                    DatasetAttributes dataAttr = chart.getDatasetAttributes().get(0);
+                    dataAttr.setDims(chartPlan.getIDims());
+                    if (peakList != null) {
+                        List<String> peakLists = Collections.singletonList(peakList.getName());
+                        chart.updatePeakLists(peakLists);
                     }
-                    iChart++;
                 }
             }
             controller.setChartDisable(false);
@@ -1547,10 +1614,12 @@ def getType(types, row, dDir):
             Peak peak = peaks.get(iCol);
             chart.clearAnnotations();
             if ((peak != null) && (chart != null) && !chart.getDatasetAttributes().isEmpty()) {
-                refreshChart(chart, iChart, peak);
+                moveChart(chart, iChart, peak);
+                chartBatch.add(chart);
             }
             iChart++;
         }
+        chartBatch.refresh();
     }
 
     void drawSpinSystems(List<SpinSystem> spinSystems) {
@@ -1565,6 +1634,7 @@ def getType(types, row, dDir):
         double textWidth = GUIUtils.getTextWidth("CB", font);
 
         spinStatus.showScore(spinSystems);
+        List<SpinSystemViewCache.ChartSpec> chartSpecs = new ArrayList<>();
 
         for (PolyChart chart : charts) {
             chart.chartProps.setTopBorderSize(25);
@@ -1578,15 +1648,12 @@ def getType(types, row, dDir):
                 iChart++;
                 continue;
             }
-            if (iChart == 0) {
-                spinSystem.dumpPeakMatches();
-            }
-            // spinSystem.dumpPeakMatches();
+            SpinSystemView view = viewCache.get(spinSystem);
             Peak peak = spinSystem.getRootPeak();
             chart.clearAnnotations();
-            List<List<String>> atomPatterns = getAtomsFromPatterns(winPatterns.get(iChart));
+            ArrangementPlan.ChartPlan chartPlan = arrangementPlan.getChart(iChart);
             if ((peak != null) && (chart != null) && !chart.getDatasetAttributes().isEmpty()) {
-                refreshChart(chart, iChart, peak);
+                moveChart(chart, iChart, peak);
                 DatasetAttributes dataAttr = (DatasetAttributes) chart.getDatasetAttributes().get(0);
                 PeakList currentList = null;
                 if (!chart.getPeakListAttributes().isEmpty()) {
@@ -1594,14 +1661,13 @@ def getType(types, row, dDir):
                     peakAttr.setLabelType(PeakDisplayParameters.LabelTypes.Cluster);
                     currentList = peakAttr.getPeakList();
                 }
-                int nPeaks = spinSystem.getNPeaksWithList(currentList);
+                int nPeaks = view.getNPeaks(currentList);
                 for (PeakMatch peakMatch : spinSystem.peakMatches()) {
                     PeakDim peakDim = peakMatch.getPeak().getPeakDim(dataAttr.getLabel(1));
                     if (peakDim != null) {
                         int iDim = peakDim.getSpectralDim();
                         int atomIndex = peakMatch.getIndex(iDim);
-                        String aName = SpinSystem.getAtomName(atomIndex).toUpperCase();
-                        if (!atomPatterns.get(iDim).contains(aName)) {
+                        if (!chartPlan.matchesAtom(iDim, atomIndex)) {
                             continue;
 
                         }
@@ -1643,13 +1709,13 @@ def getType(types, row, dDir):
                         chart.addAnnotation(annoLine);
                     }
                 }
-                String typeName = chartTypes.get(iChart);
-                if (typeName != null) {
-                    int nExpected = runAbout.getTypeCount(typeName);
+                if (chartPlan.getTypeName() != null) {
+                    int nExpected = chartPlan.getNExpected();
 
-                    TypeInfo typeInfo = runAbout.getTypeInfo(typeName);
+                    TypeInfo typeInfo = chartPlan.getTypeInfo();
                     int dim = currentList.getSpectralDim(dataAttr.getLabel(1)).getDataDim();
-                    List<AtomPresent> typesPresent = spinSystem.getTypesPresent(typeInfo, currentList, dim);
+                    chartSpecs.add(new SpinSystemViewCache.ChartSpec(currentList, typeInfo, dim));
+                    List<AtomPresent> typesPresent = view.getTypesPresent(typeInfo, currentList, dim);
                     double x = 100.0;
                     double delta = textWidth + 5.0;
                     for (AtomPresent typePresent : typesPresent) {
@@ -1674,24 +1740,31 @@ def getType(types, row, dDir):
                     chart.addAnnotation(annoText);
 
                 }
-                chart.refresh();
+                chartBatch.add(chart);
 
             }
             iChart++;
         }
+        chartBatch.refresh();
+        viewCache.setChartSpecs(chartSpecs);
     }
 
-    void refreshChart(PolyChart chart, int iChart, Peak peak) {
+    /**
+     * Center the chart on the peak. The chart is not redrawn, add it to
+     * chartBatch.
+     */
+    void moveChart(PolyChart chart, int iChart, Peak peak) {
         DatasetAttributes dataAttr = (DatasetAttributes) chart.getDatasetAttributes().get(0);
         int cDim = chart.getNDim();
         int aDim = dataAttr.nDim;
         Double[] ppms = new Double[cDim];
+        ArrangementPlan.ChartPlan chartPlan = arrangementPlan.getChart(iChart);
         for (int i = 0; i < aDim; i++) {
             PeakDim peakDim = peak.getPeakDim(dataAttr.getLabel(i));
-//            System.out.println(i + " " + iChart + " " + widths[iChart] + " " + peak.getName() + " " + dataAttr.getLabel(i) + " " + peakDim.getName());
-            if ((widths[iChart] != null) && (peakDim != null)) {
+            if (chartPlan.hasWidths() && (peakDim != null)) {
                 ppms[i] = Double.valueOf(peakDim.getChemShiftValue());
-                if (widths[iChart][i] == null) {
+                Double width = chartPlan.getWidth(i);
+                if (width == null) {
                     chart.full(i);
                 } else {
                     double pos;
@@ -1703,13 +1776,12 @@ def getType(types, row, dDir):
                         pos = dataAttr.getDataset().ppmToDPoint(dDim, ppms[i]);
 //                        System.out.println(i + " " + aDim + " " + dDim + " " + ppms[i] + " " + pos);
                     }
-                    chart.moveTo(i, pos, widths[iChart][i]);
+                    chart.moveTo(i, pos, width);
                 }
             } else {
                 chart.full(i);
             }
         }
-        chart.refresh();
     }
 
     /*
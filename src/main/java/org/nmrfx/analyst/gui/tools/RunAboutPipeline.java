@@ -0,0 +1,169 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui.tools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.DoubleConsumer;
+import javafx.application.Platform;
+import javafx.concurrent.Task;
+
+/**
+ * A sequence of RunAbout analysis stages (filter, combinations, compare,
+ * assemble) run in order on a background thread. After each stage an optional
+ * update runs on the FX thread, and the next stage doesn't start until it has
+ * finished, so the GUI can show the partial results of a stage without racing
+ * with the next one. Cancelling takes effect between stages, as the stages
+ * themselves can't be interrupted; the FX update of a stage that was running
+ * when the task was cancelled is not run.
+ */
+public class RunAboutPipeline {
+
+    final List<Stage> stages = new ArrayList<>();
+    final Map<String, Double> timings = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    /**
+     * One stage of the pipeline.
+     */
+    static class Stage {
+
+        final String name;
+        final StageAction action;
+        final Runnable fxUpdate;
+
+        Stage(String name, StageAction action, Runnable fxUpdate) {
+            this.name = name;
+            this.action = action;
+            this.fxUpdate = fxUpdate;
+        }
+    }
+
+    /**
+     * The work of a stage that reports its own progress.
+     */
+    public interface StageAction {
+
+        /**
+         * @param progress accepts the fraction, 0 to 1, of the stage done
+         */
+        void run(DoubleConsumer progress);
+    }
+
+    /**
+     * Add a stage.
+     *
+     * @param name the name of the stage, shown as the task message
+     * @param action the work, run on the background thread
+     * @param fxUpdate run on the FX thread when the action completes, can be
+     * null
+     * @return this pipeline
+     */
+    public RunAboutPipeline stage(String name, Runnable action, Runnable fxUpdate) {
+        stages.add(new Stage(name, progress -> action.run(), fxUpdate));
+        return this;
+    }
+
+    /**
+     * Add a stage that reports its progress, shown as part of the progress of
+     * the pipeline.
+     *
+     * @param name the name of the stage, shown as the task message
+     * @param action the work, run on the background thread
+     * @param fxUpdate run on the FX thread when the action completes, can be
+     * null
+     * @return this pipeline
+     */
+    public RunAboutPipeline progressStage(String name, StageAction action, Runnable fxUpdate) {
+        stages.add(new Stage(name, action, fxUpdate));
+        return this;
+    }
+
+    public int size() {
+        return stages.size();
+    }
+
+    /**
+     * @return the time, in ms, of each stage that has completed
+     */
+    public Map<String, Double> getTimings() {
+        synchronized (timings) {
+            return new LinkedHashMap<>(timings);
+        }
+    }
+
+    /**
+     * @return the time of each completed stage, formatted for a status line
+     */
+    public String getTimingSummary() {
+        StringBuilder sBuilder = new StringBuilder();
+        getTimings().forEach((name, time) -> {
+            if (sBuilder.length() > 0) {
+                sBuilder.append(", ");
+            }
+            sBuilder.append(String.format("%s %.1f ms", name, time));
+        });
+        return sBuilder.toString();
+    }
+
+    static void runOnFxThreadAndWait(Runnable runnable) throws InterruptedException, ExecutionException {
+        if (Platform.isFxApplicationThread()) {
+            runnable.run();
+        } else {
+            FutureTask<Void> future = new FutureTask<>(runnable, null);
+            Platform.runLater(future);
+            future.get();
+        }
+    }
+
+    /**
+     * Create the task that runs the stages. The task's progress is the
+     * fraction of stages completed, including the progress reported by the
+     * running stage, and its message the name of the running
+     * stage.
+     *
+     * @return the task
+     */
+    public Task<Map<String, Double>> createTask() {
+        timings.clear();
+        return new Task<Map<String, Double>>() {
+            @Override
+            protected Map<String, Double> call() throws Exception {
+                int nStages = stages.size();
+                for (int iStage = 0; iStage < nStages; iStage++) {
+                    if (isCancelled()) {
+                        break;
+                    }
+                    Stage stage = stages.get(iStage);
+                    updateMessage(stage.name);
+                    long start = System.nanoTime();
+                    final int stageIndex = iStage;
+                    stage.action.run(fraction -> updateProgress(stageIndex + Math.min(Math.max(fraction, 0.0), 1.0), nStages));
+                    double time = (System.nanoTime() - start) / 1.0e6;
+                    timings.put(stage.name, time);
+                    if (isCancelled()) {
+                        break;
+                    }
+                    if (stage.fxUpdate != null) {
+                        // checked again on the FX thread, the task may be
+                        // cancelled while the update waits to run
+                        runOnFxThreadAndWait(() -> {
+                            if (!isCancelled()) {
+                                stage.fxUpdate.run();
+                            }
+                        });
+                    }
+                    updateProgress(iStage + 1, nStages);
+                }
+                return getTimings();
+            }
+        };
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.nmrfx.peaks.PeakList;
+import org.nmrfx.structure.seqassign.RunAbout.TypeInfo;
+import org.nmrfx.structure.seqassign.SpinSystem;
+import org.nmrfx.structure.seqassign.SpinSystem.AtomPresent;
+import org.nmrfx.structure.seqassign.SpinSystemMatch;
+
+/**
+ * What the RunAbout GUI shows for one spin system: its matches to the
+ * previous and next spin systems and, per peak list, the number of peaks and
+ * which atom types are present. The matches are evaluated when the view is
+ * created; the per list values are evaluated the first time they are
+ * requested and then kept. A view is replaced (not updated) when its spin
+ * system changes, see SpinSystemViewCache.
+ */
+public class SpinSystemView {
+
+    final SpinSystem spinSys;
+    final List<MatchView> prevMatches;
+    final List<MatchView> nextMatches;
+    final Map<PeakList, Integer> nPeaks = new ConcurrentHashMap<>();
+    final Map<List<Object>, List<AtomPresent>> typesPresent = new ConcurrentHashMap<>();
+
+    /**
+     * One match of the spin system to a previous or next spin system.
+     */
+    public static class MatchView {
+
+        final SpinSystemMatch spinMatch;
+        final SpinSystem otherSys;
+        final boolean reciprocal;
+        final String matchLabel;
+        final boolean available;
+        final boolean confirmed;
+
+        MatchView(SpinSystem spinSys, SpinSystemMatch spinMatch, boolean prev) {
+            this.spinMatch = spinMatch;
+            SpinSystem matchSys;
+            if (prev) {
+                otherSys = spinMatch.getSpinSystemA();
+                List<SpinSystemMatch> otherMatches = otherSys.getMatchToNext();
+                matchSys = otherMatches.isEmpty() ? null : otherMatches.get(0).getSpinSystemB();
+            } else {
+                otherSys = spinMatch.getSpinSystemB();
+                List<SpinSystemMatch> otherMatches = otherSys.getMatchToPrevious();
+                matchSys = otherMatches.isEmpty() ? null : otherMatches.get(0).getSpinSystemA();
+            }
+            reciprocal = matchSys == spinSys;
+            matchLabel = matchSys == null ? "" : String.valueOf(matchSys.getRootPeak().getIdNum());
+            available = !otherSys.confirmed(prev);
+            confirmed = spinSys.confirmed(spinMatch, prev);
+        }
+
+        public SpinSystemMatch getSpinMatch() {
+            return spinMatch;
+        }
+
+        public SpinSystem getOtherSys() {
+            return otherSys;
+        }
+
+        public boolean isReciprocal() {
+            return reciprocal;
+        }
+
+        /**
+         * @return the id of the root peak of the spin system that the other
+         * spin system best matches, or an empty string
+         */
+        public String getMatchLabel() {
+            return matchLabel;
+        }
+
+        public boolean isAvailable() {
+            return available;
+        }
+
+        public boolean isConfirmed() {
+            return confirmed;
+        }
+    }
+
+    SpinSystemView(SpinSystem spinSys) {
+        this.spinSys = spinSys;
+        prevMatches = getMatches(spinSys, true);
+        nextMatches = getMatches(spinSys, false);
+    }
+
+    static List<MatchView> getMatches(SpinSystem spinSys, boolean prev) {
+        List<SpinSystemMatch> matches = prev ? spinSys.getMatchToPrevious() : spinSys.getMatchToNext();
+        List<MatchView> views = new ArrayList<>(matches.size());
+        for (SpinSystemMatch spinMatch : matches) {
+            views.add(new MatchView(spinSys, spinMatch, prev));
+        }
+        return Collections.unmodifiableList(views);
+    }
+
+    public SpinSystem getSpinSystem() {
+        return spinSys;
+    }
+
+    public List<MatchView> getMatches(boolean prev) {
+        return prev ? prevMatches : nextMatches;
+    }
+
+    public int getNPeaks(PeakList peakList) {
+        if (peakList == null) {
+            return spinSys.getNPeaksWithList(null);
+        }
+        return nPeaks.computeIfAbsent(peakList, k -> spinSys.getNPeaksWithList(k));
+    }
+
+    public List<AtomPresent> getTypesPresent(TypeInfo typeInfo, PeakList peakList, int dim) {
+        List<Object> key = Arrays.asList(typeInfo, peakList, dim);
+        return typesPresent.computeIfAbsent(key,
+                k -> Collections.unmodifiableList(new ArrayList<>(spinSys.getTypesPresent(typeInfo, peakList, dim))));
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nmrfx.analyst.gui.tools;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.nmrfx.peaks.PeakList;
+import org.nmrfx.structure.seqassign.RunAbout.TypeInfo;
+import org.nmrfx.structure.seqassign.SpinSystem;
+
+/**
+ * Cache of SpinSystemView objects. Views are created on demand on the FX
+ * thread, or ahead of time on a background thread with prefetch (for example
+ * for the neighbours of the spin system being shown). Whenever spin systems
+ * change (comparison, assembly, confirming matches, peak list changes) the
+ * cache must be cleared; views being built by the background thread at that
+ * time are discarded rather than stored: each entry records the generation
+ * it was built in, and a prefetched view is only stored, atomically with
+ * checking its generation, if the cache hasn't been cleared or invalidated
+ * since the prefetch started.
+ */
+public class SpinSystemViewCache {
+
+    final Map<SpinSystem, Entry> views = new ConcurrentHashMap<>();
+    final AtomicInteger generation = new AtomicInteger(0);
+    final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r);
+        thread.setDaemon(true);
+        return thread;
+    });
+    volatile List<ChartSpec> chartSpecs = new ArrayList<>();
+
+    static class Entry {
+
+        final SpinSystemView view;
+        final int generation;
+
+        Entry(SpinSystemView view, int generation) {
+            this.view = view;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * The per list values a chart of the current arrangement shows, so they
+     * can be prefetched too.
+     */
+    public static class ChartSpec {
+
+        final PeakList peakList;
+        final TypeInfo typeInfo;
+        final int dim;
+
+        public ChartSpec(PeakList peakList, TypeInfo typeInfo, int dim) {
+            this.peakList = peakList;
+            this.typeInfo = typeInfo;
+            this.dim = dim;
+        }
+    }
+
+    public void setChartSpecs(List<ChartSpec> chartSpecs) {
+        this.chartSpecs = new ArrayList<>(chartSpecs);
+    }
+
+    /**
+     * Get the view of a spin system, creating it if necessary.
+     *
+     * @param spinSys the spin system
+     * @return the view
+     */
+    public SpinSystemView get(SpinSystem spinSys) {
+        Entry entry = views.get(spinSys);
+        if (entry == null) {
+            entry = new Entry(new SpinSystemView(spinSys), generation.get());
+            views.put(spinSys, entry);
+        }
+        return entry.view;
+    }
+
+    /**
+     * Create, on a background thread, the views of spin systems that aren't
+     * in the cache, including the per list values of the current chart specs.
+     *
+     * @param spinSystems the spin systems, null entries are skipped
+     */
+    public void prefetch(Collection<SpinSystem> spinSystems) {
+        int startGeneration = generation.get();
+        List<SpinSystem> toFetch = new ArrayList<>();
+        for (SpinSystem spinSys : spinSystems) {
+            if ((spinSys != null) && !views.containsKey(spinSys)) {
+                toFetch.add(spinSys);
+            }
+        }
+        if (toFetch.isEmpty()) {
+            return;
+        }
+        List<ChartSpec> specs = chartSpecs;
+        executor.submit(() -> {
+            for (SpinSystem spinSys : toFetch) {
+                if (generation.get() != startGeneration) {
+                    return;
+                }
+                try {
+                    SpinSystemView view = new SpinSystemView(spinSys);
+                    for (ChartSpec spec : specs) {
+                        view.getNPeaks(spec.peakList);
+                        if (spec.typeInfo != null) {
+                            view.getTypesPresent(spec.typeInfo, spec.peakList, spec.dim);
+                        }
+                    }
+                    // clear and invalidate change the generation before
+                    // removing entries, so checking it while holding the
+                    // entry's lock means a stale view is never stored
+                    views.compute(spinSys, (k, entry) -> {
+                        if ((entry == null) && (generation.get() == startGeneration)) {
+                            return new Entry(view, startGeneration);
+                        }
+                        return entry;
+                    });
+                } catch (RuntimeException rE) {
+                    // spin systems may be changed while prefetching, the view will be built on demand
+                    Logger.getLogger(SpinSystemViewCache.class.getName()).log(Level.WARNING,
+                            "Prefetching a spin system view failed", rE);
+                }
+            }
+        });
+    }
+
+    public void clear() {
+        generation.incrementAndGet();
+        views.clear();
+    }
+
+    /**
+     * Remove the views of some spin systems, for example those with changed
+     * peaks. Views being prefetched are discarded.
+     *
+     * @param spinSystems the spin systems
+     */
+    public void invalidate(Collection<SpinSystem> spinSystems) {
+        if (!spinSystems.isEmpty()) {
+            generation.incrementAndGet();
+            views.keySet().removeAll(spinSystems);
+        }
+    }
+
+    public int size() {
+        return views.size();
+    }
+}
@@ -0,0 +1,183 @@
+package org.nmrfx.analyst.gui;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import org.nmrfx.processor.optimization.BipartiteMatcher;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares SparseAssignment with the dense BipartiteMatcher (on the zero
+ * padded square matrix PeakListAligner uses) and with an exhaustive search on
+ * small random instances.
+ */
+public class SparseAssignmentTest {
+
+    static final double TOL = 1.0e-9;
+
+    /**
+     * Random weights, gated like the HMQC match: pairs with a distance of 1.0
+     * or more get no edge (NaN).
+     */
+    static double[][] randomWeights(Random random, int nRows, int nCols, double gateFraction) {
+        double[][] weights = new double[nRows][nCols];
+        for (int i = 0; i < nRows; i++) {
+            for (int j = 0; j < nCols; j++) {
+                double distance = random.nextDouble() / (1.0 - gateFraction);
+                weights[i][j] = distance < 1.0 ? 1.0 - distance : Double.NaN;
+            }
+        }
+        return weights;
+    }
+
+    static SparseAssignment sparse(double[][] weights, int nCols) {
+        SparseAssignment assignment = new SparseAssignment(weights.length, nCols);
+        for (int i = 0; i < weights.length; i++) {
+            for (int j = 0; j < nCols; j++) {
+                if (!Double.isNaN(weights[i][j])) {
+                    assignment.addEdge(i, j, weights[i][j]);
+                }
+            }
+        }
+        return assignment;
+    }
+
+    static double denseWeightSum(double[][] weights, int nCols) {
+        int nRows = weights.length;
+        int n = nRows + nCols;
+        BipartiteMatcher matcher = new BipartiteMatcher();
+        matcher.reset(n, true);
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                matcher.setWeight(i, j, 0.0);
+            }
+        }
+        for (int i = 0; i < nRows; i++) {
+            for (int j = 0; j < nCols; j++) {
+                if (!Double.isNaN(weights[i][j])) {
+                    matcher.setWeight(i, j, weights[i][j]);
+                }
+            }
+        }
+        int[] matching = matcher.getMatching();
+        double sum = 0.0;
+        for (int i = 0; i < nRows; i++) {
+            int j = matching[i];
+            if ((j >= 0) && (j < nCols) && !Double.isNaN(weights[i][j])) {
+                sum += weights[i][j];
+            }
+        }
+        return sum;
+    }
+
+    static double bruteForce(double[][] weights, int nCols, int row, boolean[] used) {
+        if (row == weights.length) {
+            return 0.0;
+        }
+        double best = bruteForce(weights, nCols, row + 1, used);
+        for (int j = 0; j < nCols; j++) {
+            if (!used[j] && !Double.isNaN(weights[row][j])) {
+                used[j] = true;
+                best = Math.max(best, weights[row][j] + bruteForce(weights, nCols, row + 1, used));
+                used[j] = false;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Check that the matching uses each column at most once, only uses
+     * existing edges and that its weight is the reported sum.
+     */
+    static void checkMatching(double[][] weights, int nCols, SparseAssignment assignment) {
+        int[] matching = assignment.getMatching();
+        assertEquals(weights.length, matching.length);
+        boolean[] used = new boolean[nCols];
+        double sum = 0.0;
+        for (int i = 0; i < matching.length; i++) {
+            int j = matching[i];
+            if (j >= 0) {
+                assertTrue(j < nCols);
+                assertTrue("row " + i + " assigned to a gated column", !Double.isNaN(weights[i][j]));
+                assertTrue("column " + j + " assigned twice", !used[j]);
+                used[j] = true;
+                sum += weights[i][j];
+            }
+        }
+        assertEquals(sum, assignment.getWeightSum(), TOL);
+    }
+
+    @Test
+    public void testRandomMatchesDense() {
+        Random random = new Random(17);
+        for (int trial = 0; trial < 200; trial++) {
+            int nRows = 1 + random.nextInt(7);
+            int nCols = 1 + random.nextInt(7);
+            double gateFraction = random.nextDouble() * 0.8;
+            double[][] weights = randomWeights(random, nRows, nCols, gateFraction);
+            SparseAssignment assignment = sparse(weights, nCols);
+            checkMatching(weights, nCols, assignment);
+            double expected = bruteForce(weights, nCols, 0, new boolean[nCols]);
+            assertEquals("trial " + trial, expected, assignment.getWeightSum(), TOL);
+            assertEquals("trial " + trial, denseWeightSum(weights, nCols), assignment.getWeightSum(), TOL);
+        }
+    }
+
+    @Test
+    public void testNoEdges() {
+        int nRows = 4;
+        int nCols = 3;
+        double[][] weights = new double[nRows][nCols];
+        for (double[] row : weights) {
+            Arrays.fill(row, Double.NaN);
+        }
+        SparseAssignment assignment = sparse(weights, nCols);
+        assertEquals(0, assignment.getNEdges());
+        assertArrayEquals(new int[]{-1, -1, -1, -1}, assignment.getMatching());
+        assertEquals(0.0, assignment.getWeightSum(), TOL);
+        assertEquals(denseWeightSum(weights, nCols), assignment.getWeightSum(), TOL);
+    }
+
+    @Test
+    public void testGatedRowsUnassigned() {
+        Random random = new Random(5);
+        for (int trial = 0; trial < 50; trial++) {
+            int nRows = 6;
+            int nCols = 5;
+            double[][] weights = randomWeights(random, nRows, nCols, 0.3);
+            // rows 1 and 4 are outside the tolerance of every column
+            Arrays.fill(weights[1], Double.NaN);
+            Arrays.fill(weights[4], Double.NaN);
+            SparseAssignment assignment = sparse(weights, nCols);
+            int[] matching = assignment.getMatching();
+            assertEquals(-1, matching[1]);
+            assertEquals(-1, matching[4]);
+            checkMatching(weights, nCols, assignment);
+            assertEquals(denseWeightSum(weights, nCols), assignment.getWeightSum(), TOL);
+        }
+    }
+
+    @Test
+    public void testNonPositiveWeightsIgnored() {
+        SparseAssignment assignment = new SparseAssignment(2, 2);
+        assignment.addEdge(0, 0, 0.0);
+        assignment.addEdge(0, 1, -0.5);
+        assignment.addEdge(1, 1, 0.25);
+        assertEquals(1, assignment.getNEdges());
+        assertArrayEquals(new int[]{-1, 1}, assignment.getMatching());
+        assertEquals(0.25, assignment.getWeightSum(), TOL);
+    }
+
+    @Test
+    public void testPrefersTotalWeight() {
+        // the greedy choice (0,0) would block the better total of (0,1)+(1,0)
+        SparseAssignment assignment = new SparseAssignment(2, 2);
+        assignment.addEdge(0, 0, 0.9);
+        assignment.addEdge(0, 1, 0.8);
+        assignment.addEdge(1, 0, 0.7);
+        assertArrayEquals(new int[]{1, 0}, assignment.getMatching());
+        assertEquals(1.5, assignment.getWeightSum(), TOL);
+    }
+}